@@ -0,0 +1,65 @@
+package com.boussettahichem.tools;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Base64Codec.encode() and decode() - the byte decoder reads the base64 body of the PEM keys, wrapped at 64 characters per line
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64CodecBenchmark {
+	
+	@Param({"64", "1216", "16384"})
+	int						dataLength;
+	
+	byte[]					_data;
+	String					_encoded;
+	byte[]					_pemBody;
+	byte[]					_decoded;
+	
+	
+	@Setup
+	public void setUp() {
+		_data = new byte[dataLength];
+		new Random(dataLength).nextBytes(_data);
+		
+		_encoded = Base64Codec.encode(_data);
+		_decoded = new byte[_encoded.length()];
+		
+		StringBuilder pemBody = new StringBuilder();
+		for (int i = 0; i < _encoded.length(); i += 64) {
+			pemBody.append(_encoded, i, Math.min(i + 64, _encoded.length())).append('\n');
+		}
+		_pemBody = pemBody.toString().getBytes();
+	}
+	
+	@Benchmark
+	public String encode() {
+		return Base64Codec.encode(_data);
+	}
+	
+	@Benchmark
+	public byte[] decode() {
+		return Base64Codec.decode(_encoded);
+	}
+	
+	@Benchmark
+	public int decodeBytes() {
+		return Base64Codec.decode(_pemBody, 0, _pemBody.length, _decoded, 0);
+	}
+}
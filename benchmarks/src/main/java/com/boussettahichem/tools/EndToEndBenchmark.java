@@ -0,0 +1,196 @@
+package com.boussettahichem.tools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Round trip of a frame from a client, through a RetryProxy, to an in-process echo destination and back
+//The echo returns each frame as is, so in retry mode the reply carries the request's sequence number
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+	
+	//Constants
+	static final int			CONNECT_TIMEOUT_MILLIS		= 5000;
+	
+	@Param({"threads", "nio", "virtual"})
+	String						mode;
+	
+	@Param({"false", "true"})
+	boolean						retry;
+	
+	@Param({"64", "1024"})
+	int							payloadLength;
+	
+	EchoServer					_echoServer;
+	RetryProxy					_proxy;
+	Socket						_client;
+	OutputStream				_clientOutput;
+	DataInputStream				_clientInput;
+	byte[]						_request;
+	byte[]						_reply;
+	
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Logger.getSharedLogger().setLevel(Logger.LogLevel.LogLevelWarning);
+		
+		_echoServer = new EchoServer();
+		_echoServer.start();
+		
+		//The proxy listens on a free port
+		ServerSocket portFinder = new ServerSocket(0);
+		int proxyPort = portFinder.getLocalPort();
+		portFinder.close();
+		
+		_proxy = new RetryProxy();
+		_proxy.setSourcePort(proxyPort);
+		_proxy.setDestinationIP("127.0.0.1");
+		_proxy.setDestinationPort(_echoServer.getPort());
+		_proxy.setUseNetworkRetry(retry);
+		_proxy.setExecutionMode(mode.equals("nio") ? RetryProxy.ExecutionMode.ExecutionModeNIO : (mode.equals("virtual") ? RetryProxy.ExecutionMode.ExecutionModeVirtualThreads : RetryProxy.ExecutionMode.ExecutionModeThreads));
+		
+		//runServer does not return while the proxy runs
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				_proxy.runServer();
+			}
+		}, "RetryProxy");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		_client = _connect(proxyPort);
+		_client.setTcpNoDelay(true);
+		_clientOutput	= _client.getOutputStream();
+		_clientInput	= new DataInputStream(_client.getInputStream());
+		
+		_request = new byte[2 + payloadLength];
+		_request[0] = (byte)(payloadLength >> 8);
+		_request[1] = (byte)payloadLength;
+		for (int i = 0; i < payloadLength; i++) {
+			_request[2 + i] = (byte)i;
+		}
+		_reply = new byte[0xFFFF];
+	}
+	
+	//The client is closed first - its session has nothing left to drain and stopServer() returns at once
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		_client.close();
+		_proxy.stopServer();
+		_echoServer.stop();
+	}
+	
+	//Returns the length of the reply
+	@Benchmark
+	public int roundTrip() throws IOException {
+		_clientOutput.write(_request);
+		
+		int replyLength = _clientInput.readUnsignedShort();
+		
+		_clientInput.readFully(_reply, 0, replyLength);
+		
+		return replyLength;
+	}
+	
+	
+	//The proxy may take a moment to listen
+	Socket _connect(int port) throws Exception {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		
+		while (true) {
+			try {
+				Socket socket = new Socket();
+				
+				socket.connect(new InetSocketAddress("127.0.0.1", port));
+				
+				return socket;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(20);
+			}
+		}
+	}
+	
+	
+	//Destination that writes back everything it reads - one thread per connection
+	static class EchoServer implements Runnable {
+		
+		ServerSocket			_serverSocket;
+		Thread					_acceptThread;
+		
+		public void start() throws IOException {
+			_serverSocket	= new ServerSocket(0);
+			_acceptThread	= new Thread(this, "EchoServer");
+			_acceptThread.setDaemon(true);
+			_acceptThread.start();
+		}
+		
+		public int getPort() {
+			return _serverSocket.getLocalPort();
+		}
+		
+		public void stop() throws IOException {
+			_serverSocket.close();
+		}
+		
+		public void run() {
+			while (true) {
+				final Socket socket;
+				
+				try {
+					socket = _serverSocket.accept();
+					socket.setTcpNoDelay(true);
+				} catch (IOException e) {
+					return;
+				}
+				
+				Thread echoThread = new Thread(new Runnable() {
+					public void run() {
+						byte[] buffer = new byte[64 * 1024];
+						
+						try {
+							InputStream		input		= socket.getInputStream();
+							OutputStream	output		= socket.getOutputStream();
+							int				bytesRead	= 0;
+							
+							while ((bytesRead = input.read(buffer)) > 0) {
+								output.write(buffer, 0, bytesRead);
+							}
+							socket.close();
+						} catch (IOException e) {
+							//Connection closed
+						}
+					}
+				}, "EchoConnection");
+				echoThread.setDaemon(true);
+				echoThread.start();
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.boussettahichem.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+//SourceThread.processSourceData() on a stream of frames received in reads of up to 64 KB
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+	
+	@Param({"16", "256", "4096"})
+	int						frameLength;
+	
+	@Param({"1", "32"})
+	int						framesPerRead;
+	
+	byte[]					_received;
+	FramingSourceThread		_sourceThread;
+	
+	
+	@Setup
+	public void setUp() {
+		Logger.getSharedLogger().setLevel(Logger.LogLevel.LogLevelWarning);
+		
+		ByteBuffer frames = ByteBuffer.allocate((FrameDecoder.DATA_HEADER_LENGTH + frameLength) * framesPerRead);
+		
+		for (int i = 0; i < framesPerRead; i++) {
+			frames.putShort((short)frameLength);
+			for (int j = 0; j < frameLength; j++) {
+				frames.put((byte)j);
+			}
+		}
+		
+		_received		= frames.array();
+		_sourceThread	= new FramingSourceThread();
+	}
+	
+	//Copies the received bytes into the decoder as the reads would, and decodes after each read
+	@Benchmark
+	public int processSourceData(Blackhole blackhole) {
+		int frameCount	= 0;
+		int offset		= 0;
+		
+		_sourceThread._blackhole = blackhole;
+		
+		while (offset < _received.length) {
+			ByteBuffer	buffer		= _sourceThread._sourceData.getReceiveBuffer();
+			int			readLength	= Math.min(buffer.remaining(), _received.length - offset);
+			
+			buffer.put(_received, offset, readLength);
+			offset		+= readLength;
+			frameCount	+= _sourceThread.processSourceData();
+		}
+		
+		return frameCount;
+	}
+	
+	
+	//Source reader without a session - the frames are consumed by the benchmark
+	static class FramingSourceThread extends SourceThread {
+		
+		Blackhole		_blackhole;
+		
+		public FramingSourceThread() {
+			super(null, null, null);
+		}
+		
+		public void handleFrame(ByteBuffer frame) {
+			_blackhole.consume(frame.get(frame.position()));
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.boussettahichem.tools;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//HexDump.dump() to a new String, and HexDump.append() into a reused builder as the logger does
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexDumpBenchmark {
+	
+	@Param({"16", "1024", "65536"})
+	int						dataLength;
+	
+	byte[]					_data;
+	StringBuilder			_builder;
+	
+	
+	@Setup
+	public void setUp() {
+		_data		= new byte[dataLength];
+		_builder	= new StringBuilder();
+		
+		new Random(dataLength).nextBytes(_data);
+	}
+	
+	@Benchmark
+	public String dump() {
+		return HexDump.dump(_data);
+	}
+	
+	@Benchmark
+	public int append() {
+		_builder.setLength(0);
+		HexDump.append(_builder, _data, 0, _data.length);
+		
+		return _builder.length();
+	}
+}
@@ -0,0 +1,79 @@
+package com.boussettahichem.tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Cost of Logger.log() for the calling thread - the writer thread writes to a discarding stream
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+	
+	int						_sessionId;
+	PrintStream				_standardOutput;
+	
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		_sessionId		= 42;
+		_standardOutput	= Logger.getSharedLogger().getOutput();
+		
+		Logger.getSharedLogger().setOutput(new PrintStream(new DiscardingOutputStream()));
+		Logger.getSharedLogger().setLevel(Logger.LogLevel.LogLevelInfo);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Logger.getSharedLogger().setOutput(_standardOutput);
+	}
+	
+	//Below the active level - nothing is formatted
+	@Benchmark
+	public void logBelowLevel() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_handleResponse [Received Valid Response - Sequence Number = %d]", _sessionId);
+	}
+	
+	@Benchmark
+	public void logMessage() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer [Server Already Started]");
+	}
+	
+	@Benchmark
+	public void logFormatted() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::close [Session #%d]", _sessionId);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void logFormattedContended() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::close [Session #%d]", _sessionId);
+	}
+	
+	
+	static class DiscardingOutputStream extends OutputStream {
+		
+		public void write(int b) {
+		}
+		
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
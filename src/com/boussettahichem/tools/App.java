@@ -1,47 +1,231 @@
 package com.boussettahichem.tools;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 
 public class App {
-
+	
+	//Constants - the settings given by name, as --setting=value, with the names of the routes file
+	static final String			OPTION_PREFIX		= "--";
+	static final List<String>	OPTION_NAMES		= Arrays.asList("executionMode", "window", "logLevel", "metricsPort", "warmConnections", "flushLatency", "queueCapacity", "overflow", "minTimeout", "maxTimeout", "balancing", "drainTimeout", "acceptors", "capture", "auditDirectory", "auditQueueCapacity", "auditOverflow");
+	
 	
 	public static void main(String[] args) {
 		
 		/*
-		  Args[0]: Src Port
-		  Args[1]: Dst IP
+		  Args[0]: Routes configuration file, when it is the only argument - see RouteConfiguration
+		  
+		  Args[0]: Src Port, or inherited
+		  Args[1]: Dst IP[:Port], followed by the other destinations separated by commas
 		  Args[2]: Dst Port
 		  Args[3]: Retry (yes or no)
 		  Args[4]: Number of retries
 		  Args[5]: Retry Timeout
 		  Args[6]: Private Key file path
+		  
+		  The other settings are named, as in the routes file, and may follow the arguments in any order - no argument is added after Args[6]
+		  --executionMode=Execution Mode (threads, nio or virtual)
+		  --window=Retry Window Size
+		  --logLevel=Log Level (trace, debug, info, warning, error or off)
+		  --metricsPort=Metrics Port
+		  --warmConnections=Warm Destination Connections
+		  --flushLatency=Source Flush Latency
+		  --queueCapacity=Submission Queue Capacity
+		  --overflow=Overflow Policy (block, drop or reject)
+		  --minTimeout=Min Retry Timeout
+		  --maxTimeout=Max Retry Timeout
+		  --balancing=Balancing Policy (outstanding or latency)
+		  --drainTimeout=seconds
+		  --acceptors=count
+		  --capture=Capture file path
+		  --auditDirectory=Audit directory path
+		  --auditQueueCapacity=records
+		  --auditOverflow=Audit Overflow Policy (block or drop)
+		  
+		  Args[0]: replay, to play a capture back against a proxy
+		  Args[1]: Capture file path
+		  Args[2]: Proxy IP:Port
+		  Args[3]: Speed (1 for the captured speed, max for as fast as possible)
+		  
+		  Args[0]: simulate, to run a test destination
+		  Args[1]: Port
+		  Args[2]: Sequence numbers (yes or no, as the retry logic of the proxy)
+		  Args[3]: Latency (constant:ms, uniform:min-max or exponential:mean)
+		  Args[4]: Dropped replies (%)
+		  Args[5]: Zero sequence numbers (%)
+		  Args[6]: Wrong sequence numbers (%)
+		  Args[7]: Test key file path
+		  
+		  Args[0]: audit, to print the records of an audit directory
+		  Args[1]: Audit directory path
+		  Args[2]: Session id or source IP, - for all
+		  Args[3]: Bytes the records hold, in hexadecimal
 		*/
 		
+		Properties options = new Properties();
+		
+		args = _parseOptions(args, options);
+		if (args == null) {
+			return;
+		}
+		
+		//Several routes from a configuration file
+		if (args.length == 1) {
+			if (options.isEmpty() == false) {
+				System.out.println("The named settings only apply to the route of the command line - set them in the configuration file");
+				return;
+			}
+			
+			ProxyRuntime		runtime			= new ProxyRuntime();
+			RouteConfiguration	configuration	= new RouteConfiguration(runtime);
+			
+			if (configuration.load(args[0])) {
+				runtime.addShutdownHook();
+				configuration.run();
+			} else {
+				System.out.println(String.format("Invalid configuration file %s - see the log", args[0]));
+			}
+			return;
+		}
+		
+		//Play a capture back
+		if ((args.length >= 3) && (args[0].equalsIgnoreCase("replay"))) {
+			int		separatorIndex	= args[2].lastIndexOf(':');
+			double	speed			= 1;
+			
+			if (separatorIndex < 0) {
+				System.out.println("The proxy's address must be IP:port");
+				return;
+			}
+			
+			if (args.length >= 4) {
+				speed = (args[3].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[3]));
+			}
+			
+			TrafficReplay replay = new TrafficReplay(args[1], args[2].substring(0, separatorIndex), Integer.parseInt(args[2].substring(separatorIndex + 1)), speed);
+			
+			if (replay.run() == false) {
+				System.out.println("Replay not completed - see the log");
+			}
+			return;
+		}
+		
+		//Run a test destination
+		if ((args.length >= 2) && (args[0].equalsIgnoreCase("simulate"))) {
+			DestinationSimulator simulator = new DestinationSimulator(Integer.parseInt(args[1]));
+			
+			if (args.length >= 3) {
+				simulator.setUseSequenceNumbers(args[2].equalsIgnoreCase("yes"));
+			}
+			
+			if (args.length >= 4) {
+				DestinationSimulator.Latency latency = DestinationSimulator.Latency.parse(args[3]);
+				
+				if (latency == null) {
+					System.out.println(String.format("Unknown latency %s", args[3]));
+					return;
+				}
+				simulator.setLatency(latency);
+			}
+			
+			simulator.setFaultRates(((args.length >= 5) ? Double.parseDouble(args[4]) : 0), ((args.length >= 6) ? Double.parseDouble(args[5]) : 0), ((args.length >= 7) ? Double.parseDouble(args[6]) : 0));
+			
+			if ((args.length >= 8) && (simulator.setKeyFile(args[7]) == false)) {
+				System.out.println(String.format("Invalid key file %s - see the log", args[7]));
+				return;
+			}
+			
+			simulator.run();
+			return;
+		}
+		
+		//Search the audit records
+		if ((args.length >= 2) && (args[0].equalsIgnoreCase("audit"))) {
+			AuditReader reader = new AuditReader(args[1]);
+			
+			if ((args.length >= 3) && (args[2].equals("-") == false)) {
+				reader.setFilter(args[2]);
+			}
+			
+			if ((args.length >= 4) && (reader.setPattern(args[3]) == false)) {
+				System.out.println(String.format("Invalid hexadecimal bytes %s", args[3]));
+				return;
+			}
+			
+			System.out.println(String.format("%d Records", reader.print(System.out)));
+			return;
+		}
+		
 		//Check Args
 		if (args.length < 3) {
 			System.out.println("There are missing arguments");
-			System.out.println("usage: java -jar DecryptionProxy.jar srcPort dstIP srcIP [yes/no] [retries] [timeout] [privKey]");
-			System.out.println("       srcPort: the local port on which the proxy will listen");
-			System.out.println("       dstIP: the remote host's IP address");
+			System.out.println("usage: java -jar DecryptionProxy.jar routes.properties");
+			System.out.println("       routes.properties: a file listing several routes served by one process, each with its own listening port, remote hosts and settings, as route.<name>.<setting> = value");
+			System.out.println("                The settings are listenPort, destinations, destinationPort, retry, retries, timeout, minTimeout, maxTimeout, window, key, warmConnections, flushLatency, queueCapacity, overflow, balancing, drainTimeout, acceptors and capture, which take the values of the arguments below");
+			System.out.println("                executionMode, logLevel, metricsPort, auditDirectory, auditQueueCapacity and auditOverflow apply to the whole process. The routes share the event loops, the timers, the decryption workers and the buffers");
+			System.out.println("   or: java -jar DecryptionProxy.jar srcPort dstIP srcIP [yes/no] [retries] [timeout] [privKey] [--executionMode=threads/nio/virtual] [--window=requests] [--logLevel=level] [--metricsPort=port] [--warmConnections=count] [--flushLatency=us] [--queueCapacity=requests] [--overflow=block/drop/reject] [--minTimeout=ms] [--maxTimeout=ms] [--balancing=outstanding/latency] [--drainTimeout=seconds] [--acceptors=count] [--capture=captureFile] [--auditDirectory=directory] [--auditQueueCapacity=records] [--auditOverflow=block/drop]");
+			System.out.println("   or: java -jar DecryptionProxy.jar replay captureFile proxyIP:port [speed]");
+			System.out.println("   or: java -jar DecryptionProxy.jar simulate port [yes/no] [latency] [dropped] [zeroSequence] [wrongSequence] [keyFile]");
+			System.out.println("   or: java -jar DecryptionProxy.jar audit auditDirectory [sessionId/sourceIP] [hexBytes]");
+			System.out.println("       srcPort: the local port on which the proxy will listen, or inherited to listen on the socket passed by the process starting the proxy (systemd socket activation). The inherited socket keeps the clients connecting while the proxy is restarted waiting instead of refused");
+			System.out.println("       dstIP: the remote host's IP address. Other remote hosts can follow, separated by commas, as IP or IP:port - the clients are balanced between them");
 			System.out.println("       dstPort: the remote host's port number");
 			System.out.println("       yes/no: if yes, the tunnel will use a retry logic to try reconnecting to the remote host if the connection is lost. If no, the retry logic won't be used. This parameter is optional.");
 			System.out.println("       retries: number of retries. This parameter is optional. If not specified, a retry number of 2 is used");
-			System.out.println("       timeout: the retry timeout in seconds, which is the time to wait until a response is received. This parameter is optional and defaults to 10 seconds");
+			System.out.println("       timeout: the retry timeout in seconds, which is the time to wait until a response is received, until the round trip time of the remote host is measured. The timeout then follows the round trip time and doubles on each retry. This parameter is optional and defaults to 10 seconds");
 			System.out.println("       privKey: The path to an RSA private key if data decryption should be enabled in the proxy. If this parameter is omitted, decryption is disabled");
+			System.out.println("                Keys for specific clients can follow, separated by commas, as sourceIP=path. The key files are reloaded when they change. The other clients are refused when there is no key for them");
+			System.out.println("                The keys may be PKCS#8 (BEGIN PRIVATE KEY) or PKCS#1 (BEGIN RSA PRIVATE KEY), in PEM or DER. A directory loads all its .pem, .key and .der files in parallel: each file is the key of the client it is named after (10.0.1.5.pem), default.pem is the key of the other clients");
+			System.out.println("       The settings below are named, with the names of the configuration file, and may follow the arguments above in any order");
+			System.out.println("       executionMode: threads, nio or virtual. threads serves each connection with blocking reader threads, nio serves all the connections from one selector event loop per core, virtual runs the blocking readers on virtual threads (Java 21 or later). This parameter is optional and defaults to threads");
+			System.out.println("       window: the number of requests of a client that can wait for their response at the same time when the retry logic is used. This parameter is optional and defaults to 8");
+			System.out.println("       logLevel: trace, debug, info, warning, error or off. trace also logs the content of every frame. This parameter is optional and defaults to info");
+			System.out.println("       metricsPort: the local port on which the metrics are served as text, at http://127.0.0.1:metricsPort/metrics. The metrics are also published over JMX. This parameter is optional, 0 or omitted disables the text endpoint");
+			System.out.println("       warmConnections: the number of idle connections to the remote host kept open ahead of the clients. The connections of the clients that disconnect are also kept for the next clients. This parameter is optional and defaults to 1");
+			System.out.println("       flushLatency: the time in microseconds a response may wait for the next ones so that they are written to the client together. This parameter is optional and defaults to 0, which only writes together the responses available at once");
+			System.out.println("       queueCapacity: the number of requests of a client that can wait to be sent to the remote host. This parameter is optional and defaults to 256");
+			System.out.println("       overflow: block, drop or reject, what happens to the requests of a client once its queue is full. block stops reading from the client until the queue drains, drop drops the oldest request waiting to be sent, reject answers the request with an invalid response {0x00, 0x00}. This parameter is optional and defaults to block");
+			System.out.println("       minTimeout: the lowest retry timeout in milliseconds. This parameter is optional and defaults to 10");
+			System.out.println("       maxTimeout: the highest retry timeout in milliseconds. This parameter is optional and defaults to 60000");
+			System.out.println("       balancing: outstanding or latency, how a client is routed when there are several remote hosts. outstanding chooses the host with the fewest requests waiting for a response, latency weights them by the round trip time of the host. A host that cannot be connected to is skipped until it is reachable again. This parameter is optional and defaults to outstanding");
+			System.out.println("       drainTimeout: when the proxy is stopped (SIGTERM), it stops accepting and reading requests, and waits up to this time in seconds for the requests in progress to be answered before closing the connections. This parameter is optional and defaults to 30");
+			System.out.println("       acceptors: the number of threads accepting the clients. Each one listens on its own socket when the system supports SO_REUSEPORT (Linux), and the clients connect to the remote host without holding the acceptors. This parameter is optional and defaults to 1");
+			System.out.println("       captureFile: a file recording every request and response of the clients with its time, to be played back with replay. This parameter is optional, omitted disables the capture");
+			System.out.println("       auditDirectory: a directory where the decrypted responses are kept for audit, in binary segment files of 64 MB. This parameter is optional, omitted disables the audit");
+			System.out.println("       auditQueueCapacity: the records waiting to be written to the audit directory. This parameter is optional and defaults to 65536");
+			System.out.println("       auditOverflow: block or drop, what happens to a record once the audit queue is full. block holds the response until the record is queued, so that none is missing from the audit, and counts the waits in audit.records.delayed. drop sends the response without its record, logs it and counts it in audit.records.dropped. This parameter is optional and defaults to block");
+			System.out.println("       replay: plays a capture back against a proxy, one connection per captured client, and logs the throughput and the latency of the responses. speed is 1 for the captured pace, 2 for twice faster, or max to send the requests without waiting. It defaults to 1");
+			System.out.println("       simulate: runs a test remote host replying to each request with its payload. yes prefixes the frames with the sequence number, as the retry logic of the proxy does. latency delays the replies, as constant:ms, uniform:min-max or exponential:mean in milliseconds");
+			System.out.println("                dropped, zeroSequence and wrongSequence are the percentages of the replies not sent, sent with the sequence number 0, or with a sequence number not sent by the proxy");
+			System.out.println("                The replies are encrypted with the key of keyFile, which the proxy decrypts with the same file - a test key is generated when the file does not exist");
+			System.out.println("       audit: prints the decrypted responses kept in an audit directory, all of them or those of a session id or a source IP, and only those holding the bytes given in hexadecimal");
 			return;
 		}
 		
-		int 		srcPort 		= Integer.parseInt(args[0]);
-		String		dstIP			= args[1];
+		boolean		useInheritedPort	= args[0].equalsIgnoreCase("inherited");
+		int 		srcPort 		= ((useInheritedPort) ? 0 : Integer.parseInt(args[0]));
+		String		dstEntries		= args[1];
 		int			dstPort			= Integer.parseInt(args[2]);
 		boolean		useRetryLogic	= false;
 		int			retryCount		= 0;
 		int 		retryTimeout	= 0;
+		int			retryWindowSize	= 0;
+		int			metricsPort		= 0;
+		int			warmConnections	= -1;
+		int			flushLatency	= 0;
+		int			queueCapacity	= 0;
+		int			minRetryTimeout	= 0;
+		int			maxRetryTimeout	= 0;
+		int			drainTimeout	= -1;
+		int			acceptorCount	= 0;
+		String		capturePath		= options.getProperty("capture", "");
+		String		auditPath		= options.getProperty("auditDirectory", "");
 		String		privKeyPath		= "";
-		byte[]		privKey			= null;
+		RetryProxy.ExecutionMode executionMode = RetryProxy.ExecutionMode.ExecutionModeThreads;
+		RetryProxy.OverflowPolicy overflowPolicy = RetryProxy.OverflowPolicy.OverflowPolicyBlock;
+		RetryProxy.BalancingPolicy balancingPolicy = RetryProxy.BalancingPolicy.BalancingPolicyLeastOutstanding;
 		
 		if (args.length >= 4) {
 			useRetryLogic = ((args[3].equalsIgnoreCase("yes") ? true : false));
@@ -55,40 +239,161 @@ public class App {
 			retryTimeout = Integer.parseInt(args[5]);
 		}
 		
-		if (args.length >= 7) {
+		if ((args.length >= 7) && (args[6].equals("-") == false)) {
 			privKeyPath = args[6];
+		}
+		
+		
+		if ((options.getProperty("executionMode") != null) && (RetryProxy.parseExecutionMode(options.getProperty("executionMode")) != null)) {
+			executionMode = RetryProxy.parseExecutionMode(options.getProperty("executionMode"));
+		}
+		
+		
+		if (options.getProperty("window") != null) {
+			retryWindowSize = Integer.parseInt(options.getProperty("window"));
+		}
+		
+		
+		if (options.getProperty("logLevel") != null) {
+			Logger.LogLevel logLevel = Logger.parseLevel(options.getProperty("logLevel"));
 			
-			//Load the key from file
-			try {
-				File 				keyFile			= new File(privKeyPath);
-				FileInputStream		keyFileStream	= new FileInputStream(keyFile);
-				
-				privKey = new byte[(int)keyFile.length()];
-				keyFileStream.read(privKey);
-				keyFileStream.close();
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				
-				Logger.getSharedLogger().log(String.format("App::main [Private Key File Not Found At Path: %s]", privKeyPath));
-			} catch (IOException e) {
-				e.printStackTrace();
-				Logger.getSharedLogger().log("App::main [I/O Error when reading the private key from file]");
+			if (logLevel != null) {
+				Logger.getSharedLogger().setLevel(logLevel);
+			} else {
+				System.out.println(String.format("Unknown log level %s - using info", options.getProperty("logLevel")));
 			}
 		}
 		
 		
+		if (options.getProperty("metricsPort") != null) {
+			metricsPort = Integer.parseInt(options.getProperty("metricsPort"));
+		}
+		
+		
+		if (options.getProperty("warmConnections") != null) {
+			warmConnections = Integer.parseInt(options.getProperty("warmConnections"));
+		}
+		
+		
+		if (options.getProperty("flushLatency") != null) {
+			flushLatency = Integer.parseInt(options.getProperty("flushLatency"));
+		}
+		
+		
+		if (options.getProperty("queueCapacity") != null) {
+			queueCapacity = Integer.parseInt(options.getProperty("queueCapacity"));
+		}
+		
+		
+		if ((options.getProperty("overflow") != null) && (RetryProxy.parseOverflowPolicy(options.getProperty("overflow")) != null)) {
+			overflowPolicy = RetryProxy.parseOverflowPolicy(options.getProperty("overflow"));
+		}
+		
+		
+		if (options.getProperty("minTimeout") != null) {
+			minRetryTimeout = Integer.parseInt(options.getProperty("minTimeout"));
+		}
+		
+		
+		if (options.getProperty("maxTimeout") != null) {
+			maxRetryTimeout = Integer.parseInt(options.getProperty("maxTimeout"));
+		}
+		
+		
+		if ((options.getProperty("balancing") != null) && (RetryProxy.parseBalancingPolicy(options.getProperty("balancing")) != null)) {
+			balancingPolicy = RetryProxy.parseBalancingPolicy(options.getProperty("balancing"));
+		}
+		
+		
+		if (options.getProperty("drainTimeout") != null) {
+			drainTimeout = Integer.parseInt(options.getProperty("drainTimeout"));
+		}
+		
+		
+		if (options.getProperty("acceptors") != null) {
+			acceptorCount = Integer.parseInt(options.getProperty("acceptors"));
+		}
+		
+		
 		//Initialize the proxy and start it
-		RetryProxy proxy = new RetryProxy();
+		ProxyRuntime	runtime		= new ProxyRuntime();
+		RetryProxy		proxy		= new RetryProxy(runtime);
+		
+		if (useInheritedPort) {
+			if (proxy.setUseInheritedChannel() == false) {
+				System.out.println("No listening socket was inherited");
+				return;
+			}
+		} else {
+			proxy.setSourcePort(srcPort);
+		}
+		proxy.setBalancingPolicy(balancingPolicy);
 		
-		proxy.setSourcePort(srcPort);
-		proxy.setDestinationIP(dstIP);
-		proxy.setDestinationPort(dstPort);
+		//The destinations - IP[:port][,IP[:port]...], dstPort is the port of the destinations without one
+		proxy.setDestinations(dstEntries, dstPort);
 		proxy.setUseNetworkRetry(useRetryLogic);
 		proxy.setRetryCount(retryCount);
 		proxy.setWaitForReplyTimeout(retryTimeout);
-		proxy.setPrivateKey(privKey);
+		proxy.setRetryWindowSize(retryWindowSize);
+		proxy.setExecutionMode(executionMode);
+		proxy.setMetricsPort(metricsPort);
+		proxy.setWarmDestinationConnectionCount(warmConnections);
+		proxy.setSourceFlushLatency(flushLatency);
+		proxy.setSubmissionQueueCapacity(queueCapacity);
+		proxy.setOverflowPolicy(overflowPolicy);
+		proxy.setMinRetryTimeout(minRetryTimeout);
+		proxy.setMaxRetryTimeout(maxRetryTimeout);
+		proxy.setDrainTimeout(drainTimeout);
+		proxy.setAcceptorCount(acceptorCount);
+		
+		if (options.getProperty("auditQueueCapacity") != null) {
+			runtime.setAuditQueueCapacity(Integer.parseInt(options.getProperty("auditQueueCapacity")));
+		}
+		
+		if ((options.getProperty("auditOverflow") != null) && (AuditLog.parseOverflowPolicy(options.getProperty("auditOverflow")) != null)) {
+			runtime.setAuditOverflowPolicy(AuditLog.parseOverflowPolicy(options.getProperty("auditOverflow")));
+		}
+		
+		if ((auditPath.length() > 0) && (runtime.setAuditDirectory(auditPath) == false)) {
+			System.out.println(String.format("Failed to open the audit directory %s", auditPath));
+			return;
+		}
+		
+		if ((capturePath.length() > 0) && (proxy.setCaptureFile(capturePath) == false)) {
+			System.out.println(String.format("Failed to create the capture file %s", capturePath));
+			return;
+		}
 		
+		//Load the keys - path[,sourceIP=path...]
+		if (privKeyPath.length() > 0) {
+			proxy.addPrivateKeyFiles(privKeyPath);
+		}
+		
+		runtime.addShutdownHook();
 		proxy.runServer();
 	}
-
+	
+	//Moves the named settings to options - returns the other arguments, or null if a setting is unknown
+	static String[] _parseOptions(String[] args, Properties options) {
+		List<String> arguments = new ArrayList<String>();
+		
+		for (String arg : args) {
+			if (arg.startsWith(OPTION_PREFIX) == false) {
+				arguments.add(arg);
+				continue;
+			}
+			
+			int		separatorIndex	= arg.indexOf('=');
+			String	name			= ((separatorIndex > 0) ? arg.substring(OPTION_PREFIX.length(), separatorIndex) : "");
+			
+			if (OPTION_NAMES.contains(name) == false) {
+				System.out.println(String.format("Unknown setting %s - the named settings are --%s=value", arg, String.join("=value, --", OPTION_NAMES)));
+				return null;
+			}
+			options.setProperty(name, arg.substring(separatorIndex + 1));
+		}
+		
+		return arguments.toArray(new String[arguments.size()]);
+	}
+	
 }
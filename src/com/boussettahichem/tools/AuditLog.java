@@ -0,0 +1,306 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Keeps the decrypted responses for audit, as binary records appended to memory mapped segment files of a directory
+//The sessions queue the records without locking - one background thread writes them and opens a new segment when the current one is full
+//The records are queued off the event loops, by the decryption workers and the reader threads. By default a record that finds the queue full
+//waits for the writer, so that no response is lost - the waits are counted in audit.records.delayed. With OverflowPolicyDrop, an explicit choice,
+//the record is dropped instead: each drop is logged with its session and counted in audit.records.dropped
+//
+//	Segment:	magic "RPXA" (4) | version (4) | creation time in ms since the epoch (8) | records
+//	Record:		length of the rest of the record (4) | time in ms since the epoch (8) | session id (4) | source address length (1) | source address | payload
+//
+//The numbers are big endian. A segment is truncated to its records when it is closed - a length of 0 ends the records of a segment left by a crash
+//The segments are named audit-000001.seg, audit-000002.seg... - AuditReader decodes and searches them
+public class AuditLog implements Runnable {
+	
+	//Constants
+	static final int		MAGIC					= 0x52505841;		//RPXA
+	static final int		VERSION					= 1;
+	static final int		SEGMENT_HEADER_LENGTH	= 16;
+	static final int		RECORD_HEADER_LENGTH	= 17;
+	static final int		DEFAULT_SEGMENT_SIZE	= 64 * 1024 * 1024;
+	static final int		DEFAULT_QUEUE_CAPACITY	= 65536;			//The records wait, or are dropped, when the writer falls behind
+	static final long		WRITER_IDLE_TIME		= 1;				//Milliseconds the writer waits when the queue is empty
+	static final String		SEGMENT_PREFIX			= "audit-";
+	static final String		SEGMENT_EXTENSION		= ".seg";
+	
+	//Metrics
+	static final LongAdder	g_recordsWritten		= Metrics.getSharedMetrics().getCounter(Metrics.AUDIT_RECORDS_WRITTEN);
+	static final LongAdder	g_recordsDropped		= Metrics.getSharedMetrics().getCounter(Metrics.AUDIT_RECORDS_DROPPED);
+	static final LongAdder	g_recordsDelayed		= Metrics.getSharedMetrics().getCounter(Metrics.AUDIT_RECORDS_DELAYED);
+	
+	//What happens to a record once the queue is full
+	enum OverflowPolicy {
+		OverflowPolicyBlock,		//Wait for the writer - the responses of the session wait with it
+		OverflowPolicyDrop			//Drop the record, and log it
+	}
+	
+	//Member Variables
+	Path								_directory;
+	int									_segmentSize;
+	int									_queueCapacity;
+	OverflowPolicy						_overflowPolicy;
+	ConcurrentLinkedQueue<AuditRecord>	_queue;
+	AtomicInteger						_queuedCount;
+	volatile boolean					_isOverflowing;		//Logged once each time the queue overflows
+	volatile boolean					_isClosed;
+	Thread								_writer;
+	
+	//Writer Variables - only used by the writer thread
+	int									_segmentIndex;
+	FileChannel							_segmentChannel;
+	MappedByteBuffer					_segment;
+	
+	
+	//Constructor
+	public AuditLog(String directory, int segmentSize, int queueCapacity, OverflowPolicy overflowPolicy) throws IOException {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "AuditLog::AuditLog [%s - %d bytes per segment - %d records queued at most - %s]", directory, segmentSize, queueCapacity, overflowPolicy.name());
+		
+		_directory		= Paths.get(directory);
+		_segmentSize	= Math.max(segmentSize, SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + 255 + 0xFFFF);
+		_queueCapacity	= ((queueCapacity > 0) ? queueCapacity : DEFAULT_QUEUE_CAPACITY);
+		_queue			= new ConcurrentLinkedQueue<AuditRecord>();
+		_overflowPolicy	= overflowPolicy;
+		_queuedCount	= new AtomicInteger(0);
+		_isOverflowing	= false;
+		_isClosed		= false;
+		_segmentChannel	= null;
+		_segment		= null;
+		
+		Files.createDirectories(_directory);
+		
+		//The numbering goes on from the segments already in the directory
+		_segmentIndex = 0;
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(_directory, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+			for (Path segment : segments) {
+				_segmentIndex = Math.max(_segmentIndex, getSegmentIndex(segment));
+			}
+		}
+		
+		_writer = new Thread(this, "AuditLog");
+		_writer.setDaemon(true);
+		_writer.start();
+	}
+	
+	
+	//Public Functions
+	
+	//Copies the payload between its position and its limit - the position is not moved
+	//Waits while the queue is full, unless the overflow policy is OverflowPolicyDrop
+	//Returns false when the record is dropped because the queue is full or the log is closed
+	public boolean record(int sessionId, String sourceAddress, ByteBuffer payload) {
+		boolean isDelayed = false;
+		
+		while (true) {
+			if (_isClosed) {
+				_drop(sessionId, sourceAddress, payload.remaining(), "Closed");
+				return false;
+			}
+			
+			if (_queuedCount.incrementAndGet() <= _queueCapacity) {
+				break;
+			}
+			_queuedCount.decrementAndGet();
+			
+			if (_isOverflowing == false) {
+				_isOverflowing = true;
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "AuditLog::record [Writer behind - %d queued at most - %s]", _queueCapacity, _overflowPolicy.name());
+			}
+			
+			if (_overflowPolicy == OverflowPolicy.OverflowPolicyDrop) {
+				_drop(sessionId, sourceAddress, payload.remaining(), "Queue Full");
+				return false;
+			}
+			
+			if (isDelayed == false) {
+				isDelayed = true;
+				g_recordsDelayed.increment();
+			}
+			
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_IDLE_TIME));
+		}
+		
+		byte[] data = new byte[payload.remaining()];
+		payload.duplicate().get(data);
+		
+		_queue.offer(new AuditRecord(System.currentTimeMillis(), sessionId, sourceAddress, data));
+		return true;
+	}
+	
+	//Writes the records queued, then closes the segment
+	public void close() {
+		_isClosed = true;
+		
+		LockSupport.unpark(_writer);
+		
+		try {
+			_writer.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	//The writer thread
+	public void run() {
+		while (true) {
+			AuditRecord record = _queue.poll();
+			
+			if (record == null) {
+				if (_isClosed) {
+					break;
+				}
+				
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_IDLE_TIME));
+				continue;
+			}
+			
+			_queuedCount.decrementAndGet();
+			_isOverflowing = false;
+			
+			_write(record);
+		}
+		
+		_closeSegment();
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "AuditLog::run [Closed - %d Records Written - %d Dropped]", g_recordsWritten.sum(), g_recordsDropped.sum());
+	}
+	
+	//The index in the name of a segment - 0 when the name is not one of a segment
+	static public int getSegmentIndex(Path segment) {
+		String name = segment.getFileName().toString();
+		
+		if ((name.startsWith(SEGMENT_PREFIX) == false) || (name.endsWith(SEGMENT_EXTENSION) == false)) {
+			return 0;
+		}
+		
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	
+	//Parses an overflow policy name: block or drop - returns null for an unknown name
+	static public OverflowPolicy parseOverflowPolicy(String name) {
+		if (name.equalsIgnoreCase("block")) {
+			return OverflowPolicy.OverflowPolicyBlock;
+		} else if (name.equalsIgnoreCase("drop")) {
+			return OverflowPolicy.OverflowPolicyDrop;
+		}
+		
+		return null;
+	}
+	
+	
+	//Private Functions
+	
+	void _write(AuditRecord record) {
+		byte[]	address	= record._sourceAddress;
+		int		length	= RECORD_HEADER_LENGTH + address.length + record._payload.length;
+		
+		if ((_segment == null) || (_segment.remaining() < length)) {
+			_closeSegment();
+			
+			if (_openSegment() == false) {
+				_drop(record._sessionId, new String(address, StandardCharsets.US_ASCII), record._payload.length, "No Segment");
+				return;
+			}
+		}
+		
+		_segment.putInt(length - 4);
+		_segment.putLong(record._time);
+		_segment.putInt(record._sessionId);
+		_segment.put((byte)address.length);
+		_segment.put(address);
+		_segment.put(record._payload);
+		
+		g_recordsWritten.increment();
+	}
+	
+	//Every record lost is logged, so that the gaps of the audit can be told apart from the responses never sent
+	void _drop(int sessionId, String sourceAddress, int length, String reason) {
+		g_recordsDropped.increment();
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "AuditLog::_drop [%s - Record Dropped - Session #%d %s - %d bytes]", reason, sessionId, sourceAddress, length);
+	}
+	
+	boolean _openSegment() {
+		//A name that cannot be created is skipped
+		Path path = _directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, ++_segmentIndex, SEGMENT_EXTENSION));
+		
+		try {
+			_segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			_segment		= _segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "AuditLog::_openSegment [Failed to create %s - %s]", path, e.toString());
+			
+			_closeSegment();
+			return false;
+		}
+		
+		_segment.putInt(MAGIC);
+		_segment.putInt(VERSION);
+		_segment.putLong(System.currentTimeMillis());
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "AuditLog::_openSegment [%s]", path);
+		
+		return true;
+	}
+	
+	//The segment is written to the disk and truncated to its records
+	void _closeSegment() {
+		if (_segmentChannel == null) {
+			return;
+		}
+		
+		try {
+			if (_segment != null) {
+				_segment.force();
+				_segmentChannel.truncate(_segment.position());
+			}
+			_segmentChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "AuditLog::_closeSegment [Failed to close the segment %d]", _segmentIndex);
+		}
+		
+		_segmentChannel	= null;
+		_segment		= null;
+	}
+	
+	
+	//Record Class
+	
+	static class AuditRecord {
+		
+		long		_time;
+		int			_sessionId;
+		byte[]		_sourceAddress;
+		byte[]		_payload;
+		
+		public AuditRecord(long time, int sessionId, String sourceAddress, byte[] payload) {
+			_time			= time;
+			_sessionId		= sessionId;
+			_sourceAddress	= sourceAddress.getBytes(StandardCharsets.US_ASCII);
+			_payload		= payload;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+//Decodes the segments of an AuditLog, in order, and prints the records matching a session id or a source address, and a sequence of bytes
+//The segments are mapped read only - a segment being written by a proxy is read up to its last complete record
+public class AuditReader {
+	
+	//Member Variables
+	String					_directory;
+	int						_sessionId;			//0 matches every session
+	String					_sourceAddress;		//Null matches every source
+	byte[]					_pattern;			//Null matches every payload
+	SimpleDateFormat		_dateFormat;
+	
+	
+	//Constructor
+	public AuditReader(String directory) {
+		_directory		= directory;
+		_sessionId		= 0;
+		_sourceAddress	= null;
+		_pattern		= null;
+		_dateFormat		= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	}
+	
+	
+	//Properties
+	
+	//A session id, a source address, or null for all the records
+	public void setFilter(String filter) {
+		_sessionId		= 0;
+		_sourceAddress	= null;
+		
+		if (filter == null) {
+			return;
+		}
+		
+		try {
+			_sessionId = Integer.parseInt(filter);
+		} catch (NumberFormatException e) {
+			_sourceAddress = filter;
+		}
+	}
+	
+	//Bytes in hexadecimal the payloads must hold, or null for all the payloads
+	public boolean setPattern(String hexPattern) {
+		if (hexPattern == null) {
+			_pattern = null;
+			return true;
+		}
+		
+		if ((hexPattern.length() == 0) || (hexPattern.length() % 2 != 0)) {
+			return false;
+		}
+		
+		_pattern = new byte[hexPattern.length() / 2];
+		
+		for (int i = 0; i < _pattern.length; i++) {
+			int high	= Character.digit(hexPattern.charAt(i * 2), 16);
+			int low		= Character.digit(hexPattern.charAt(i * 2 + 1), 16);
+			
+			if ((high < 0) || (low < 0)) {
+				return false;
+			}
+			_pattern[i] = (byte)((high << 4) | low);
+		}
+		
+		return true;
+	}
+	
+	
+	//Public Functions
+	
+	//Prints the matching records - returns their number, or -1 if the directory cannot be read
+	public int print(PrintStream out) {
+		List<Path>	segments	= new ArrayList<Path>();
+		int			matchCount	= 0;
+		
+		try (DirectoryStream<Path> directory = Files.newDirectoryStream(Paths.get(_directory), AuditLog.SEGMENT_PREFIX + "*" + AuditLog.SEGMENT_EXTENSION)) {
+			for (Path segment : directory) {
+				if (AuditLog.getSegmentIndex(segment) > 0) {
+					segments.add(segment);
+				}
+			}
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "AuditReader::print [Failed to list %s - %s]", _directory, e.toString());
+			return -1;
+		}
+		
+		Collections.sort(segments, new Comparator<Path>() {
+			public int compare(Path first, Path second) {
+				return Integer.compare(AuditLog.getSegmentIndex(first), AuditLog.getSegmentIndex(second));
+			}
+		});
+		
+		for (Path segment : segments) {
+			try {
+				matchCount += _printSegment(segment, out);
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "AuditReader::print [Failed to read %s - %s]", segment, e.toString());
+			}
+		}
+		
+		return matchCount;
+	}
+	
+	
+	//Private Functions
+	
+	int _printSegment(Path path, PrintStream out) throws IOException {
+		int matchCount = 0;
+		
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			
+			if (size < AuditLog.SEGMENT_HEADER_LENGTH) {
+				return 0;
+			}
+			
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			
+			if ((segment.getInt() != AuditLog.MAGIC) || (segment.getInt() != AuditLog.VERSION)) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "AuditReader::_printSegment [%s is not an audit segment]", path);
+				return 0;
+			}
+			segment.getLong();
+			
+			while (segment.remaining() >= 4) {
+				int length = segment.getInt();
+				
+				//The end of the records of a segment not closed, or a record not complete
+				if ((length < AuditLog.RECORD_HEADER_LENGTH - 4) || (length > segment.remaining())) {
+					break;
+				}
+				
+				int		recordEnd		= segment.position() + length;
+				long	time			= segment.getLong();
+				int		sessionId		= segment.getInt();
+				int		addressLength	= segment.get() & 0xFF;
+				byte[]	address			= new byte[addressLength];
+				
+				segment.get(address);
+				
+				String	sourceAddress	= new String(address, StandardCharsets.US_ASCII);
+				int		payloadOffset	= segment.position();
+				int		payloadLength	= recordEnd - payloadOffset;
+				
+				segment.position(recordEnd);
+				
+				if ((_sessionId != 0) && (sessionId != _sessionId)) {
+					continue;
+				}
+				
+				if ((_sourceAddress != null) && (sourceAddress.equals(_sourceAddress) == false)) {
+					continue;
+				}
+				
+				byte[] payload = new byte[payloadLength];
+				
+				segment.position(payloadOffset);
+				segment.get(payload);
+				
+				if ((_pattern != null) && (_indexOf(payload, _pattern) < 0)) {
+					continue;
+				}
+				
+				matchCount++;
+				out.println(String.format("%s Session #%d %s %s", _dateFormat.format(new Date(time)), sessionId, sourceAddress, HexDump.of(payload)));
+			}
+		}
+		
+		return matchCount;
+	}
+	
+	static int _indexOf(byte[] data, byte[] pattern) {
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			int j = 0;
+			
+			while ((j < pattern.length) && (data[i + j] == pattern[j])) {
+				j++;
+			}
+			
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+}
@@ -1,15 +1,31 @@
 package com.boussettahichem.tools;
 
+import java.util.Arrays;
+
 public class Base64Codec {
 
     private final static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
     private static int[]  toInt   = new int[128];
 
+    private final static byte INVALID = -1;
+    private final static byte WHITESPACE = -2;
+
+    private static byte[] fromByte = new byte[256];
+
     static {
         for(int i=0; i< ALPHABET.length; i++){
             toInt[ALPHABET[i]]= i;
         }
+
+        Arrays.fill(fromByte, INVALID);
+        for(int i=0; i< ALPHABET.length; i++){
+            fromByte[ALPHABET[i]]= (byte)i;
+        }
+        fromByte[' ']= WHITESPACE;
+        fromByte['\t']= WHITESPACE;
+        fromByte['\r']= WHITESPACE;
+        fromByte['\n']= WHITESPACE;
     }
 
     /**
@@ -70,4 +86,40 @@ public class Base64Codec {
         return buffer;
     } 
 
+    /**
+     * Decodes the Base64 characters found in length bytes of src, starting at
+     * offset, straight into dst - without going through a String. Line breaks
+     * and spaces are skipped, decoding stops at the first padding character.
+     *
+     * @param dst the decoded bytes, with room for length * 3 / 4 bytes from dstOffset
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if a character is not Base64
+     */
+    public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset){
+        int end = offset + length;
+        int index = dstOffset;
+        int bits = 0;
+        int bitCount = 0;
+        for(int i=offset; i< end; i++){
+            int c = src[i] & 0xFF;
+            if(c == '='){
+                break;
+            }
+            int value = fromByte[c];
+            if(value < 0){
+                if(value == WHITESPACE){
+                    continue;
+                }
+                throw new IllegalArgumentException("Invalid Base64 character 0x" + Integer.toHexString(c));
+            }
+            bits = ((bits << 6) | value) & 0xFFFFFF;
+            bitCount += 6;
+            if(bitCount >= 8){
+                bitCount -= 8;
+                dst[index++]= (byte)(bits >> bitCount);
+            }
+        }
+        return index - dstOffset;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package com.boussettahichem.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//Direct buffers reused for the frames, in power of two size classes
+//A buffer goes back to its size class when its last reference is released - a buffer never released is collected as usual
+public class BufferPool {
+	
+	//Constants
+	static final int		MIN_BUFFER_SHIFT				= 8;					//256 bytes
+	static final int		MAX_BUFFER_SHIFT				= 17;					//128 KB - the largest frame with its header and sequence number
+	static final int		MAX_POOLED_BYTES_PER_CLASS		= 4 * 1024 * 1024;		//Free buffers kept per size class
+	
+	//Metrics
+	static final LongAdder	g_buffersAllocated				= Metrics.getSharedMetrics().getCounter(Metrics.BUFFERS_ALLOCATED);
+	static final LongAdder	g_buffersReused					= Metrics.getSharedMetrics().getCounter(Metrics.BUFFERS_REUSED);
+	
+	//Shared Pool
+	private static final BufferPool g_sharedBufferPool = new BufferPool();
+	
+	//Member Variables
+	SizeClass[]				_sizeClasses;
+	
+	
+	//Constructor
+	public BufferPool() {
+		_sizeClasses = new SizeClass[MAX_BUFFER_SHIFT - MIN_BUFFER_SHIFT + 1];
+		
+		for (int i = 0; i < _sizeClasses.length; i++) {
+			_sizeClasses[i] = new SizeClass(1 << (MIN_BUFFER_SHIFT + i));
+		}
+	}
+	
+	static public BufferPool getSharedBufferPool() {
+		return g_sharedBufferPool;
+	}
+	
+	
+	//Public Functions
+	
+	//Returns a buffer with one reference, positioned at 0 with its limit at length
+	public PooledBuffer acquire(int length) {
+		SizeClass		sizeClass	= _getSizeClass(length);
+		PooledBuffer	buffer		= null;
+		
+		//Larger buffers are not pooled
+		if (sizeClass == null) {
+			g_buffersAllocated.increment();
+			
+			buffer = new PooledBuffer(this, null, ByteBuffer.allocateDirect(length));
+		} else if ((buffer = sizeClass._freeBuffers.poll()) != null) {
+			g_buffersReused.increment();
+			
+			sizeClass._freeCount.decrementAndGet();
+		} else {
+			g_buffersAllocated.increment();
+			
+			buffer = new PooledBuffer(this, sizeClass, ByteBuffer.allocateDirect(sizeClass._bufferLength));
+		}
+		
+		buffer._reset(length);
+		
+		return buffer;
+	}
+	
+	
+	//Private Functions
+	
+	//Called when the last reference of the buffer is released
+	void _recycle(PooledBuffer buffer) {
+		SizeClass sizeClass = buffer._sizeClass;
+		
+		if (sizeClass == null) {
+			return;
+		}
+		
+		if (sizeClass._freeCount.incrementAndGet() > sizeClass._maxFreeCount) {
+			sizeClass._freeCount.decrementAndGet();
+			return;
+		}
+		
+		sizeClass._freeBuffers.offer(buffer);
+	}
+	
+	SizeClass _getSizeClass(int length) {
+		for (int i = 0; i < _sizeClasses.length; i++) {
+			if (length <= _sizeClasses[i]._bufferLength) {
+				return _sizeClasses[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	//Size Class
+	
+	static class SizeClass {
+		
+		int										_bufferLength;
+		int										_maxFreeCount;
+		ConcurrentLinkedQueue<PooledBuffer>		_freeBuffers;
+		AtomicInteger							_freeCount;
+		
+		public SizeClass(int bufferLength) {
+			_bufferLength	= bufferLength;
+			_maxFreeCount	= MAX_POOLED_BYTES_PER_CLASS / bufferLength;
+			_freeBuffers	= new ConcurrentLinkedQueue<PooledBuffer>();
+			_freeCount		= new AtomicInteger(0);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class ChannelAcceptor implements EventLoop.SelectionHandler {
+	
+	//Member Variables
+	RetryProxy				_retryProxy;
+	ServerSocketChannel		_serverChannel;
+	EventLoopGroup			_eventLoopGroup;
+	EventLoop				_eventLoop;			//The loop accepting the connections
+	
+	
+	//Constructor
+	public ChannelAcceptor(RetryProxy proxy, ServerSocketChannel serverChannel, EventLoopGroup eventLoopGroup) throws IOException {
+		_retryProxy		= proxy;
+		_serverChannel	= serverChannel;
+		_eventLoopGroup	= eventLoopGroup;
+		_eventLoop		= null;
+		
+		_serverChannel.configureBlocking(false);
+	}
+	
+	
+	//Public Functions
+	public void start() {
+		_eventLoop = _eventLoopGroup.next();
+		_eventLoop.register(_serverChannel, SelectionKey.OP_ACCEPT, this);
+	}
+	
+	//Stops accepting - the channel is closed by its loop so that the socket is released by the next select
+	public void close() {
+		_eventLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					_serverChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelAcceptor::close [Failed to close the server channel]");
+				}
+			}
+		});
+	}
+	
+	public void handleSelection(SelectionKey key) {
+		SocketChannel channel = null;
+		
+		//Accept all the pending connections
+		do {
+			try {
+				channel = _serverChannel.accept();
+				
+				if (channel != null) {
+					String remoteAddress = channel.socket().getInetAddress().getHostAddress();
+					
+					_retryProxy.acceptConnection(new ChannelConnection(_eventLoopGroup.next(), channel, remoteAddress));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelAcceptor::handleSelection [Failed to Accept Connection]");
+				channel = null;
+			}
+		} while (channel != null);
+	}
+	
+	public void handleRegistrationFailure(IOException e) {
+		e.printStackTrace();
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "ChannelAcceptor::handleRegistrationFailure [Failed to listen for connections]");
+	}
+	
+	//The connection being accepted is lost - the acceptor keeps listening for the next ones
+	public void handleSelectionFailure(RuntimeException e) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelAcceptor::handleSelectionFailure [Failed to Accept Connection - %s]", e.toString());
+	}
+}
@@ -0,0 +1,405 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ChannelConnection extends ProxyConnection implements EventLoop.SelectionHandler, FrameDecoder.FrameHandler {
+	
+	//Constants
+	static final int					MAX_GATHERED_BUFFER_COUNT	= 128;
+	static final int					MAX_QUEUED_BUFFER_COUNT		= 256;		//The connection is not writable beyond this count
+	static final int					MIN_QUEUED_BUFFER_COUNT		= MAX_QUEUED_BUFFER_COUNT / 2;	//The session is told the connection is writable again below this count
+	
+	//Member Variables
+	EventLoop							_eventLoop;
+	SocketChannel						_channel;
+	SelectionKey						_selectionKey;
+	String								_remoteAddress;
+	FrameDecoder						_inData;
+	ConcurrentLinkedQueue<PooledBuffer>	_outQueue;				//Duplicates of the buffers written, holding a reference until they are written
+	ByteBuffer[]						_gatheredBuffers;		//Used by the event loop only
+	AtomicBoolean						_isFlushScheduled;
+	AtomicInteger						_queuedBufferCount;
+	AtomicInteger						_waitingWriterCount;
+	AtomicBoolean						_isWriteBlocked;		//Set once the queue goes beyond its maximum, cleared once it falls below its minimum
+	Lock								_writableLock;
+	Condition							_writable;
+	volatile boolean					_isConnecting;
+	volatile boolean					_isReadingPaused;
+	volatile boolean					_isClosed;
+	Runnable							_flushTask;
+	
+	
+	//Constructor
+	public ChannelConnection(EventLoop eventLoop, SocketChannel channel, String remoteAddress) throws IOException {
+		_eventLoop			= eventLoop;
+		_channel			= channel;
+		_selectionKey		= null;
+		_remoteAddress		= remoteAddress;
+		_inData				= new FrameDecoder();
+		_outQueue			= new ConcurrentLinkedQueue<PooledBuffer>();
+		_gatheredBuffers	= new ByteBuffer[MAX_GATHERED_BUFFER_COUNT];
+		_isFlushScheduled	= new AtomicBoolean(false);
+		_queuedBufferCount	= new AtomicInteger(0);
+		_waitingWriterCount	= new AtomicInteger(0);
+		_isWriteBlocked		= new AtomicBoolean(false);
+		_writableLock		= new ReentrantLock();
+		_writable			= _writableLock.newCondition();
+		_isConnecting		= false;
+		_isReadingPaused	= false;
+		_isClosed			= false;
+		_flushTask			= new Runnable() {
+			public void run() {
+				_isFlushScheduled.set(false);
+				_flush();
+			}
+		};
+		
+		_channel.configureBlocking(false);
+	}
+	
+	//Starts a non blocking connection - writes are queued until the connection is established
+	public static ChannelConnection connect(EventLoop eventLoop, String ip, int port) throws IOException {
+		SocketChannel		channel		= SocketChannel.open();
+		ChannelConnection	connection	= new ChannelConnection(eventLoop, channel, ip);
+		
+		channel.socket().setKeepAlive(true);
+		connection._isConnecting = (channel.connect(new InetSocketAddress(ip, port)) == false);
+		
+		return connection;
+	}
+	
+	
+	//Public Functions
+	public void start(ProxySession session, boolean isSource) {
+		_session		= session;
+		_isSource		= isSource;
+		
+		_eventLoop.register(_channel, (_isConnecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ), this);
+	}
+	
+	public void write(PooledBuffer[] buffers, int offset, int length) throws IOException {
+		if (_isClosed) {
+			throw new IOException("Channel closed");
+		}
+		
+		for (int i = offset; i < offset + length; i++) {
+			_outQueue.add(buffers[i].retainedDuplicate());
+		}
+		
+		if (_queuedBufferCount.addAndGet(length) > MAX_QUEUED_BUFFER_COUNT) {
+			_isWriteBlocked.set(true);
+			
+			//The event loop may have written the queue meanwhile
+			if (_queuedBufferCount.get() <= MIN_QUEUED_BUFFER_COUNT) {
+				_isWriteBlocked.compareAndSet(true, false);
+			}
+		}
+		
+		//Writes are performed by the event loop
+		if (_eventLoop.isInEventLoop()) {
+			_flush();
+			return;
+		}
+		
+		if (_isFlushScheduled.compareAndSet(false, true)) {
+			_eventLoop.execute(_flushTask);
+		}
+		
+		//A slow destination holds back the writer like a blocking socket would, instead of the buffers piling up
+		//An event loop never waits - it would stall all its channels. A source is written with the session's source lock held,
+		//which the event loop of the destination takes: the session pauses the destination instead, until the source is writable
+		if ((_isSource == false) && (EventLoop.isEventLoopThread() == false) && (_queuedBufferCount.get() > MAX_QUEUED_BUFFER_COUNT)) {
+			_awaitWritable();
+		}
+	}
+	
+	public boolean isConnected() {
+		return ((_isClosed == false) && ((_isConnecting) || (_channel.isConnected())));
+	}
+	
+	public boolean isEstablished() {
+		return ((_isClosed == false) && (_isConnecting == false) && (_channel.isConnected()));
+	}
+	
+	public boolean hasPendingWrites() {
+		return ((_isClosed == false) && (_queuedBufferCount.get() > 0));
+	}
+	
+	public boolean isWritable() {
+		return ((_isClosed) || (_isWriteBlocked.get() == false));
+	}
+	
+	//The read interest is removed by the event loop the next time the channel is readable
+	public void pauseReading() {
+		_isReadingPaused = true;
+	}
+	
+	public void resumeReading() {
+		_isReadingPaused = false;
+		
+		_eventLoop.execute(new Runnable() {
+			public void run() {
+				if ((_isReadingPaused == false) && (_selectionKey != null) && (_selectionKey.isValid())) {
+					_selectionKey.interestOps(_selectionKey.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+		});
+	}
+	
+	//Writes are performed by the event loop - the end of stream follows the buffers queued before
+	public void shutdownOutput() {
+		_eventLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					if (_isClosed == false) {
+						_channel.shutdownOutput();
+					}
+				} catch (IOException e) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ChannelConnection::shutdownOutput [Failed to shut down the output - %s]", e.toString());
+				}
+			}
+		});
+	}
+	
+	public void close() {
+		if (_isClosed) {
+			return;
+		}
+		_isClosed = true;
+		
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::close [Failed to close the channel - Channel may have been already closed]");
+		}
+		
+		_signalWritable();
+		
+		//The buffers not written go back to the pool - the queue is only emptied by the event loop
+		if (_eventLoop.isInEventLoop()) {
+			_releaseQueuedBuffers();
+		} else {
+			_eventLoop.execute(new Runnable() {
+				public void run() {
+					_releaseQueuedBuffers();
+				}
+			});
+		}
+	}
+	
+	public String getRemoteAddress() {
+		return _remoteAddress;
+	}
+	
+	
+	//Event Loop Callbacks
+	public void handleSelection(SelectionKey key) {
+		_selectionKey = key;
+		
+		if (key.isConnectable()) {
+			_handleConnect();
+		}
+		
+		if ((key.isValid()) && (key.isReadable())) {
+			if (_isReadingPaused) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			} else {
+				_handleRead();
+			}
+		}
+		
+		if ((key.isValid()) && (key.isWritable())) {
+			_flush();
+		}
+	}
+	
+	public void handleFrame(ByteBuffer frame) {
+		_dispatchFrame(frame);
+	}
+	
+	public void handleRegistrationFailure(IOException e) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::handleRegistrationFailure [%s]", e.toString());
+		
+		_handleDisconnection();
+	}
+	
+	//The connection is closed and its session told, as when the peer disconnects
+	public void handleSelectionFailure(RuntimeException e) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::handleSelectionFailure [Closing the connection to %s - %s]", _remoteAddress, e.toString());
+		
+		_handleDisconnection();
+	}
+	
+	
+	//Private Functions
+	
+	void _handleConnect() {
+		try {
+			_channel.finishConnect();
+			_isConnecting = false;
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ChannelConnection::_handleConnect [Connected to %s]", _remoteAddress);
+			
+			_selectionKey.interestOps(SelectionKey.OP_READ);
+			
+			if (_pool != null) {
+				_pool.reportConnected();
+			}
+			
+			//Send the data queued while connecting
+			_flush();
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::_handleConnect [Failed to connect to %s]", _remoteAddress);
+			
+			if (_pool != null) {
+				_pool.reportConnectFailure(e);
+			}
+			
+			_isConnecting = false;
+			_handleDisconnection();
+		}
+	}
+	
+	void _handleRead() {
+		int bytesRead = 0;
+		
+		try {
+			bytesRead = _inData.readFrom(_channel);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::_handleRead [Error Reading Data from %s]", _remoteAddress);
+			bytesRead = -1;
+		}
+		
+		//The peer closed the connection
+		if (bytesRead < 0) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ChannelConnection::_handleRead [End of Stream from %s]", _remoteAddress);
+			
+			_handleDisconnection();
+			return;
+		}
+		
+		if (bytesRead > 0) {
+			//Log the data read
+			if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "ChannelConnection::_handleRead [%s -> Proxy] %s", (_isSource ? "Src" : "Dst"), HexDump.copyOf(_inData.getLastReadData()));
+			}
+			
+			//Process the received data - Extract the frames and dispatch them
+			_dispatchDataReceived(bytesRead, _inData.decode(this));
+		}
+	}
+	
+	void _flush() {
+		if ((_isConnecting) || (_isClosed) || (_selectionKey == null) || (_selectionKey.isValid() == false)) {
+			//Flushed once the channel is connected and registered
+			return;
+		}
+		
+		int bufferCount = 0;
+		
+		try {
+			while (_outQueue.isEmpty() == false) {
+				//Write the queued buffers together
+				bufferCount = 0;
+				for (PooledBuffer buffer : _outQueue) {
+					_gatheredBuffers[bufferCount++] = buffer.getBuffer();
+					
+					if (bufferCount == _gatheredBuffers.length) {
+						break;
+					}
+				}
+				
+				_channel.write(_gatheredBuffers, 0, bufferCount);
+				
+				//Remove the buffers written
+				for (int i = 0; i < bufferCount; i++) {
+					if (_gatheredBuffers[i].hasRemaining()) {
+						//The socket buffer is full - Resume when the channel is writable
+						Arrays.fill(_gatheredBuffers, 0, bufferCount, null);
+						_selectionKey.interestOps(_selectionKey.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					_outQueue.poll().release();
+					_queuedBufferCount.decrementAndGet();
+				}
+				Arrays.fill(_gatheredBuffers, 0, bufferCount, null);
+				
+				if (_queuedBufferCount.get() <= MAX_QUEUED_BUFFER_COUNT) {
+					_signalWritable();
+				}
+				
+				if ((_queuedBufferCount.get() <= MIN_QUEUED_BUFFER_COUNT) && (_isWriteBlocked.compareAndSet(true, false))) {
+					_dispatchWritable();
+				}
+			}
+			
+			_selectionKey.interestOps(_selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ChannelConnection::_flush [Failed to write to %s]", _remoteAddress);
+			
+			_handleDisconnection();
+		}
+	}
+	
+	//Blocks until the event loop has written enough of the queue, or the connection is closed
+	void _awaitWritable() {
+		_writableLock.lock();
+		_waitingWriterCount.incrementAndGet();
+		try {
+			while ((_queuedBufferCount.get() > MAX_QUEUED_BUFFER_COUNT) && (_isClosed == false)) {
+				_writable.await();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			_waitingWriterCount.decrementAndGet();
+			_writableLock.unlock();
+		}
+	}
+	
+	//The lock is only taken when a writer waits
+	void _signalWritable() {
+		if (_waitingWriterCount.get() == 0) {
+			return;
+		}
+		
+		_writableLock.lock();
+		try {
+			_writable.signalAll();
+		} finally {
+			_writableLock.unlock();
+		}
+	}
+	
+	void _releaseQueuedBuffers() {
+		PooledBuffer buffer = null;
+		
+		while ((buffer = _outQueue.poll()) != null) {
+			buffer.release();
+		}
+	}
+	
+	void _handleDisconnection() {
+		boolean wasClosed = _isClosed;
+		
+		close();
+		
+		//Connections closed by the session itself are not reported back
+		if ((wasClosed == false) && (_session != null)) {
+			_dispatchDisconnection();
+		}
+	}
+}
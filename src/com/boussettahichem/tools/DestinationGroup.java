@@ -0,0 +1,113 @@
+package com.boussettahichem.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//The destinations of the proxy, one pool of connections each
+//A session is routed to the destination chosen by the balancing policy when it connects, and to another one when the connection fails
+//A destination that cannot be connected to is skipped until its pool connects to it again
+public class DestinationGroup {
+	
+	//Member Variables
+	List<DestinationPool>			_pools;
+	RetryProxy.BalancingPolicy		_balancingPolicy;
+	AtomicInteger					_nextFirstIndex;		//The destinations are scanned from a different one each time - equal loads are shared in turn
+	
+	
+	//Constructor
+	public DestinationGroup(RetryProxy.BalancingPolicy balancingPolicy) {
+		_pools				= new ArrayList<DestinationPool>();
+		_balancingPolicy	= balancingPolicy;
+		_nextFirstIndex		= new AtomicInteger(0);
+	}
+	
+	
+	//Properties
+	
+	//The pools are added before the group is started
+	public void add(DestinationPool pool) {
+		_pools.add(pool);
+	}
+	
+	public List<DestinationPool> getPools() {
+		return _pools;
+	}
+	
+	public void setWarmConnectionCount(int count) {
+		for (DestinationPool pool : _pools) {
+			pool.setWarmConnectionCount(count);
+		}
+	}
+	
+	
+	//Public Functions
+	public void start() {
+		for (DestinationPool pool : _pools) {
+			pool.start();
+		}
+	}
+	
+	public void close() {
+		for (DestinationPool pool : _pools) {
+			pool.close();
+		}
+	}
+	
+	//Returns the destination a session should connect to, leaving out the ones it already failed to connect to - null when none is left
+	//The reachable destinations come first - the others are only tried when no destination is reachable
+	public DestinationPool select(Collection<DestinationPool> excludedPools) {
+		DestinationPool		selectedPool		= null;
+		double				selectedLoad		= 0;
+		boolean				isSelectedReachable	= false;
+		int					poolCount			= _pools.size();
+		int					firstIndex			= ((poolCount > 1) ? (_nextFirstIndex.getAndIncrement() & Integer.MAX_VALUE) % poolCount : 0);
+		
+		for (int i = 0; i < poolCount; i++) {
+			DestinationPool pool = _pools.get((firstIndex + i) % poolCount);
+			
+			if ((excludedPools != null) && (excludedPools.contains(pool))) {
+				continue;
+			}
+			
+			boolean	isReachable	= pool.isReachable();
+			double	load		= _getLoad(pool);
+			
+			if ((selectedPool == null) || ((isReachable) && (isSelectedReachable == false)) || ((isReachable == isSelectedReachable) && (load < selectedLoad))) {
+				selectedPool		= pool;
+				selectedLoad		= load;
+				isSelectedReachable	= isReachable;
+			}
+		}
+		
+		return selectedPool;
+	}
+	
+	//The destinations, their state and their load
+	public void writeMetricsText(StringBuilder out) {
+		for (DestinationPool pool : _pools) {
+			pool.writeMetricsText(out);
+		}
+	}
+	
+	
+	//Private Functions
+	
+	//With the latency policy, the outstanding requests are weighted by the smoothed round trip time (peak EWMA)
+	//The round trip times are only measured by the retry logic - without it, the policies are the same
+	//A destination without a measure yet looks idle and gets the next sessions until its first replies are measured
+	double _getLoad(DestinationPool pool) {
+		double outstandingRequestCount = pool.getOutstandingRequestCount();
+		
+		if (_balancingPolicy == RetryProxy.BalancingPolicy.BalancingPolicyLatency) {
+			long roundTripTime = pool.getRoundTripEstimator().getSmoothedRoundTripTime();
+			
+			if (roundTripTime > 0) {
+				return (outstandingRequestCount + 1) * roundTripTime;
+			}
+		}
+		
+		return outstandingRequestCount;
+	}
+}
@@ -0,0 +1,303 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//Connections to a destination kept open between sessions
+//Idle connections keep their reader running - a connection closed by the destination is closed as soon as it is detected and leaves the pool on the next check
+//A destination that cannot be connected to is unreachable until the periodic check connects to it again
+public class DestinationPool {
+	
+	//Constants & Defaults
+	static final int		DEFAULT_WARM_CONNECTION_COUNT	= 1;
+	static final int		DEFAULT_MAX_IDLE_COUNT			= 16;
+	static final long		DEFAULT_MAX_IDLE_TIME			= 60000;		//Milliseconds - idle connections above the warm count are closed after this time
+	static final long		HEALTH_CHECK_PERIOD				= 5000;			//Milliseconds
+	
+	//Metrics
+	static final LongAdder	g_connectionsOpened				= Metrics.getSharedMetrics().getCounter(Metrics.DESTINATION_CONNECTIONS_OPENED);
+	static final LongAdder	g_connectionsReused				= Metrics.getSharedMetrics().getCounter(Metrics.DESTINATION_CONNECTIONS_REUSED);
+	
+	//Member Variables
+	RetryProxy								_retryProxy;
+	String									_destinationIP;
+	int										_destinationPort;
+	ConcurrentLinkedDeque<IdleConnection>	_idleConnections;		//Most recently released first
+	int										_warmConnectionCount;
+	int										_maxIdleCount;
+	long									_maxIdleTime;
+	ScheduledFuture<?>						_healthCheck;			//Runs on the health check timer of the runtime, shared by the pools of all the proxies
+	RoundTripEstimator						_roundTripEstimator;
+	AtomicInteger							_outstandingRequestCount;		//Requests of the sessions routed to the destination not replied yet
+	volatile boolean						_isReachable;
+	volatile boolean						_isClosed;
+	
+	
+	//Constructor
+	public DestinationPool(RetryProxy proxy, String destinationIP, int destinationPort) {
+		_retryProxy				= proxy;
+		_destinationIP			= destinationIP;
+		_destinationPort		= destinationPort;
+		_idleConnections		= new ConcurrentLinkedDeque<IdleConnection>();
+		_warmConnectionCount	= DEFAULT_WARM_CONNECTION_COUNT;
+		_maxIdleCount			= DEFAULT_MAX_IDLE_COUNT;
+		_maxIdleTime			= DEFAULT_MAX_IDLE_TIME;
+		_healthCheck			= null;
+		_roundTripEstimator		= new RoundTripEstimator(TimeUnit.SECONDS.toNanos(proxy.getWaitForReplyTimeout()), TimeUnit.MILLISECONDS.toNanos(proxy.getMinRetryTimeout()), TimeUnit.MILLISECONDS.toNanos(proxy.getMaxRetryTimeout()));
+		_outstandingRequestCount	= new AtomicInteger(0);
+		_isReachable			= true;
+		_isClosed				= false;
+	}
+	
+	
+	//Properties
+	
+	//Number of idle connections opened ahead of the sessions
+	public void setWarmConnectionCount(int count) {
+		if (count >= 0) {
+			_warmConnectionCount	= count;
+			_maxIdleCount			= Math.max(_maxIdleCount, count);
+		}
+	}
+	
+	public int getWarmConnectionCount() {
+		return _warmConnectionCount;
+	}
+	
+	public boolean isReachable() {
+		return _isReachable;
+	}
+	
+	public int getOutstandingRequestCount() {
+		return _outstandingRequestCount.get();
+	}
+	
+	//Updated by the sessions routed to the destination - negative when requests are replied
+	public void addOutstandingRequests(int count) {
+		_outstandingRequestCount.addAndGet(count);
+	}
+	
+	public int getIdleConnectionCount() {
+		return _idleConnections.size();
+	}
+	
+	public String getDestinationIP() {
+		return _destinationIP;
+	}
+	
+	public int getDestinationPort() {
+		return _destinationPort;
+	}
+	
+	//Measures the replies of the destination and gives the retry timeouts of its requests
+	public RoundTripEstimator getRoundTripEstimator() {
+		return _roundTripEstimator;
+	}
+	
+	//The state of the destination, its round trip time estimate and its current retry timeout - times in microseconds
+	//Prefixed with the route of the proxy when it has a name - several routes may use the same destination
+	public void writeMetricsText(StringBuilder out) {
+		String	routeName	= _retryProxy.getName();
+		String	prefix		= ((routeName.length() > 0) ? "route." + routeName + "." : "") + "destination." + _destinationIP + ":" + _destinationPort + ".";
+		
+		out.append(prefix).append("reachable ").append(_isReachable ? 1 : 0).append('\n');
+		out.append(prefix).append("requests.outstanding ").append(_outstandingRequestCount.get()).append('\n');
+		out.append(prefix).append("rtt.smoothed.us ").append(_roundTripEstimator.getSmoothedRoundTripTime() / 1000).append('\n');
+		out.append(prefix).append("rtt.variation.us ").append(_roundTripEstimator.getRoundTripTimeVariation() / 1000).append('\n');
+		out.append(prefix).append("retryTimeout.us ").append(_roundTripEstimator.getTimeout() / 1000).append('\n');
+	}
+	
+	
+	//Public Functions
+	
+	//Opens the warm connections and checks the idle connections periodically
+	public synchronized void start() {
+		if ((_healthCheck != null) || (_isClosed)) {
+			return;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationPool::start [%s:%d - %d Warm Connections]", _destinationIP, _destinationPort, _warmConnectionCount);
+		
+		_healthCheck = _retryProxy.getRuntime().getHealthCheckTimer().scheduleWithFixedDelay(new HealthCheckOperation(), 0, HEALTH_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	
+	public void close() {
+		synchronized (this) {
+			if (_isClosed) {
+				return;
+			}
+			_isClosed = true;
+			
+			if (_healthCheck != null) {
+				_healthCheck.cancel(false);
+			}
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationPool::close [%s:%d]", _destinationIP, _destinationPort);
+		
+		_closeIdleConnections();
+	}
+	
+	//Returns a connected destination connection reading for the session - an idle connection when one is available
+	public ProxyConnection acquire(ProxySession session) throws IOException {
+		IdleConnection idleConnection = null;
+		
+		while ((idleConnection = _idleConnections.pollFirst()) != null) {
+			if (idleConnection._connection.isConnected()) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationPool::acquire [Reusing an idle connection to %s:%d]", _destinationIP, _destinationPort);
+				
+				idleConnection._connection.attach(session);
+				g_connectionsReused.increment();
+				
+				return idleConnection._connection;
+			}
+			
+			idleConnection._connection.close();
+		}
+		
+		ProxyConnection connection = null;
+		
+		try {
+			connection = _retryProxy.openDestinationConnection(_destinationIP, _destinationPort);
+		} catch (IOException e) {
+			reportConnectFailure(e);
+			throw e;
+		}
+		
+		g_connectionsOpened.increment();
+		connection.setPool(this);
+		connection.start(session, false);
+		
+		if (connection.isEstablished()) {
+			reportConnected();
+		}
+		
+		return connection;
+	}
+	
+	//Keeps the connection for another session - the caller must not expect any more data on it
+	//Returns false when the connection was closed instead
+	public boolean release(ProxyConnection connection) {
+		connection.detach();
+		
+		if ((_isClosed) || (connection.isConnected() == false) || (_idleConnections.size() >= _maxIdleCount)) {
+			connection.close();
+			return false;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationPool::release [Connection to %s:%d kept idle]", _destinationIP, _destinationPort);
+		
+		_idleConnections.offerFirst(new IdleConnection(connection));
+		
+		//The pool may have been closed meanwhile
+		if (_isClosed) {
+			_closeIdleConnections();
+		}
+		
+		return true;
+	}
+	
+	//A non blocking connection reports once it is established
+	public void reportConnected() {
+		if (_isReachable == false) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationPool::reportConnected [%s:%d is reachable again]", _destinationIP, _destinationPort);
+			_isReachable = true;
+		}
+	}
+	
+	//The destination is skipped by the sessions until a connection to it succeeds - logged once until then
+	public void reportConnectFailure(IOException e) {
+		if (_isReachable) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "DestinationPool::reportConnectFailure [Failed to connect to %s:%d - %s]", _destinationIP, _destinationPort, e.toString());
+			_isReachable = false;
+		}
+	}
+	
+	
+	//Private Functions
+	
+	//Closes the connections lost or idle for too long, and opens the missing warm connections
+	void _checkConnections() {
+		Iterator<IdleConnection>	iterator		= _idleConnections.iterator();
+		long						now				= System.currentTimeMillis();
+		int							idleCount		= 0;
+		
+		while (iterator.hasNext()) {
+			IdleConnection idleConnection = iterator.next();
+			
+			if ((idleConnection._connection.isConnected() == false) || ((idleCount >= _warmConnectionCount) && (now - idleConnection._idleSince > _maxIdleTime))) {
+				iterator.remove();
+				idleConnection._connection.close();
+			} else {
+				idleCount++;
+			}
+		}
+		
+		//An unreachable destination is probed with one connection, kept idle when it succeeds
+		while ((_isClosed == false) && ((idleCount < _warmConnectionCount) || ((_isReachable == false) && (idleCount == 0)))) {
+			try {
+				ProxyConnection connection = _retryProxy.openDestinationConnection(_destinationIP, _destinationPort);
+				
+				g_connectionsOpened.increment();
+				connection.setPool(this);
+				connection.start(null, false);
+				_idleConnections.offerLast(new IdleConnection(connection));
+				idleCount++;
+				
+				if (connection.isEstablished()) {
+					reportConnected();
+				}
+			} catch (IOException e) {
+				reportConnectFailure(e);
+				break;
+			}
+		}
+		
+		if (_isClosed) {
+			_closeIdleConnections();
+		}
+	}
+	
+	void _closeIdleConnections() {
+		IdleConnection idleConnection = null;
+		
+		while ((idleConnection = _idleConnections.pollFirst()) != null) {
+			idleConnection._connection.close();
+		}
+	}
+	
+	
+	//Idle Connection Class
+	
+	static class IdleConnection {
+		
+		ProxyConnection		_connection;
+		long				_idleSince;
+		
+		public IdleConnection(ProxyConnection connection) {
+			_connection		= connection;
+			_idleSince		= System.currentTimeMillis();
+		}
+	}
+	
+	
+	//Operation Class
+	
+	class HealthCheckOperation implements Runnable {
+		
+		public void run() {
+			try {
+				_checkConnections();
+			} catch (RuntimeException e) {
+				//A failed check must not cancel the next ones
+				e.printStackTrace();
+			}
+		}
+		
+	}
+}
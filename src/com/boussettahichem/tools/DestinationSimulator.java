@@ -0,0 +1,456 @@
+package com.boussettahichem.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+
+//A destination for performance tests of the proxy: it replies to each request with its payload, encrypted with a test key when one is set
+//With the retry logic the frames start with the sequence number, and the replies can be delayed, dropped, or sent with a zero or a wrong sequence number
+//With the sequence numbers, the replies of a connection are delayed independently and a reply may overtake the reply of an earlier request
+//Without them, the requests of a connection are served one at a time - the replies stay in the order of the requests
+public class DestinationSimulator {
+	
+	//Constants
+	static final int		TEST_KEY_SIZE				= 2048;		//Bits of the key generated when the key file does not exist
+	static final int		PKCS1_PADDING_LENGTH		= 11;		//Bytes of each block taken by the padding
+	static final int		STATISTICS_PERIOD			= 10;		//Seconds between the logs of the counters
+	static final int		OUTPUT_BUFFER_SIZE			= 64 * 1024;
+	
+	//Member Variables
+	int						_port;
+	boolean					_useSequenceNumbers;		//The frames start with the sequence number of the retry logic
+	Latency					_latency;
+	double					_dropRate;					//Fractions of the requests
+	double					_zeroSequenceRate;
+	double					_wrongSequenceRate;
+	PublicKey				_publicKey;					//Null replies the payload as it is
+	ThreadLocal<Cipher>		_encryptors;
+	ServerSocket			_serverSocket;
+	Set<Socket>				_connections;
+	ScheduledExecutorService	_timer;					//Writes the delayed replies
+	LongAdder				_requestCount;
+	LongAdder				_replyCount;
+	LongAdder				_droppedCount;
+	LongAdder				_zeroSequenceCount;
+	LongAdder				_wrongSequenceCount;
+	
+	
+	//Constructor
+	public DestinationSimulator(int port) {
+		_port					= port;
+		_useSequenceNumbers		= false;
+		_latency				= new Latency(Latency.Distribution.DistributionConstant, 0, 0);
+		_dropRate				= 0;
+		_zeroSequenceRate		= 0;
+		_wrongSequenceRate		= 0;
+		_publicKey				= null;
+		_encryptors				= new ThreadLocal<Cipher>();
+		_serverSocket			= null;
+		_connections			= ConcurrentHashMap.newKeySet();
+		_timer					= Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), new ProxyRuntime.DaemonThreadFactory("SimulatorTimer"));
+		_requestCount			= new LongAdder();
+		_replyCount				= new LongAdder();
+		_droppedCount			= new LongAdder();
+		_zeroSequenceCount		= new LongAdder();
+		_wrongSequenceCount		= new LongAdder();
+	}
+	
+	
+	//Properties
+	public void setUseSequenceNumbers(boolean useSequenceNumbers) {
+		_useSequenceNumbers = useSequenceNumbers;
+	}
+	
+	public void setLatency(Latency latency) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator::setLatency [%s]", latency);
+		_latency = latency;
+	}
+	
+	//Percentages of the requests - the zero and wrong sequence numbers only apply with the sequence numbers
+	public void setFaultRates(double dropRate, double zeroSequenceRate, double wrongSequenceRate) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator::setFaultRates [Dropped %.2f%% - Zero Sequence %.2f%% - Wrong Sequence %.2f%%]", dropRate, zeroSequenceRate, wrongSequenceRate);
+		
+		_dropRate			= Math.max(0, dropRate) / 100;
+		_zeroSequenceRate	= Math.max(0, zeroSequenceRate) / 100;
+		_wrongSequenceRate	= Math.max(0, wrongSequenceRate) / 100;
+	}
+	
+	//The replies are encrypted with the public part of the key, which the proxy decrypts with the file
+	//A key is generated and written to the file, in PEM, when the file does not exist
+	public boolean setKeyFile(String path) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator::setKeyFile [%s]", path);
+		
+		try {
+			if (Files.exists(Paths.get(path))) {
+				PrivateKey privateKey = new RSADecryptor()._readPrivateKey(Files.readAllBytes(Paths.get(path)));
+				
+				if ((privateKey instanceof RSAPrivateCrtKey) == false) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "DestinationSimulator::setKeyFile [%s does not hold the public exponent]", path);
+					return false;
+				}
+				
+				RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey)privateKey;
+				
+				_publicKey = KeyFactory.getInstance(RSADecryptor.ALGORITHM).generatePublic(new RSAPublicKeySpec(crtKey.getModulus(), crtKey.getPublicExponent()));
+			} else {
+				KeyPairGenerator generator = KeyPairGenerator.getInstance(RSADecryptor.ALGORITHM);
+				generator.initialize(TEST_KEY_SIZE);
+				
+				KeyPair keyPair = generator.generateKeyPair();
+				
+				Files.write(Paths.get(path), _toPEM(keyPair.getPrivate().getEncoded()));
+				_publicKey = keyPair.getPublic();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator::setKeyFile [Test Key Generated - %d bits]", TEST_KEY_SIZE);
+			}
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "DestinationSimulator::setKeyFile [Failed to read or write %s - %s]", path, e.toString());
+			return false;
+		} catch (GeneralSecurityException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "DestinationSimulator::setKeyFile [Invalid key %s - %s]", path, e.toString());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	public long getRequestCount() {
+		return _requestCount.sum();
+	}
+	
+	public long getReplyCount() {
+		return _replyCount.sum();
+	}
+	
+	
+	//Public Functions
+	
+	//Serves the connections until stop() - returns false if the port cannot be listened on
+	public boolean run() {
+		try {
+			_serverSocket = new ServerSocket();
+			_serverSocket.bind(new InetSocketAddress(_port));
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "DestinationSimulator::run [Failed to listen on port %d - %s]", _port, e.toString());
+			return false;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator::run [Listening on port %d - Sequence Numbers %s - Encryption %s]", _port, (_useSequenceNumbers ? "on" : "off"), ((_publicKey != null) ? "on" : "off"));
+		
+		_timer.scheduleAtFixedRate(new Runnable() {
+			long _lastRequestCount = 0;
+			
+			public void run() {
+				if (_requestCount.sum() != _lastRequestCount) {
+					_lastRequestCount = _requestCount.sum();
+					_logStatistics();
+				}
+			}
+		}, STATISTICS_PERIOD, STATISTICS_PERIOD, TimeUnit.SECONDS);
+		
+		while (true) {
+			final Socket socket;
+			
+			try {
+				socket = _serverSocket.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				//Stopped
+				if (_serverSocket.isClosed()) {
+					break;
+				}
+				
+				e.printStackTrace();
+				continue;
+			}
+			
+			_connections.add(socket);
+			
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					_serveConnection(socket);
+				}
+			}, "Simulator-" + socket.getPort());
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		_logStatistics();
+		
+		return true;
+	}
+	
+	public void stop() {
+		try {
+			if (_serverSocket != null) {
+				_serverSocket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		for (Socket socket : _connections) {
+			_close(socket);
+		}
+		
+		_timer.shutdownNow();
+	}
+	
+	
+	//Private Functions
+	
+	void _serveConnection(Socket socket) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationSimulator::_serveConnection [%s]", socket.getRemoteSocketAddress());
+		
+		try {
+			DataInputStream		input		= new DataInputStream(socket.getInputStream());
+			OutputStream		output		= new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+			byte[]				frame		= new byte[0xFFFF];
+			
+			while (true) {
+				int length = input.readUnsignedShort();
+				input.readFully(frame, 0, length);
+				
+				_requestCount.increment();
+				_handleRequest(frame, length, output);
+			}
+		} catch (EOFException e) {
+			//The proxy closed the connection
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationSimulator::_serveConnection [%s]", e.toString());
+		}
+		
+		_close(socket);
+	}
+	
+	//The reply is built by the reader - the timer only writes it
+	void _handleRequest(byte[] frame, int length, final OutputStream output) throws IOException {
+		ThreadLocalRandom	random			= ThreadLocalRandom.current();
+		int					payloadOffset	= ((_useSequenceNumbers) ? 1 : 0);
+		
+		if ((_dropRate > 0) && (random.nextDouble() < _dropRate)) {
+			_droppedCount.increment();
+			return;
+		}
+		
+		byte[]	payload		= _encrypt(frame, payloadOffset, Math.max(0, length - payloadOffset));
+		int		replyLength	= payloadOffset + payload.length;
+		
+		final byte[] reply = new byte[2 + replyLength];
+		
+		reply[0] = (byte)(replyLength >> 8);
+		reply[1] = (byte)replyLength;
+		System.arraycopy(payload, 0, reply, 2 + payloadOffset, payload.length);
+		
+		if (_useSequenceNumbers) {
+			int sequenceNumber = ((length > 0) ? frame[0] & 0xFF : 0);
+			
+			if ((_zeroSequenceRate > 0) && (random.nextDouble() < _zeroSequenceRate)) {
+				//The proxy takes it as a reset of the destination and sends its outstanding requests again
+				sequenceNumber = 0;
+				_zeroSequenceCount.increment();
+			} else if ((_wrongSequenceRate > 0) && (random.nextDouble() < _wrongSequenceRate)) {
+				//Half way around the sequence numbers (1 to 255) - never outstanding with a retry window of up to 128 requests
+				sequenceNumber = ((sequenceNumber + 127) % 255) + 1;
+				_wrongSequenceCount.increment();
+			}
+			reply[2] = (byte)sequenceNumber;
+		}
+		
+		long delay = _latency.nextDelay(random);
+		
+		if (delay <= 0) {
+			_write(output, reply);
+		} else if (_useSequenceNumbers == false) {
+			try {
+				TimeUnit.MICROSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_write(output, reply);
+		} else {
+			_timer.schedule(new Runnable() {
+				public void run() {
+					try {
+						_write(output, reply);
+					} catch (IOException e) {
+						//The connection was closed
+					}
+				}
+			}, delay, TimeUnit.MICROSECONDS);
+		}
+	}
+	
+	void _write(OutputStream output, byte[] reply) throws IOException {
+		synchronized (output) {
+			output.write(reply);
+			output.flush();
+		}
+		_replyCount.increment();
+	}
+	
+	//Encrypts the payload in blocks of the key's length, each one holding up to the key's length less the padding
+	byte[] _encrypt(byte[] data, int offset, int length) throws IOException {
+		if (_publicKey == null) {
+			byte[] payload = new byte[length];
+			System.arraycopy(data, offset, payload, 0, length);
+			
+			return payload;
+		}
+		
+		try {
+			Cipher cipher = _encryptors.get();
+			
+			if (cipher == null) {
+				cipher = Cipher.getInstance(RSADecryptor.ALGORITHM);
+				cipher.init(Cipher.ENCRYPT_MODE, _publicKey);
+				_encryptors.set(cipher);
+			}
+			
+			int		blockLength		= cipher.getOutputSize(1);
+			int		chunkLength		= blockLength - PKCS1_PADDING_LENGTH;
+			int		blockCount		= (length + chunkLength - 1) / chunkLength;
+			byte[]	payload			= new byte[blockCount * blockLength];
+			
+			for (int i = 0; i < blockCount; i++) {
+				int chunkOffset = i * chunkLength;
+				
+				cipher.doFinal(data, offset + chunkOffset, Math.min(chunkLength, length - chunkOffset), payload, i * blockLength);
+			}
+			
+			return payload;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt the reply", e);
+		}
+	}
+	
+	void _close(Socket socket) {
+		_connections.remove(socket);
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	void _logStatistics() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "DestinationSimulator [%d Connections - %d Requests - %d Replies - %d Dropped - %d Zero Sequence - %d Wrong Sequence]", _connections.size(), _requestCount.sum(), _replyCount.sum(), _droppedCount.sum(), _zeroSequenceCount.sum(), _wrongSequenceCount.sum());
+	}
+	
+	static byte[] _toPEM(byte[] pkcs8Key) {
+		String			encoded		= Base64Codec.encode(pkcs8Key);
+		StringBuilder	pem			= new StringBuilder();
+		
+		pem.append(PEMReader.PRIVATE_PKCS8_MARKER).append('\n');
+		for (int i = 0; i < encoded.length(); i += 64) {
+			pem.append(encoded, i, Math.min(encoded.length(), i + 64)).append('\n');
+		}
+		pem.append("-----END PRIVATE KEY-----\n");
+		
+		return pem.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	
+	//Latency Class
+	
+	//The delay of each reply, drawn from a distribution in milliseconds
+	//
+	//	constant:5			every reply after 5 ms
+	//	uniform:2-20		between 2 and 20 ms
+	//	exponential:5		5 ms on average, with a long tail
+	static class Latency {
+		
+		enum Distribution {
+			DistributionConstant,
+			DistributionUniform,
+			DistributionExponential
+		};
+		
+		Distribution	_distribution;
+		double			_first;			//Milliseconds - the constant, the minimum or the mean
+		double			_second;		//Milliseconds - the maximum of the uniform distribution
+		
+		public Latency(Distribution distribution, double first, double second) {
+			_distribution	= distribution;
+			_first			= Math.max(0, first);
+			_second			= Math.max(_first, second);
+		}
+		
+		//Returns null when the text is not a distribution
+		static public Latency parse(String text) {
+			int separatorIndex = text.indexOf(':');
+			
+			try {
+				if (separatorIndex < 0) {
+					return new Latency(Distribution.DistributionConstant, Double.parseDouble(text), 0);
+				}
+				
+				String name		= text.substring(0, separatorIndex);
+				String values	= text.substring(separatorIndex + 1);
+				
+				if (name.equalsIgnoreCase("constant")) {
+					return new Latency(Distribution.DistributionConstant, Double.parseDouble(values), 0);
+				} else if (name.equalsIgnoreCase("exponential")) {
+					return new Latency(Distribution.DistributionExponential, Double.parseDouble(values), 0);
+				} else if ((name.equalsIgnoreCase("uniform")) && (values.indexOf('-') > 0)) {
+					int rangeIndex = values.indexOf('-');
+					
+					return new Latency(Distribution.DistributionUniform, Double.parseDouble(values.substring(0, rangeIndex)), Double.parseDouble(values.substring(rangeIndex + 1)));
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			
+			return null;
+		}
+		
+		//Microseconds
+		public long nextDelay(ThreadLocalRandom random) {
+			double delay = _first;
+			
+			if (_distribution == Distribution.DistributionUniform) {
+				delay = _first + random.nextDouble() * (_second - _first);
+			} else if (_distribution == Distribution.DistributionExponential) {
+				delay = -_first * Math.log(1 - random.nextDouble());
+			}
+			
+			return (long)(delay * 1000);
+		}
+		
+		public String toString() {
+			if (_distribution == Distribution.DistributionUniform) {
+				return String.format("uniform %.3f-%.3f ms", _first, _second);
+			} else if (_distribution == Distribution.DistributionExponential) {
+				return String.format("exponential %.3f ms", _first);
+			}
+			
+			return String.format("constant %.3f ms", _first);
+		}
+	}
+}
@@ -2,101 +2,88 @@ package com.boussettahichem.tools;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 
-public class DestinationThread extends Thread {
-
-	//Constants
-	final int IN_BUFFER_LENGTH				= 4096;
-	final int DATA_HEADER_LENGTH			= 2;
+public class DestinationThread extends Thread implements FrameDecoder.FrameHandler {
 	
 	//Member Variables
 	Socket					_dstSocket;
-	RetryProxy				_retryProxy;
-	ByteArrayOutputStream	_destinationData;
+	ProxyConnection			_connection;		//Dispatches the frames to the session the connection is attached to
+	FrameDecoder			_destinationData;
 	boolean					_shouldKeepRunning;
 	
-	public DestinationThread(RetryProxy proxy, Socket dstSocket) {
-		Logger.getSharedLogger().log("SourceThread::DestinationThread");
+	public DestinationThread(ProxyConnection connection, Socket dstSocket) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::DestinationThread");
 		
 		_dstSocket			= dstSocket;
-		_retryProxy			= proxy;
-		_destinationData	= new ByteArrayOutputStream();
+		_connection			= connection;
+		_destinationData	= new FrameDecoder();
 		_shouldKeepRunning	= true;
 	}
 	
 	public void run() {
-		Logger.getSharedLogger().log("DestinationThread::run");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationThread::run");
 		
 		//Read incoming data and process it
-		byte[] inBuffer 	= new byte[IN_BUFFER_LENGTH];
 		int bytesRead 		= 0;
 		_shouldKeepRunning	= true;
 		
 		while(_shouldKeepRunning) {
 			try {
-				bytesRead = _dstSocket.getInputStream().read(inBuffer);
+				//Read directly into the frame decoder's buffer
+				bytesRead = _destinationData.readFrom(_dstSocket.getInputStream());
 			} catch (IOException e) {
+				//The socket was closed locally
+				if (_dstSocket.isClosed()) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationThread::run [Socket Closed - Stopping the thread]");
+					break;
+				}
+				
 				e.printStackTrace();
-				Logger.getSharedLogger().log("DestinationThread::run [Error Reading Data from Destionation]");
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "DestinationThread::run [Error Reading Data from Destionation]");
 				
-				//Check if the stream is still open
-				if (_dstSocket.isConnected() == false) {
-					_shouldKeepRunning = false;
-					
-					Logger.getSharedLogger().log("DestinationThread::run [Socket Closed - Stopping the thread]");
-				}
+				//The connection is lost - reported like an end of stream
+				bytesRead = -1;
 			}
 			
-			//Bufferize the received data
-			if (bytesRead > 0) {
-				_destinationData.write(inBuffer, 0, bytesRead);
+			//The peer closed the connection
+			if (bytesRead < 0) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationThread::run [End of Stream - Stopping the thread]");
 				
+				_shouldKeepRunning = false;
+				_connection._dispatchDisconnection();
+				break;
+			}
+			
+			if (bytesRead > 0) {
 				//Log the data read
-				Logger.getSharedLogger().log(String.format("DestinationThread::run [Dst -> Proxy] %s", HexDump.dump(Arrays.copyOfRange(inBuffer, 0, bytesRead))));
+				if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "DestinationThread::run [Dst -> Proxy] %s", HexDump.copyOf(_destinationData.getLastReadData()));
+				}
 				
 				//Process the received data - Extract the request and send them to destination
-				processDestinationData();
-			}
-			
-			try {
-				sleep(10);	//Sleep 10 milliseconds
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				_connection._dispatchDataReceived(bytesRead, processDestinationData());
 			}
 		}
-		Logger.getSharedLogger().log("DestinationThread::run [Thread Ended]");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationThread::run [Thread Ended]");
 	}
 	
-	void processDestinationData() {
-		//Logger.getSharedLogger().log("DestinationThread::processDestinationData");
+	//Returns the number of frames decoded
+	int processDestinationData() {
+		//Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "DestinationThread::processDestinationData");
 		
-		int 		expectedDataLength 	= 0;
-		int 		totalDataLength 	= 0;
-		byte[]		bytes				= _destinationData.toByteArray();
-		
-		//Get the source's requests one by one
-		while (bytes.length > DATA_HEADER_LENGTH) {
-			expectedDataLength = ((bytes[0] + 256) % 256) * 256 + (bytes[1] + 256) % 256;
-			totalDataLength = DATA_HEADER_LENGTH + expectedDataLength;
-			
-			if (bytes.length >= totalDataLength) {
-				//Send the request
-				_retryProxy.writeDataToSource(Arrays.copyOfRange(bytes, DATA_HEADER_LENGTH, totalDataLength));
-				
-				//Remove the request data from the buffer
-				_destinationData.reset();
-				_destinationData.write(bytes, totalDataLength, bytes.length - totalDataLength);
-				bytes = _destinationData.toByteArray();
-			} else {
-				break;
-			}
-		}
+		//Get the destination's responses one by one - each one is handed to handleFrame
+		return _destinationData.decode(this);
+	}
+	
+	public void handleFrame(ByteBuffer frame) {
+		//Send the response
+		_connection._dispatchFrame(frame);
 	}
 	
 	public void stopThread() {
-		Logger.getSharedLogger().log("DestinationThread::stopThread");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "DestinationThread::stopThread");
 		
 		_shouldKeepRunning = false;
 	}
@@ -0,0 +1,149 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop extends Thread {
+	
+	//User Defined Types
+	interface SelectionHandler {
+		void handleSelection(SelectionKey key);
+		void handleRegistrationFailure(IOException e);
+		void handleSelectionFailure(RuntimeException e);		//handleSelection threw - the other channels of the loop keep being served
+	}
+	
+	//Member Variables
+	Selector							_selector;
+	ConcurrentLinkedQueue<Runnable>		_pendingTasks;
+	volatile boolean					_shouldKeepRunning;
+	
+	
+	//Constructor
+	public EventLoop(int index) throws IOException {
+		super(String.format("EventLoop-%d", index));
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "EventLoop::EventLoop [#%d]", index);
+		
+		_selector			= Selector.open();
+		_pendingTasks		= new ConcurrentLinkedQueue<Runnable>();
+		_shouldKeepRunning	= true;
+	}
+	
+	
+	//Public Functions
+	public void run() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "EventLoop::run [%s]", getName());
+		
+		while (_shouldKeepRunning) {
+			try {
+				//Do not block when the loop queued tasks for itself while handling the previous selection
+				if (_pendingTasks.isEmpty()) {
+					_selector.select();
+				} else {
+					_selector.selectNow();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "EventLoop::run [Select Failed]");
+			}
+			
+			//Run the tasks submitted by other threads (registrations, write requests...)
+			_runPendingTasks();
+			
+			//Handle the ready channels
+			Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+			while (selectedKeys.hasNext()) {
+				SelectionKey key = selectedKeys.next();
+				selectedKeys.remove();
+				
+				try {
+					if (key.isValid()) {
+						((SelectionHandler)key.attachment()).handleSelection(key);
+					}
+				} catch (CancelledKeyException e) {
+					//The channel was closed by another thread while being handled
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "EventLoop::run [Selection Failed: %s]", e.toString());
+					
+					((SelectionHandler)key.attachment()).handleSelectionFailure(e);
+				}
+			}
+		}
+		
+		//Close the channels still registered
+		for (SelectionKey key : _selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		try {
+			_selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "EventLoop::run [%s Ended]", getName());
+	}
+	
+	public void execute(Runnable task) {
+		_pendingTasks.add(task);
+		
+		if (Thread.currentThread() != this) {
+			_selector.wakeup();
+		}
+	}
+	
+	public boolean isInEventLoop() {
+		return (Thread.currentThread() == this);
+	}
+	
+	//True on the thread of any event loop - such a thread must never wait for another connection
+	public static boolean isEventLoopThread() {
+		return (Thread.currentThread() instanceof EventLoop);
+	}
+	
+	//Registers the channel from the loop thread - a registration from another thread blocks until the current select returns
+	public void register(final SelectableChannel channel, final int interestOps, final SelectionHandler handler) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.register(_selector, interestOps, handler);
+				} catch (IOException e) {
+					handler.handleRegistrationFailure(e);
+				}
+			}
+		});
+	}
+	
+	public void stopLoop() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "EventLoop::stopLoop [%s]", getName());
+		
+		_shouldKeepRunning = false;
+		_selector.wakeup();
+	}
+	
+	
+	//Private Functions
+	
+	void _runPendingTasks() {
+		Runnable task = null;
+		
+		while ((task = _pendingTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "EventLoop::_runPendingTasks [Task Failed: %s]", e.toString());
+			}
+		}
+	}
+}
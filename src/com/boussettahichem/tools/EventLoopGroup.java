@@ -0,0 +1,57 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventLoopGroup {
+	
+	//Member Variables
+	EventLoop[]			_eventLoops;
+	AtomicInteger		_nextEventLoop;
+	
+	
+	//Constructor
+	public EventLoopGroup(int count) throws IOException {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "EventLoopGroup::EventLoopGroup [%d Event Loops]", count);
+		
+		_eventLoops		= new EventLoop[Math.max(1, count)];
+		_nextEventLoop	= new AtomicInteger(0);
+		
+		for (int i = 0; i < _eventLoops.length; i++) {
+			_eventLoops[i] = new EventLoop(i);
+			_eventLoops[i].start();
+		}
+	}
+	
+	
+	//Public Functions
+	
+	//Event loops are assigned round robin - a channel then stays on its loop for its whole life
+	public EventLoop next() {
+		int index = (_nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % _eventLoops.length;
+		
+		return _eventLoops[index];
+	}
+	
+	public int getSize() {
+		return _eventLoops.length;
+	}
+	
+	public void shutdown() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "EventLoopGroup::shutdown");
+		
+		for (EventLoop eventLoop : _eventLoops) {
+			eventLoop.stopLoop();
+		}
+	}
+	
+	public void awaitTermination() {
+		for (EventLoop eventLoop : _eventLoops) {
+			try {
+				eventLoop.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+//Incremental decoder of the proxy's frames: a 2 bytes big endian length followed by the payload
+//Frames are parsed in place and handed out as views of the receive buffer, which grows to fit the largest frame
+public class FrameDecoder {
+	
+	//User Defined Types
+	interface FrameHandler {
+		//The frame is a view of the receive buffer positioned on the payload - copy it to keep it after the call
+		void handleFrame(ByteBuffer frame);
+	}
+	
+	//Constants
+	static final int	DATA_HEADER_LENGTH				= 2;
+	static final int	MAX_FRAME_LENGTH				= DATA_HEADER_LENGTH + 0xFFFF;
+	static final int	INITIAL_BUFFER_LENGTH			= 512;
+	static final int	MIN_READ_LENGTH					= 256;
+	
+	//Member Variables
+	ByteBuffer			_receiveBuffer;
+	ByteBuffer			_frameView;
+	int					_lastReadPosition;
+	
+	
+	//Constructor
+	public FrameDecoder() {
+		_receiveBuffer	= ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+		_frameView		= _receiveBuffer.duplicate();
+		_lastReadPosition	= 0;
+	}
+	
+	
+	//Public Functions
+	
+	//Returns the buffer to read into - in write mode, with room for at least the rest of the pending frame
+	public ByteBuffer getReceiveBuffer() {
+		int pendingFrameLength = _getPendingFrameLength();
+		
+		if (_receiveBuffer.capacity() < pendingFrameLength) {
+			_resize(pendingFrameLength);
+		} else if ((_receiveBuffer.remaining() < MIN_READ_LENGTH) && (_receiveBuffer.capacity() < MAX_FRAME_LENGTH)) {
+			_resize(_receiveBuffer.capacity() * 2);
+		}
+		
+		return _receiveBuffer;
+	}
+	
+	//Reads once from the stream into the receive buffer - returns the number of bytes read or -1 at end of stream
+	public int readFrom(InputStream stream) throws IOException {
+		ByteBuffer	buffer		= getReceiveBuffer();
+		
+		_lastReadPosition = buffer.position();
+		
+		int			bytesRead	= stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		
+		if (bytesRead > 0) {
+			buffer.position(buffer.position() + bytesRead);
+		}
+		
+		return bytesRead;
+	}
+	
+	//Reads once from the channel into the receive buffer - returns the number of bytes read or -1 at end of stream
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		ByteBuffer	buffer		= getReceiveBuffer();
+		
+		_lastReadPosition = buffer.position();
+		
+		return channel.read(buffer);
+	}
+	
+	//Hands the complete frames received so far to the handler - returns the number of frames decoded
+	public int decode(FrameHandler handler) {
+		int frameCount	= 0;
+		int offset		= 0;
+		int limit		= _receiveBuffer.position();
+		
+		//Get the frames one by one
+		while (limit - offset >= DATA_HEADER_LENGTH) {
+			int dataLength = ((_receiveBuffer.get(offset) & 0xFF) << 8) | (_receiveBuffer.get(offset + 1) & 0xFF);
+			
+			if (limit - offset < DATA_HEADER_LENGTH + dataLength) {
+				break;
+			}
+			
+			//Expose the payload without copying it
+			_frameView.limit(offset + DATA_HEADER_LENGTH + dataLength);
+			_frameView.position(offset + DATA_HEADER_LENGTH);
+			handler.handleFrame(_frameView);
+			
+			offset += DATA_HEADER_LENGTH + dataLength;
+			frameCount++;
+		}
+		
+		//Keep the partial frame at the start of the buffer
+		if (offset > 0) {
+			_receiveBuffer.flip();
+			_receiveBuffer.position(offset);
+			_receiveBuffer.compact();
+		}
+		
+		return frameCount;
+	}
+	
+	//The bytes received by the last read, before they are decoded - used to log the data just read
+	public ByteBuffer getLastReadData() {
+		ByteBuffer received = _receiveBuffer.duplicate();
+		
+		received.flip();
+		received.position(_lastReadPosition);
+		
+		return received;
+	}
+	
+	
+	//Private Functions
+	
+	int _getPendingFrameLength() {
+		if (_receiveBuffer.position() < DATA_HEADER_LENGTH) {
+			return DATA_HEADER_LENGTH;
+		}
+		
+		return DATA_HEADER_LENGTH + (((_receiveBuffer.get(0) & 0xFF) << 8) | (_receiveBuffer.get(1) & 0xFF));
+	}
+	
+	void _resize(int length) {
+		int capacity = INITIAL_BUFFER_LENGTH;
+		
+		while (capacity < length) {
+			capacity *= 2;
+		}
+		capacity = Math.min(capacity, MAX_FRAME_LENGTH);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		
+		_receiveBuffer.flip();
+		buffer.put(_receiveBuffer);
+		
+		_receiveBuffer	= buffer;
+		_frameView		= _receiveBuffer.duplicate();
+		_lastReadPosition	= 0;
+	}
+}
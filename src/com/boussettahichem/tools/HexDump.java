@@ -1,21 +1,108 @@
 package com.boussettahichem.tools;
 
-public class HexDump {
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Formattable;
+import java.util.Formatter;
+
+//Hex dump of a byte range, 16 bytes per line
+//Passed to the logger as a %s argument, the dump is only built by the logger's writer thread, directly into its output
+public class HexDump implements Formattable {
+
+	//Constants
+	static final int			BYTES_PER_LINE			= 16;
+	static final char[]			HEX_DIGITS				= "0123456789abcdef".toCharArray();
+
+	//Member Variables
+	byte[]			_data;
+	int				_offset;
+	int				_length;
+
+
+	//Constructor
+	HexDump(byte[] data, int offset, int length) {
+		_data		= data;
+		_offset		= offset;
+		_length		= length;
+	}
+
+
+	//Lazy Dumps
+
+	//The data must not change until the message is written - use copyOf for reused buffers
+	public static HexDump of(byte[] data, int offset, int length) {
+		return new HexDump(data, offset, length);
+	}
+
+	public static HexDump of(byte[] data) {
+		return new HexDump(data, 0, ((data != null) ? data.length : 0));
+	}
+
+	public static HexDump copyOf(byte[] data, int offset, int length) {
+		return new HexDump(Arrays.copyOfRange(data, offset, offset + length), 0, length);
+	}
+
+	//Copies the remaining bytes of the buffer, without moving its position
+	public static HexDump copyOf(ByteBuffer data) {
+		byte[] copy = new byte[data.remaining()];
+
+		data.duplicate().get(copy);
+
+		return new HexDump(copy, 0, copy.length);
+	}
+
+
+	//Formattable
+	public void formatTo(Formatter formatter, int flags, int width, int precision) {
+		Appendable out = formatter.out();
+
+		if (out instanceof StringBuilder) {
+			append((StringBuilder)out, _data, _offset, _length);
+		} else {
+			try {
+				out.append(toString());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public String toString() {
+		return dump(_data, _offset, _length);
+	}
+
+
+	//Immediate Dumps
 
-	
 	public static String dump(byte data[]) {
-		String result = null;
+		return dump(data, 0, ((data != null) ? data.length : 0));
+	}
+
+	public static String dump(byte[] data, int offset, int length) {
+		StringBuilder result = new StringBuilder(32 + length * 5 + length / BYTES_PER_LINE);
+
+		append(result, data, offset, length);
+
+		return result.toString();
+	}
+
+	//Appends "[Data Length: n]" then the bytes as "0x1f " - one table lookup per digit
+	public static void append(StringBuilder out, byte[] data, int offset, int length) {
 		if (data == null) {
-			result = "(null)";
-		} else {
-			result = String.format("[Data Length: %d]\n", data.length);
-			
-			int i;
-			for(i = 0; i < data.length; i++) {
-				result += (((i > 0) && (i % 16 == 0)) ? "\n": "") + String.format("0x%02x ", data[i]);
+			out.append("(null)");
+			return;
+		}
+
+		out.append("[Data Length: ").append(length).append("]\n");
+
+		for (int i = 0; i < length; i++) {
+			int value = data[offset + i] & 0xFF;
+
+			if ((i > 0) && (i % BYTES_PER_LINE == 0)) {
+				out.append('\n');
 			}
+			out.append('0').append('x').append(HEX_DIGITS[value >>> 4]).append(HEX_DIGITS[value & 0x0F]).append(' ');
 		}
-		
-		return result;
 	}
 }
@@ -0,0 +1,121 @@
+package com.boussettahichem.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Lock-free histogram of positive values, like latencies in nanoseconds
+//Buckets are log-linear like an HDR histogram: each power of 2 is split in 16 buckets, which keeps the error of a value below 7%
+public class Histogram {
+	
+	//Constants
+	static final int		SUB_BUCKET_BITS			= 5;
+	static final int		SUB_BUCKET_HALF_COUNT	= 1 << (SUB_BUCKET_BITS - 1);
+	static final int		BUCKET_COUNT			= (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;		//The last one ends at Long.MAX_VALUE
+	
+	//Member Variables
+	String					_name;
+	AtomicLongArray			_counts;
+	LongAdder				_totalCount;
+	LongAdder				_totalValue;
+	AtomicLong				_maxValue;
+	
+	
+	//Constructor
+	public Histogram(String name) {
+		_name			= name;
+		_counts			= new AtomicLongArray(BUCKET_COUNT);
+		_totalCount		= new LongAdder();
+		_totalValue		= new LongAdder();
+		_maxValue		= new AtomicLong(0);
+	}
+	
+	
+	//Properties
+	public String getName() {
+		return _name;
+	}
+	
+	public long getCount() {
+		return _totalCount.sum();
+	}
+	
+	public long getMax() {
+		return _maxValue.get();
+	}
+	
+	public double getMean() {
+		long count = _totalCount.sum();
+		
+		return ((count > 0) ? (double)_totalValue.sum() / count : 0);
+	}
+	
+	
+	//Public Functions
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		
+		_counts.incrementAndGet(_getBucketIndex(value));
+		_totalCount.increment();
+		_totalValue.add(value);
+		
+		long maxValue = _maxValue.get();
+		
+		while ((value > maxValue) && (_maxValue.compareAndSet(maxValue, value) == false)) {
+			maxValue = _maxValue.get();
+		}
+	}
+	
+	//The highest value of the bucket holding the given percentile of the values - 0 when empty
+	public long getValueAtPercentile(double percentile) {
+		long totalCount = 0;
+		
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			totalCount += _counts.get(i);
+		}
+		
+		if (totalCount == 0) {
+			return 0;
+		}
+		
+		long	targetCount		= Math.max(1, (long)Math.ceil(totalCount * percentile / 100.0));
+		long	count			= 0;
+		
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += _counts.get(i);
+			
+			if (count >= targetCount) {
+				return Math.min(_getBucketHighestValue(i), _maxValue.get());
+			}
+		}
+		
+		return _maxValue.get();
+	}
+	
+	
+	//Private Functions
+	
+	//Values below 32 have their own bucket, larger values are bucketed on their 5 most significant bits
+	static int _getBucketIndex(long value) {
+		if (value < (1 << SUB_BUCKET_BITS)) {
+			return (int)value;
+		}
+		
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		
+		return (shift * SUB_BUCKET_HALF_COUNT) + (int)(value >>> shift);
+	}
+	
+	static long _getBucketHighestValue(int index) {
+		if (index < (1 << SUB_BUCKET_BITS)) {
+			return index;
+		}
+		
+		int		shift		= (index / SUB_BUCKET_HALF_COUNT) - 1;
+		long	subBucket	= (index % SUB_BUCKET_HALF_COUNT) + SUB_BUCKET_HALF_COUNT;
+		
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
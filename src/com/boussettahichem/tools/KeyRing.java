@@ -0,0 +1,309 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//The private keys used to decrypt the responses, selected per listener or per source address
+//Keys loaded from files are reloaded when the file changes - the new key replaces the old one without stopping the sessions
+public class KeyRing {
+	
+	//Constants
+	static final String			DEFAULT_KEY_NAME			= "default";
+	static final String			KEY_FILE_PATTERN			= "*.{pem,key,der}";		//The files loaded from a key directory
+	
+	//Member Variables
+	ConcurrentMap<String, RSADecryptor>		_keys;				//Decryptors by key name - the normalized path for keys loaded from files
+	ConcurrentMap<String, String>			_sourceKeys;		//Key names by listening port and source address
+	ConcurrentMap<Integer, String>			_listenerKeys;		//Key names by listening port
+	volatile String							_defaultKeyName;	//Only set explicitly - the keys of a listener are not used for another one
+	WatchService							_watchService;
+	ConcurrentMap<Path, Boolean>			_watchedDirectories;
+	Thread									_watchThread;
+	
+	
+	//Constructor
+	public KeyRing() {
+		_keys					= new ConcurrentHashMap<String, RSADecryptor>();
+		_sourceKeys				= new ConcurrentHashMap<String, String>();
+		_listenerKeys			= new ConcurrentHashMap<Integer, String>();
+		_defaultKeyName			= null;
+		_watchService			= null;
+		_watchedDirectories		= new ConcurrentHashMap<Path, Boolean>();
+		_watchThread			= null;
+	}
+	
+	
+	//Properties
+	public boolean isEmpty() {
+		return _keys.isEmpty();
+	}
+	
+	//The key used by every listener when no rule of the listener matches
+	public void setDefaultKey(String keyName) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::setDefaultKey [%s]", keyName);
+		_defaultKeyName = keyName;
+	}
+	
+	public void setListenerKey(int listenerPort, String keyName) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::setListenerKey [Port %d - %s]", listenerPort, keyName);
+		_listenerKeys.put(listenerPort, keyName);
+	}
+	
+	//The rule only applies to the sources of the given listener - the listeners of a process share the key ring
+	//The key of a source is never used for the other sources - they use the key of the listener, or the default key
+	public void setSourceKey(int listenerPort, String sourceAddress, String keyName) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::setSourceKey [Port %d - Source %s - %s]", listenerPort, sourceAddress, keyName);
+		_sourceKeys.put(_getSourceRuleName(listenerPort, sourceAddress), keyName);
+	}
+	
+	
+	//Public Functions
+	
+	//Adds or replaces a key - returns the key name, or null if the key is invalid
+	public String addKey(String keyName, byte[] key) {
+		RSADecryptor decryptor = _keys.get(keyName);
+		
+		if (decryptor == null) {
+			decryptor = new RSADecryptor();
+			if (decryptor.setPrivateRSAKey(key) == false) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::addKey [Invalid key %s]", keyName);
+				return null;
+			}
+			
+			_keys.put(keyName, decryptor);
+		} else if (decryptor.setPrivateRSAKey(key) == false) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::addKey [Invalid key %s - keeping the current key]", keyName);
+			return null;
+		}
+		
+		return keyName;
+	}
+	
+	//Loads a key file and watches it for changes - returns the key name, or null if the key could not be loaded
+	public String addKeyFile(String keyPath) {
+		Path	path		= Paths.get(keyPath).toAbsolutePath().normalize();
+		String	keyName		= path.toString();
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::addKeyFile [%s]", keyName);
+		
+		try {
+			if (addKey(keyName, Files.readAllBytes(path)) == null) {
+				return null;
+			}
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::addKeyFile [Failed to read the key file %s]", keyName);
+			return null;
+		}
+		
+		_watchDirectory(path.getParent());
+		
+		return keyName;
+	}
+	
+	//Loads the key files of a directory in parallel and watches them for changes - returns the key names by file name without extension
+	//Keyed proxies are restarted during failover - the keys of a directory are parsed and checked by one thread per core
+	public Map<String, String> addKeyDirectory(String directoryPath) {
+		Path						directory		= Paths.get(directoryPath).toAbsolutePath().normalize();
+		List<Path>					paths			= new ArrayList<Path>();
+		List<Future<String>>		results			= new ArrayList<Future<String>>();
+		Map<String, String>			keyNames		= new TreeMap<String, String>();
+		long						startTime		= System.nanoTime();
+		
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, KEY_FILE_PATTERN)) {
+			for (Path path : stream) {
+				if (Files.isRegularFile(path)) {
+					paths.add(path);
+				}
+			}
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::addKeyDirectory [Failed to list the key directory %s]", directory);
+			return keyNames;
+		}
+		Collections.sort(paths);
+		
+		ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(paths.size(), Runtime.getRuntime().availableProcessors())));
+		
+		for (final Path path : paths) {
+			results.add(loaders.submit(new Callable<String>() {
+				public String call() {
+					return addKeyFile(path.toString());
+				}
+			}));
+		}
+		loaders.shutdown();
+		
+		for (int i = 0; i < paths.size(); i++) {
+			String	fileName	= paths.get(i).getFileName().toString();
+			String	keyName		= null;
+			
+			try {
+				keyName = results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			
+			if (keyName != null) {
+				keyNames.put(fileName.substring(0, fileName.lastIndexOf('.')), keyName);
+			}
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::addKeyDirectory [%s - %d of %d Keys Loaded in %d ms]", directory, keyNames.size(), paths.size(), (System.nanoTime() - startTime) / 1000000);
+		
+		return keyNames;
+	}
+	
+	//Returns the decryptor for a session - source address rules first, then the listener rules, then the default key
+	//Returns null when no key applies to the source
+	public RSADecryptor getDecryptor(int listenerPort, String sourceAddress) {
+		String			keyName		= null;
+		
+		if (sourceAddress != null) {
+			keyName = _sourceKeys.get(_getSourceRuleName(listenerPort, sourceAddress));
+		}
+		
+		if (keyName == null) {
+			keyName = _listenerKeys.get(listenerPort);
+		}
+		
+		if (keyName == null) {
+			keyName = _defaultKeyName;
+		}
+		
+		return ((keyName != null) ? _keys.get(keyName) : null);
+	}
+	
+	//Stops watching the key files
+	public void close() {
+		Thread			watchThread		= null;
+		
+		synchronized (this) {
+			if (_watchService != null) {
+				try {
+					_watchService.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				_watchService = null;
+			}
+			
+			watchThread		= _watchThread;
+			_watchThread	= null;
+		}
+		
+		if (watchThread != null) {
+			try {
+				watchThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	
+	//Private Functions
+	
+	String _getSourceRuleName(int listenerPort, String sourceAddress) {
+		return listenerPort + "/" + sourceAddress;
+	}
+	
+	synchronized void _watchDirectory(Path directory) {
+		if ((directory == null) || _watchedDirectories.containsKey(directory)) {
+			return;
+		}
+		
+		try {
+			if (_watchService == null) {
+				_watchService	= FileSystems.getDefault().newWatchService();
+				_watchThread	= new Thread(new WatchOperation(_watchService), "KeyRingWatcher");
+				_watchThread.setDaemon(true);
+				_watchThread.start();
+			}
+			
+			//Key files are usually replaced with a rename, which shows as a creation
+			directory.register(_watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			_watchedDirectories.put(directory, Boolean.TRUE);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::_watchDirectory [Failed to watch %s - the keys in it won't be reloaded]", directory);
+		}
+	}
+	
+	void _reloadKeyFile(Path path) {
+		String			keyName		= path.toAbsolutePath().normalize().toString();
+		
+		//Only reload the files of known keys
+		if (_keys.containsKey(keyName) == false) {
+			return;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "KeyRing::_reloadKeyFile [%s]", keyName);
+		
+		//A file being written may not be a valid key yet - the current key stays until the next change
+		try {
+			addKey(keyName, Files.readAllBytes(path));
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "KeyRing::_reloadKeyFile [Failed to read the key file %s]", keyName);
+		}
+	}
+	
+	
+	//Operation Class
+	
+	class WatchOperation implements Runnable {
+		
+		WatchService		_watcher;
+		
+		public WatchOperation(WatchService watcher) {
+			_watcher	= watcher;
+		}
+		
+		public void run() {
+			while (true) {
+				WatchKey watchKey = null;
+				
+				try {
+					watchKey = _watcher.take();
+				} catch (InterruptedException e) {
+					return;
+				} catch (ClosedWatchServiceException e) {
+					return;
+				}
+				
+				Path directory = (Path)watchKey.watchable();
+				
+				for (WatchEvent<?> event : watchKey.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						continue;
+					}
+					
+					_reloadKeyFile(directory.resolve((Path)event.context()));
+				}
+				
+				watchKey.reset();
+			}
+		}
+	}
+}
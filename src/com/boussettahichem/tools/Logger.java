@@ -1,31 +1,295 @@
 package com.boussettahichem.tools;
 
+import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Formatter;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+//Asynchronous logger: the callers only claim a slot of a ring buffer, a background thread formats and writes the messages in batches
+//Messages below the active level are dropped before being formatted - the arguments are formatted by the writer thread
 public class Logger {
 	
+	//User Defined Types
+	enum LogLevel {
+		LogLevelTrace,				//Frame contents
+		LogLevelDebug,				//Per frame and per request events
+		LogLevelInfo,				//Configuration, connections and sessions
+		LogLevelWarning,			//Recoverable failures
+		LogLevelError,				//Failures
+		LogLevelOff
+	};
+	
+	//Constants
+	static final int			RING_BUFFER_LENGTH			= 8192;				//Power of 2
+	static final int			MAX_BATCH_LENGTH			= 512;
+	static final long			IDLE_WAIT_NANOS				= 1000000;			//Also the resolution of the cached clock
+	static final long			STOP_TIMEOUT_MILLIS			= 2000;
+	
 	//Shared Logger Instance
 	private static Logger g_sharedLogger = null;
 	
+	//Member Variables
+	volatile LogLevel			_level;
+	volatile long				_currentTimeMillis;			//Cached clock, updated by the writer thread
+	volatile boolean			_isStopping;
+	LogRecord[]					_records;
+	AtomicLongArray				_sequences;					//Per slot: the position it can be claimed at, or that position + 1 once published
+	AtomicLong					_tail;						//Next position to claim
+	long						_head;						//Next position to write - only used by the writer thread
+	AtomicLong					_droppedCount;
+	volatile PrintStream		_output;
+	Thread						_writerThread;
+	
+	//Writer thread's Variables
+	StringBuilder				_batch;
+	Formatter					_formatter;					//Formats the messages straight into the batch
+	SimpleDateFormat			_dateFormatter;
+	long						_lastSecond;
+	String						_lastSecondText;
+	
+	
+	//Private Constructor
 	private Logger() {
+		_level					= LogLevel.LogLevelInfo;
+		_currentTimeMillis		= System.currentTimeMillis();
+		_isStopping				= false;
+		_records				= new LogRecord[RING_BUFFER_LENGTH];
+		_sequences				= new AtomicLongArray(RING_BUFFER_LENGTH);
+		_tail					= new AtomicLong(0);
+		_head					= 0;
+		_droppedCount			= new AtomicLong(0);
+		_output					= System.out;
+		_batch					= new StringBuilder(16 * 1024);
+		_formatter				= new Formatter(_batch);
+		_dateFormatter			= new SimpleDateFormat("HH:mm:ss");
+		_lastSecond				= -1;
+		_lastSecondText			= null;
 		
-	}
-	
-	public void log(String message) {
-		SimpleDateFormat dateFormatter = new SimpleDateFormat("HH:mm:ss:SSS");
-		Date now = new Date();
-		String currentTimeToString = dateFormatter.format(now);
+		for (int i = 0; i < RING_BUFFER_LENGTH; i++) {
+			_records[i] = new LogRecord();
+			_sequences.set(i, i);
+		}
+		
+		_writerThread			= new Thread(new WriteOperation(), "LoggerWriter");
+		_writerThread.setDaemon(true);
+		_writerThread.start();
 		
-		//Log time & message
-		System.out.println(String.format("[%s]%s", currentTimeToString, message));
+		//Write the messages still in the buffer on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(new StopOperation(), "LoggerShutdown"));
 	}
 	
-	static public Logger getSharedLogger() {
+	static public synchronized Logger getSharedLogger() {
 		if (g_sharedLogger == null) {
 			g_sharedLogger = new Logger();
 		}
 		
 		return g_sharedLogger;
 	}
+	
+	
+	//Properties
+	public void setLevel(LogLevel level) {
+		_level = level;
+	}
+	
+	public LogLevel getLevel() {
+		return _level;
+	}
+	
+	//Where the writer thread writes the messages - System.out by default
+	public void setOutput(PrintStream output) {
+		_output = output;
+	}
+	
+	public PrintStream getOutput() {
+		return _output;
+	}
+	
+	//Callers check the level before building costly arguments, like hex dumps
+	public boolean isLoggable(LogLevel level) {
+		return (level.ordinal() >= _level.ordinal());
+	}
+	
+	
+	//Public Functions
+	
+	//Informational message
+	public void log(String message) {
+		log(LogLevel.LogLevelInfo, message);
+	}
+	
+	public void log(LogLevel level, String message) {
+		if (isLoggable(level)) {
+			_append(message, null);
+		}
+	}
+	
+	//The message is formatted by the writer thread - the arguments must not change after the call
+	public void log(LogLevel level, String format, Object... args) {
+		if (isLoggable(level)) {
+			_append(format, args);
+		}
+	}
+	
+	//Parses a level name: trace, debug, info, warning, error or off - returns null for an unknown name
+	static public LogLevel parseLevel(String name) {
+		for (LogLevel level : LogLevel.values()) {
+			if (level.name().substring("LogLevel".length()).equalsIgnoreCase(name)) {
+				return level;
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	//Private Functions
+	
+	//Claims a slot and publishes the message in it - the message is dropped if the buffer is full
+	void _append(String format, Object[] args) {
+		long position = _tail.get();
+		
+		while (true) {
+			int		slot		= (int)(position & (RING_BUFFER_LENGTH - 1));
+			long	sequence	= _sequences.get(slot);
+			
+			if (sequence == position) {
+				if (_tail.compareAndSet(position, position + 1)) {
+					LogRecord record = _records[slot];
+					
+					record._time		= _currentTimeMillis;
+					record._format		= format;
+					record._args		= args;
+					
+					_sequences.set(slot, position + 1);
+					return;
+				}
+				position = _tail.get();
+			} else if (sequence < position) {
+				//Full - the writer is too slow
+				_droppedCount.incrementAndGet();
+				return;
+			} else {
+				position = _tail.get();
+			}
+		}
+	}
+	
+	//Writes the published messages in one batch - returns the number of messages written
+	int _writeBatch() {
+		int		recordCount		= 0;
+		long	droppedCount	= _droppedCount.getAndSet(0);
+		
+		_batch.setLength(0);
+		
+		if (droppedCount > 0) {
+			_appendTime(_currentTimeMillis);
+			_batch.append("Logger::_writeBatch [").append(droppedCount).append(" messages dropped]\n");
+		}
+		
+		while (recordCount < MAX_BATCH_LENGTH) {
+			int		slot		= (int)(_head & (RING_BUFFER_LENGTH - 1));
+			
+			if (_sequences.get(slot) != _head + 1) {
+				break;
+			}
+			
+			LogRecord record = _records[slot];
+			
+			_appendTime(record._time);
+			if (record._args == null) {
+				_batch.append(record._format);
+			} else {
+				try {
+					_formatter.format(record._format, record._args);
+				} catch (IllegalFormatException e) {
+					_batch.append(record._format);
+				}
+			}
+			_batch.append('\n');
+			
+			//Release the slot
+			record._format	= null;
+			record._args	= null;
+			_sequences.set(slot, _head + RING_BUFFER_LENGTH);
+			_head++;
+			recordCount++;
+		}
+		
+		if (_batch.length() > 0) {
+			PrintStream output = _output;
+			
+			output.print(_batch);
+			output.flush();
+		}
+		
+		return recordCount;
+	}
+	
+	//[HH:mm:ss:SSS] - the date formatter only runs once per second
+	void _appendTime(long timeMillis) {
+		long second = timeMillis / 1000;
+		
+		if (second != _lastSecond) {
+			_lastSecond		= second;
+			_lastSecondText	= _dateFormatter.format(new Date(second * 1000));
+		}
+		
+		int millis = (int)(timeMillis % 1000);
+		
+		_batch.append('[').append(_lastSecondText).append(':');
+		if (millis < 100) {
+			_batch.append('0');
+		}
+		if (millis < 10) {
+			_batch.append('0');
+		}
+		_batch.append(millis).append(']');
+	}
+	
+	
+	//Ring Buffer Slot
+	
+	static class LogRecord {
+		long				_time;
+		String				_format;
+		Object[]			_args;
+	}
+	
+	
+	//Operation Classes
+	
+	class WriteOperation implements Runnable {
+		
+		public void run() {
+			while (true) {
+				_currentTimeMillis = System.currentTimeMillis();
+				
+				if (_writeBatch() == 0) {
+					if (_isStopping) {
+						return;
+					}
+					LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				}
+			}
+		}
+	}
+	
+	class StopOperation implements Runnable {
+		
+		public void run() {
+			_isStopping = true;
+			LockSupport.unpark(_writerThread);
+			
+			try {
+				_writerThread.join(STOP_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 }
@@ -0,0 +1,121 @@
+package com.boussettahichem.tools;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//Registry of the proxy's counters and latency histograms
+//Counters and histograms are lock-free - the classes updating them keep a reference rather than looking them up for each update
+public class Metrics {
+	
+	//Counter Names
+	static final String		SOURCE_BYTES_RECEIVED			= "source.bytes.received";
+	static final String		SOURCE_FRAMES_RECEIVED			= "source.frames.received";
+	static final String		SOURCE_WRITES					= "source.writes";
+	static final String		DESTINATION_BYTES_RECEIVED		= "destination.bytes.received";
+	static final String		DESTINATION_FRAMES_RECEIVED		= "destination.frames.received";
+	static final String		REQUESTS_SENT					= "requests.sent";
+	static final String		REQUESTS_RETRIED				= "requests.retried";
+	static final String		REQUESTS_FAILED					= "requests.failed";
+	static final String		REQUESTS_DROPPED				= "requests.dropped";
+	static final String		REQUESTS_REJECTED				= "requests.rejected";
+	static final String		SOURCE_READS_PAUSED				= "source.reads.paused";
+	static final String		RESPONSES_WRITTEN				= "responses.written";
+	static final String		RESPONSES_UNMATCHED				= "responses.unmatched";
+	static final String		RESPONSES_NULL_SEQUENCE			= "responses.nullSequence";
+	static final String		DECRYPTED_BYTES					= "decrypt.bytes";
+	static final String		SESSIONS_ACCEPTED				= "sessions.accepted";
+	static final String		SESSIONS_ACTIVE					= "sessions.active";
+	static final String		DESTINATION_CONNECTIONS_OPENED	= "destination.connections.opened";
+	static final String		DESTINATION_CONNECTIONS_REUSED	= "destination.connections.reused";
+	static final String		BUFFERS_ALLOCATED				= "buffers.allocated";
+	static final String		BUFFERS_REUSED					= "buffers.reused";
+	static final String		AUDIT_RECORDS_WRITTEN			= "audit.records.written";
+	static final String		AUDIT_RECORDS_DROPPED			= "audit.records.dropped";
+	static final String		AUDIT_RECORDS_DELAYED			= "audit.records.delayed";
+	
+	//Histogram Names - values in nanoseconds
+	static final String		DECRYPT_TIME					= "decrypt.time";
+	static final String		REQUEST_ROUND_TRIP_TIME			= "request.roundTrip";
+	
+	//Shared Registry
+	private static final Metrics g_sharedMetrics = new Metrics();
+	
+	//Member Variables
+	ConcurrentMap<String, LongAdder>		_counters;
+	ConcurrentMap<String, Histogram>		_histograms;
+	
+	
+	//Private Constructor
+	private Metrics() {
+		_counters		= new ConcurrentSkipListMap<String, LongAdder>();
+		_histograms		= new ConcurrentSkipListMap<String, Histogram>();
+	}
+	
+	static public Metrics getSharedMetrics() {
+		return g_sharedMetrics;
+	}
+	
+	
+	//Public Functions
+	
+	//Returns the counter, created on first use
+	public LongAdder getCounter(String name) {
+		LongAdder counter = _counters.get(name);
+		
+		if (counter == null) {
+			LongAdder newCounter = new LongAdder();
+			
+			counter = _counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		
+		return counter;
+	}
+	
+	//Returns the histogram, created on first use
+	public Histogram getHistogram(String name) {
+		Histogram histogram = _histograms.get(name);
+		
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram(name);
+			
+			histogram = _histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		
+		return histogram;
+	}
+	
+	public Map<String, LongAdder> getCounters() {
+		return _counters;
+	}
+	
+	public Map<String, Histogram> getHistograms() {
+		return _histograms;
+	}
+	
+	//One "name value" line per counter, and per statistic of each histogram - times in microseconds
+	public void writeText(StringBuilder out) {
+		for (Map.Entry<String, LongAdder> counter : _counters.entrySet()) {
+			out.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+		}
+		
+		for (Histogram histogram : _histograms.values()) {
+			String name = histogram.getName();
+			
+			out.append(name).append(".count ").append(histogram.getCount()).append('\n');
+			out.append(name).append(".mean.us ").append(String.format("%.1f", histogram.getMean() / 1000.0)).append('\n');
+			out.append(name).append(".p50.us ").append(histogram.getValueAtPercentile(50) / 1000).append('\n');
+			out.append(name).append(".p90.us ").append(histogram.getValueAtPercentile(90) / 1000).append('\n');
+			out.append(name).append(".p99.us ").append(histogram.getValueAtPercentile(99) / 1000).append('\n');
+			out.append(name).append(".p999.us ").append(histogram.getValueAtPercentile(99.9) / 1000).append('\n');
+			out.append(name).append(".max.us ").append(histogram.getMax() / 1000).append('\n');
+		}
+	}
+}
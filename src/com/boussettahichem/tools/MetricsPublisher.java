@@ -0,0 +1,222 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+//Publishes the metrics of the proxies of a runtime over JMX, and as text on http://127.0.0.1:port/metrics
+public class MetricsPublisher {
+	
+	//Constants
+	static final String			OBJECT_NAME				= "com.boussettahichem.tools:type=RetryProxy,name=Metrics";
+	static final String			METRICS_PATH			= "/metrics";
+	
+	//Member Variables
+	ProxyRuntime				_runtime;
+	ObjectName					_objectName;
+	HttpServer					_httpServer;
+	
+	
+	//Constructor
+	public MetricsPublisher(ProxyRuntime runtime) {
+		_runtime		= runtime;
+		_objectName		= null;
+		_httpServer		= null;
+	}
+	
+	
+	//Public Functions
+	
+	//Registers the MBean, and starts the text endpoint when the port is not 0 and the endpoint is not started yet
+	public synchronized void start(int httpPort) {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		
+		try {
+			_objectName = new ObjectName(OBJECT_NAME);
+			if (mBeanServer.isRegistered(_objectName) == false) {
+				mBeanServer.registerMBean(new MetricsMBean(), _objectName);
+			}
+		} catch (JMException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "MetricsPublisher::start [Failed to register the MBean: %s]", e.toString());
+			_objectName = null;
+		}
+		
+		if ((httpPort > 0) && (_httpServer == null)) {
+			try {
+				//Local only - the metrics are not protected
+				_httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+				_httpServer.createContext(METRICS_PATH, new MetricsHandler());
+				_httpServer.start();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "MetricsPublisher::start [Metrics available on http://127.0.0.1:%d%s]", httpPort, METRICS_PATH);
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "MetricsPublisher::start [Failed to start the metrics endpoint on port %d]", httpPort);
+				_httpServer = null;
+			}
+		}
+	}
+	
+	public synchronized void stop() {
+		if (_httpServer != null) {
+			_httpServer.stop(0);
+			_httpServer = null;
+		}
+		
+		if (_objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			_objectName = null;
+		}
+	}
+	
+	//The process' metrics, then the state of the destinations and the counters of each active session of every proxy
+	public String getText() {
+		StringBuilder		text	= new StringBuilder(4096);
+		
+		Metrics.getSharedMetrics().writeText(text);
+		
+		for (RetryProxy proxy : _runtime.getProxies()) {
+			DestinationGroup group = proxy.getDestinationGroup();
+			
+			if (group != null) {
+				group.writeMetricsText(text);
+			}
+			
+			for (ProxySession session : proxy.getSessions()) {
+				session.writeMetricsText(text);
+			}
+		}
+		
+		return text.toString();
+	}
+	
+	
+	//JMX
+	
+	//Exposes every counter, and the count, mean, percentiles and max of every histogram, as read only attributes
+	class MetricsMBean implements DynamicMBean {
+		
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Metrics		metrics		= Metrics.getSharedMetrics();
+			LongAdder	counter		= metrics.getCounters().get(attribute);
+			
+			if (counter != null) {
+				return counter.sum();
+			}
+			
+			int separatorIndex = attribute.lastIndexOf('.');
+			
+			if (separatorIndex > 0) {
+				Histogram	histogram	= metrics.getHistograms().get(attribute.substring(0, separatorIndex));
+				String		statistic	= attribute.substring(separatorIndex + 1);
+				
+				if (histogram != null) {
+					if (statistic.equals("count")) {
+						return histogram.getCount();
+					} else if (statistic.equals("meanNanos")) {
+						return (long)histogram.getMean();
+					} else if (statistic.equals("p50Nanos")) {
+						return histogram.getValueAtPercentile(50);
+					} else if (statistic.equals("p99Nanos")) {
+						return histogram.getValueAtPercentile(99);
+					} else if (statistic.equals("p999Nanos")) {
+						return histogram.getValueAtPercentile(99.9);
+					} else if (statistic.equals("maxNanos")) {
+						return histogram.getMax();
+					}
+				}
+			}
+			
+			throw new AttributeNotFoundException(attribute);
+		}
+		
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					//Skipped
+				}
+			}
+			
+			return list;
+		}
+		
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read only");
+		}
+		
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+		
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			return null;
+		}
+		
+		//Built on each call - counters are created on first use
+		public MBeanInfo getMBeanInfo() {
+			Metrics						metrics		= Metrics.getSharedMetrics();
+			List<MBeanAttributeInfo>	attributes	= new ArrayList<MBeanAttributeInfo>();
+			String[]					statistics	= {"count", "meanNanos", "p50Nanos", "p99Nanos", "p999Nanos", "maxNanos"};
+			
+			for (String name : metrics.getCounters().keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+			}
+			
+			for (Map.Entry<String, Histogram> histogram : metrics.getHistograms().entrySet()) {
+				for (String statistic : statistics) {
+					String name = histogram.getKey() + "." + statistic;
+					
+					attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+				}
+			}
+			
+			return new MBeanInfo(MetricsMBean.class.getName(), "Retry proxy metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+	}
+	
+	
+	//HTTP
+	
+	class MetricsHandler implements HttpHandler {
+		
+		public void handle(HttpExchange exchange) throws IOException {
+			byte[] response = getText().getBytes(StandardCharsets.UTF_8);
+			
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, response.length);
+			
+			OutputStream responseStream = exchange.getResponseBody();
+			
+			responseStream.write(response);
+			responseStream.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+
+//Frames waiting to be written to a connection - the frames are written together with one gathering write
+//Not thread safe - the caller serializes the writes to the connection
+public class OutboundQueue {
+	
+	//Constants
+	static final int		MAX_FRAME_COUNT			= 64;
+	static final int		MAX_BYTE_COUNT			= 256 * 1024;
+	
+	//Member Variables
+	ProxyConnection			_connection;
+	PooledBuffer[]			_frames;
+	int						_frameCount;
+	int						_byteCount;
+	
+	
+	//Constructor
+	public OutboundQueue(ProxyConnection connection) {
+		_connection		= connection;
+		_frames			= new PooledBuffer[MAX_FRAME_COUNT];
+		_frameCount		= 0;
+		_byteCount		= 0;
+	}
+	
+	
+	//Properties
+	public boolean isEmpty() {
+		return (_frameCount == 0);
+	}
+	
+	public int getFrameCount() {
+		return _frameCount;
+	}
+	
+	
+	//Public Functions
+	
+	//Queues a frame, header included - the queue takes over the caller's reference on the buffer
+	//Returns true when the queue is full and must be flushed before the next frame is added
+	public boolean add(PooledBuffer frame) {
+		_frames[_frameCount++]	= frame;
+		_byteCount				+= frame.getBuffer().remaining();
+		
+		return ((_frameCount == _frames.length) || (_byteCount >= MAX_BYTE_COUNT));
+	}
+	
+	//Writes the queued frames - returns the number of frames written
+	//The frames are dropped when the write fails
+	public int flush() throws IOException {
+		int frameCount = _frameCount;
+		
+		if (frameCount == 0) {
+			return 0;
+		}
+		
+		try {
+			_connection.write(_frames, 0, _frameCount);
+		} finally {
+			clear();
+		}
+		
+		return frameCount;
+	}
+	
+	//Releases the queued frames
+	public void clear() {
+		for (int i = 0; i < _frameCount; i++) {
+			_frames[i].release();
+			_frames[i] = null;
+		}
+		_frameCount		= 0;
+		_byteCount		= 0;
+	}
+}
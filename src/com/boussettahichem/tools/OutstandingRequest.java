@@ -0,0 +1,123 @@
+package com.boussettahichem.tools;
+
+import java.util.concurrent.ScheduledFuture;
+
+public class OutstandingRequest {
+	
+	//User Defined Types
+	enum RequestState {
+		RequestStateQueued,			//Received from source, waiting for a free slot in the retry window
+		RequestStatePending,		//Sent, waiting for the reply
+		RequestStateCompleted,		//Reply received, waiting for the previous requests before being written to source
+		RequestStateFailed,			//No valid reply after all the retries
+		RequestStateRejected		//Not sent - the submission queue was full, an error response is written to source in its place
+	};
+	
+	//Member Variables
+	PooledBuffer			_frame;					//Header, sequence number and request data - sent as is on each retry
+	int						_sequenceNumber;
+	int						_retryNumber;
+	long					_sentTime;
+	ScheduledFuture<?>		_timeout;
+	RequestState			_state;
+	PooledBuffer			_response;
+	
+	
+	//Constructor - the request is queued until it gets a sequence number
+	public OutstandingRequest(PooledBuffer frame) {
+		_frame				= frame;
+		_sequenceNumber		= 0;
+		_retryNumber		= 0;
+		_sentTime			= 0;
+		_timeout			= null;
+		_state				= RequestState.RequestStateQueued;
+		_response			= null;
+	}
+	
+	
+	//Properties
+	public int getSequenceNumber() {
+		return _sequenceNumber;
+	}
+	
+	//The sequence number is the first byte after the header
+	public void setSequenceNumber(int sequenceNumber) {
+		_sequenceNumber		= sequenceNumber;
+		_frame.getBuffer().put(2, (byte)sequenceNumber);
+	}
+	
+	public PooledBuffer getFrame() {
+		return _frame;
+	}
+	
+	public boolean isQueued() {
+		return (_state == RequestState.RequestStateQueued);
+	}
+	
+	public boolean isPending() {
+		return (_state == RequestState.RequestStatePending);
+	}
+	
+	//Replied, failed or rejected - the request can be written to source
+	public boolean isFinished() {
+		return ((_state != RequestState.RequestStateQueued) && (_state != RequestState.RequestStatePending));
+	}
+	
+	public boolean isRejected() {
+		return (_state == RequestState.RequestStateRejected);
+	}
+	
+	
+	//Public Functions
+	
+	//The request leaves the queue and waits for the reply to the given sequence number
+	public void send(int sequenceNumber) {
+		setSequenceNumber(sequenceNumber);
+		
+		_state		= RequestState.RequestStatePending;
+	}
+	
+	public void cancelTimeout() {
+		if (_timeout != null) {
+			_timeout.cancel(false);
+			_timeout = null;
+		}
+	}
+	
+	//The request takes over the caller's reference on the response
+	public void complete(PooledBuffer response) {
+		cancelTimeout();
+		
+		_response	= response;
+		_state		= RequestState.RequestStateCompleted;
+	}
+	
+	public void fail() {
+		cancelTimeout();
+		
+		_state		= RequestState.RequestStateFailed;
+	}
+	
+	//The frame is released right away - the request only keeps its place in the order of the responses
+	public void reject() {
+		if (_frame != null) {
+			_frame.release();
+			_frame = null;
+		}
+		
+		_state		= RequestState.RequestStateRejected;
+	}
+	
+	//Releases the buffers of the request once it is written to source or dropped
+	public void release() {
+		if (_frame != null) {
+			_frame.release();
+			_frame = null;
+		}
+		
+		if (_response != null) {
+			_response.release();
+			_response = null;
+		}
+	}
+}
@@ -25,12 +25,12 @@
 
 package com.boussettahichem.tools;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 
 /**
@@ -38,6 +38,11 @@ import java.io.InputStreamReader;
  * is saved and it can be used to determine the type of the
  * PEM file.
  * 
+ * The Base64 body is decoded straight from the bytes of the
+ * file into the DER buffer. A file without a begin marker
+ * that starts like an ASN.1 sequence is taken as raw DER,
+ * and has no begin marker.
+ * 
  * @author zhang
  */
 public class PEMReader {
@@ -52,19 +57,27 @@ public class PEMReader {
     public static final String PUBLIC_X509_MARKER = 
         "-----BEGIN PUBLIC KEY-----";
 
-    private static final String BEGIN_MARKER = "-----BEGIN ";
+    private static final byte[] BEGIN_MARKER = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MARKER_END = "-----".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ENCRYPTED_HEADER = "Proc-Type:".getBytes(StandardCharsets.US_ASCII);
+
+    // First byte of a DER encoded key - the tag of an ASN.1 SEQUENCE
+    private static final byte DER_SEQUENCE_TAG = 0x30;
 
-    private InputStream stream;
     private byte[] derBytes;
     private String beginMarker;
 
     public PEMReader(InputStream inStream) throws IOException {
-        stream = inStream;
-        readFile();
+        try {
+            byte[] buffer = readStream(inStream);
+            readBuffer(buffer, buffer.length);
+        } finally {
+            inStream.close();
+        }
     }
 
     public PEMReader(byte[] buffer) throws IOException {
-        this(new ByteArrayInputStream(buffer));
+        readBuffer(buffer, buffer.length);
     }
 
     public PEMReader(String fileName) throws IOException {
@@ -80,56 +93,98 @@ public class PEMReader {
     }
 
     /**
-     * Read the PEM file and save the DER encoded octet
-     * stream and begin marker.
+     * Find the PEM block in the first length bytes of the buffer
+     * and save the DER encoded octet stream and begin marker.
      * 
      * @throws IOException
      */
-    protected void readFile() throws IOException {
+    protected void readBuffer(byte[] buffer, int length) throws IOException {
 
-        String  line;
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(stream));
-        try {
-            while ((line = reader.readLine()) != null)
-            {
-                if (line.indexOf(BEGIN_MARKER) != -1)
-                {
-                    beginMarker = line.trim();
-                    String endMarker = beginMarker.replace("BEGIN", "END");
-                    derBytes = readBytes(reader, endMarker);
-                    return;
-                }
-            }           
+        int begin = indexOf(buffer, length, BEGIN_MARKER, 0);
+
+        if (begin == -1)
+        {
+            if ((length > 0) && (buffer[0] == DER_SEQUENCE_TAG)) {
+                derBytes = (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+                return;
+            }
             throw new IOException("Invalid PEM file: no begin marker");
-        } finally {
-            reader.close();
         }
+
+        int markerEnd = indexOf(buffer, length, MARKER_END, begin + BEGIN_MARKER.length);
+        if (markerEnd == -1) {
+            throw new IOException("Invalid PEM file: unterminated begin marker");
+        }
+        markerEnd += MARKER_END.length;
+
+        beginMarker = new String(buffer, begin, markerEnd - begin, StandardCharsets.US_ASCII);
+        byte[] endMarker = beginMarker.replace("BEGIN", "END").getBytes(StandardCharsets.US_ASCII);
+
+        int end = indexOf(buffer, length, endMarker, markerEnd);
+        if (end == -1) {
+            throw new IOException("Invalid PEM file: No end marker");
+        }
+
+        if (indexOf(buffer, end, ENCRYPTED_HEADER, markerEnd) != -1) {
+            throw new IOException("Invalid PEM file: encrypted keys are not supported");
+        }
+
+        derBytes = readBytes(buffer, markerEnd, end - markerEnd);
     }
 
 
     /**
-     * Read the lines between BEGIN and END marker and convert
-     * the Base64 encoded content into binary byte array.
+     * Convert the Base64 encoded content between BEGIN and END
+     * marker into binary byte array.
      * 
      * @return DER encoded octet stream
      * @throws IOException
      */
-    private byte[] readBytes(BufferedReader reader, String endMarker) throws IOException
+    private byte[] readBytes(byte[] buffer, int offset, int length) throws IOException
     {
-        String          line = null;
-        StringBuffer    buf = new StringBuffer();
+        byte[]  der = new byte[length * 3 / 4];
+        int     derLength;
 
-        while ((line = reader.readLine()) != null)
-        {
-            if (line.indexOf(endMarker) != -1) {
+        try {
+            derLength = Base64Codec.decode(buffer, offset, length, der, 0);
+        } catch (IllegalArgumentException e) {
+            // Encrypted PEM files have headers before the Base64 content
+            throw new IOException("Invalid PEM file: " + e.getMessage());
+        }
+
+        return (derLength == der.length) ? der : Arrays.copyOf(der, derLength);
+    }
 
-                return Base64Codec.decode(buf.toString());
+
+    private static int indexOf(byte[] buffer, int length, byte[] pattern, int from)
+    {
+        int last = length - pattern.length;
+
+        for (int i = from; i <= last; i++)
+        {
+            int j = 0;
+            while ((j < pattern.length) && (buffer[i + j] == pattern[j])) {
+                j++;
             }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
 
-            buf.append(line.trim());        
+
+    private static byte[] readStream(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream   out = new ByteArrayOutputStream(4096);
+        byte[]                  chunk = new byte[4096];
+        int                     count;
+
+        while ((count = stream.read(chunk)) != -1) {
+            out.write(chunk, 0, count);
         }
 
-        throw new IOException("Invalid PEM file: No end marker");
-    }    
+        return out.toByteArray();
+    }
 }
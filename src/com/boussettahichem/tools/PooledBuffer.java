@@ -0,0 +1,92 @@
+package com.boussettahichem.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//A direct buffer of the pool carrying a frame from one stage to the next
+//Each holder of the frame owns a reference and releases it once done - the buffer is reused when the last one is released
+public class PooledBuffer {
+	
+	//Member Variables
+	BufferPool					_pool;
+	BufferPool.SizeClass		_sizeClass;			//null when the buffer is not pooled
+	PooledBuffer				_root;				//The buffer owning the memory and the references - this buffer, unless it is a duplicate
+	ByteBuffer					_buffer;
+	AtomicInteger				_referenceCount;
+	
+	
+	//Constructor
+	PooledBuffer(BufferPool pool, BufferPool.SizeClass sizeClass, ByteBuffer buffer) {
+		_pool				= pool;
+		_sizeClass			= sizeClass;
+		_root				= this;
+		_buffer				= buffer;
+		_referenceCount		= new AtomicInteger(0);
+	}
+	
+	//Duplicate sharing the memory and the references of the root buffer, with its own position and limit
+	PooledBuffer(PooledBuffer root) {
+		_pool				= root._pool;
+		_sizeClass			= root._sizeClass;
+		_root				= root;
+		_buffer				= root._buffer.duplicate();
+		_referenceCount		= null;
+	}
+	
+	
+	//Properties
+	
+	//The frame's bytes - between the position and the limit when the buffer is written
+	public ByteBuffer getBuffer() {
+		return _buffer;
+	}
+	
+	public int getReferenceCount() {
+		return _root._referenceCount.get();
+	}
+	
+	
+	//Public Functions
+	
+	public PooledBuffer retain() {
+		if (_root._referenceCount.getAndIncrement() <= 0) {
+			throw new IllegalStateException("PooledBuffer::retain [Buffer already released]");
+		}
+		
+		return this;
+	}
+	
+	public void release() {
+		int referenceCount = _root._referenceCount.decrementAndGet();
+		
+		if (referenceCount == 0) {
+			_pool._recycle(_root);
+		} else if (referenceCount < 0) {
+			throw new IllegalStateException("PooledBuffer::release [Buffer already released]");
+		}
+	}
+	
+	//Returns a duplicate holding its own reference - for a holder that moves the position while others use the buffer
+	public PooledBuffer retainedDuplicate() {
+		retain();
+		
+		return new PooledBuffer(_root)._setBounds(_buffer.position(), _buffer.limit());
+	}
+	
+	
+	//Private Functions
+	
+	PooledBuffer _setBounds(int position, int limit) {
+		_buffer.limit(limit);
+		_buffer.position(position);
+		
+		return this;
+	}
+	
+	//Called by the pool when the buffer is handed out
+	void _reset(int length) {
+		_buffer.clear();
+		_buffer.limit(length);
+		_referenceCount.set(1);
+	}
+}
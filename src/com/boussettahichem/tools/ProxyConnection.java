@@ -0,0 +1,123 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public abstract class ProxyConnection {
+	
+	//Member Variables
+	volatile ProxySession	_session;		//null while a destination connection is idle in its pool
+	boolean					_isSource;
+	DestinationPool			_pool;			//The pool of a destination connection - told when a non blocking connection cannot be established
+	
+	
+	//Abstract Functions
+	
+	//Starts reading frames - Source frames are written to destination, destination frames are written to source
+	public abstract void start(ProxySession session, boolean isSource);
+	
+	//Writes the bytes between the position and the limit of each buffer in order, with gathering writes when possible
+	//The positions of the buffers are not moved - a non blocking connection holds a reference on the buffers until they are written
+	public abstract void write(PooledBuffer[] buffers, int offset, int length) throws IOException;
+	
+	public abstract boolean isConnected();
+	
+	//False while a non blocking connection is being established
+	public boolean isEstablished() {
+		return isConnected();
+	}
+	
+	//True while buffers given to write() are not written to the socket yet - a blocking connection writes them before returning
+	public boolean hasPendingWrites() {
+		return false;
+	}
+	
+	//False once a non blocking source connection has more buffers queued than it takes - the session is told when it is writable again
+	public boolean isWritable() {
+		return true;
+	}
+	
+	//Stops reading once the frames already received are handled - the peer is held back by TCP flow control
+	public abstract void pauseReading();
+	
+	public abstract void resumeReading();
+	
+	//Sends the end of stream once the buffers already written are sent - the connection keeps reading until the peer closes it
+	public abstract void shutdownOutput();
+	
+	public abstract void close();
+	
+	public abstract String getRemoteAddress();
+	
+	
+	//Public Functions
+	
+	public void write(PooledBuffer buffer) throws IOException {
+		write(new PooledBuffer[] {buffer}, 0, 1);
+	}
+	
+	//Hands a started connection over to another session
+	public void attach(ProxySession session) {
+		_session = session;
+	}
+	
+	//The connection keeps reading - the frames received until it is attached again are dropped
+	public void detach() {
+		_session = null;
+	}
+	
+	public void setPool(DestinationPool pool) {
+		_pool = pool;
+	}
+	
+	
+	//Frame Dispatch
+	
+	void _dispatchFrame(ByteBuffer frame) {
+		ProxySession session = _session;
+		
+		if (session == null) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxyConnection::_dispatchFrame [Frame received on an idle connection from %s - Dropped]", getRemoteAddress());
+		} else if (_isSource) {
+			session.writeDataToDestination(frame);
+		} else {
+			session.writeDataToSource(frame);
+		}
+	}
+	
+	void _dispatchDataReceived(int byteCount, int frameCount) {
+		ProxySession session = _session;
+		
+		if (session == null) {
+			return;
+		}
+		
+		if (_isSource) {
+			session.sourceDataReceived(byteCount, frameCount);
+		} else {
+			session.destinationDataReceived(byteCount, frameCount);
+		}
+	}
+	
+	//The writes queued by a non blocking source connection fell back below its low watermark
+	void _dispatchWritable() {
+		ProxySession session = _session;
+		
+		if ((session != null) && (_isSource)) {
+			session.sourceWritable();
+		}
+	}
+	
+	void _dispatchDisconnection() {
+		ProxySession session = _session;
+		
+		if (session == null) {
+			//An idle connection is closed and left for its pool to discard
+			close();
+		} else if (_isSource) {
+			session.sourceDisconnected();
+		} else {
+			session.destinationDisconnected(this);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//What the proxies of a process share: the event loops, the timers, the key ring, the session ids, the metrics publisher and the audit log
+//The decrypt workers, the buffer pool, the logger and the metrics are shared by the whole process already
+//A proxy created without a runtime gets its own
+public class ProxyRuntime {
+	
+	//Member Variables
+	CopyOnWriteArrayList<RetryProxy>	_proxies;				//The proxies starting or started, and not stopped yet
+	EventLoopGroup						_eventLoopGroup;		//Created by the first proxy running in NIO mode
+	ScheduledExecutorService			_timer;					//Reply timeouts and delayed flushes - the tasks must not block
+	ScheduledExecutorService			_healthCheckTimer;		//Checks of the destination connections - the checks may block while connecting
+	KeyRing								_keyRing;
+	AtomicInteger						_nextSessionId;
+	MetricsPublisher					_metricsPublisher;
+	AuditLog							_auditLog;				//Null when the decrypted responses are not kept
+	int									_auditQueueCapacity;	//0 for AuditLog's default
+	AuditLog.OverflowPolicy				_auditOverflowPolicy;
+	
+	
+	//Constructor
+	public ProxyRuntime() {
+		_proxies			= new CopyOnWriteArrayList<RetryProxy>();
+		_eventLoopGroup		= null;
+		_timer				= Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ProxyTimer"));
+		_healthCheckTimer	= Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DestinationPool"));
+		_keyRing			= new KeyRing();
+		_nextSessionId		= new AtomicInteger(0);
+		_metricsPublisher	= new MetricsPublisher(this);
+		_auditLog			= null;
+		_auditQueueCapacity	= 0;
+		_auditOverflowPolicy	= AuditLog.OverflowPolicy.OverflowPolicyBlock;
+	}
+	
+	
+	//Properties
+	public ScheduledExecutorService getTimer() {
+		return _timer;
+	}
+	
+	public ScheduledExecutorService getHealthCheckTimer() {
+		return _healthCheckTimer;
+	}
+	
+	public KeyRing getKeyRing() {
+		return _keyRing;
+	}
+	
+	public AuditLog getAuditLog() {
+		return _auditLog;
+	}
+	
+	//The records waiting for the audit log's writer - set before the audit directory
+	public synchronized void setAuditQueueCapacity(int capacity) {
+		_auditQueueCapacity = capacity;
+	}
+	
+	//What happens to the records once the queue is full - set before the audit directory
+	public synchronized void setAuditOverflowPolicy(AuditLog.OverflowPolicy policy) {
+		_auditOverflowPolicy = policy;
+	}
+	
+	//The decrypted responses of all the proxies are kept in the segments of the directory - see AuditLog
+	public synchronized boolean setAuditDirectory(String directory) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxyRuntime::setAuditDirectory [%s]", directory);
+		
+		if (_auditLog != null) {
+			_auditLog.close();
+			_auditLog = null;
+		}
+		
+		try {
+			_auditLog = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, _auditQueueCapacity, _auditOverflowPolicy);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "ProxyRuntime::setAuditDirectory [Failed to open %s - %s]", directory, e.toString());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	public Collection<RetryProxy> getProxies() {
+		return _proxies;
+	}
+	
+	//Session ids are unique in the process - the metrics of the sessions of all the proxies are published together
+	public int nextSessionId() {
+		return _nextSessionId.incrementAndGet();
+	}
+	
+	//One event loop per core, for all the proxies
+	public synchronized EventLoopGroup getEventLoopGroup() throws IOException {
+		if (_eventLoopGroup == null) {
+			_eventLoopGroup = new EventLoopGroup(Runtime.getRuntime().availableProcessors());
+		}
+		
+		return _eventLoopGroup;
+	}
+	
+	
+	//Public Functions
+	
+	//Stops the proxies together - each one drains its sessions within its own drain timeout
+	public void stopProxies() {
+		List<Thread> threads = new ArrayList<Thread>();
+		
+		for (final RetryProxy proxy : _proxies) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					proxy.stopServer();
+				}
+			}, "ProxyStop-" + proxy.getSourcePort());
+			
+			thread.start();
+			threads.add(thread);
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Drains the proxies when the process is asked to terminate (SIGTERM, SIGINT) - deploys do not cut the requests in progress
+	public void addShutdownHook() {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxyRuntime::addShutdownHook [Process Terminating - Stopping %d Proxies]", _proxies.size());
+				
+				stopProxies();
+			}
+		}, "ProxyShutdown"));
+	}
+	
+	//Called for each proxy before any of them is started on its own thread - the shared resources are not released
+	//when a proxy fails to start before the others have started
+	public synchronized void proxyStarting(RetryProxy proxy) {
+		_proxies.addIfAbsent(proxy);
+	}
+	
+	//Called by a proxy starting - the metrics endpoint is started by the first proxy giving a port
+	public synchronized void proxyStarted(RetryProxy proxy, int metricsPort) {
+		_proxies.addIfAbsent(proxy);
+		_metricsPublisher.start(metricsPort);
+	}
+	
+	//Called by a proxy stopping, or failing to start - the shared resources are released with the last proxy
+	public synchronized void proxyStopped(RetryProxy proxy) {
+		_proxies.remove(proxy);
+		
+		if (_proxies.isEmpty() == false) {
+			return;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxyRuntime::proxyStopped [Last proxy stopped - Releasing the shared resources]");
+		
+		_keyRing.close();
+		_metricsPublisher.stop();
+		
+		//The records queued are written first
+		if (_auditLog != null) {
+			_auditLog.close();
+			_auditLog = null;
+		}
+		
+		if (_eventLoopGroup != null) {
+			_eventLoopGroup.shutdown();
+			_eventLoopGroup = null;
+		}
+	}
+	
+	
+	//Thread Factory Class
+	
+	static class DaemonThreadFactory implements ThreadFactory {
+		
+		String _name;
+		
+		public DaemonThreadFactory(String name) {
+			_name = name;
+		}
+		
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, _name);
+			thread.setDaemon(true);
+			
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,1478 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ProxySession {
+	
+	//Constants
+	final int 			DATA_HEADER_LENGTH				= 2;
+	final int			REQUEST_HEADER_LENGTH			= DATA_HEADER_LENGTH + 1;		//The header and the sequence number used by the retry logic
+	final int			SEQUENCE_NUMBER_COUNT			= 256;
+	
+	//Proxy Metrics
+	static final LongAdder		g_sourceBytesReceived			= Metrics.getSharedMetrics().getCounter(Metrics.SOURCE_BYTES_RECEIVED);
+	static final LongAdder		g_sourceFramesReceived			= Metrics.getSharedMetrics().getCounter(Metrics.SOURCE_FRAMES_RECEIVED);
+	static final LongAdder		g_sourceWrites					= Metrics.getSharedMetrics().getCounter(Metrics.SOURCE_WRITES);
+	static final LongAdder		g_destinationBytesReceived		= Metrics.getSharedMetrics().getCounter(Metrics.DESTINATION_BYTES_RECEIVED);
+	static final LongAdder		g_destinationFramesReceived		= Metrics.getSharedMetrics().getCounter(Metrics.DESTINATION_FRAMES_RECEIVED);
+	static final LongAdder		g_requestsSent					= Metrics.getSharedMetrics().getCounter(Metrics.REQUESTS_SENT);
+	static final LongAdder		g_requestsRetried				= Metrics.getSharedMetrics().getCounter(Metrics.REQUESTS_RETRIED);
+	static final LongAdder		g_requestsFailed				= Metrics.getSharedMetrics().getCounter(Metrics.REQUESTS_FAILED);
+	static final LongAdder		g_requestsDropped				= Metrics.getSharedMetrics().getCounter(Metrics.REQUESTS_DROPPED);
+	static final LongAdder		g_requestsRejected				= Metrics.getSharedMetrics().getCounter(Metrics.REQUESTS_REJECTED);
+	static final LongAdder		g_sourceReadsPaused				= Metrics.getSharedMetrics().getCounter(Metrics.SOURCE_READS_PAUSED);
+	static final LongAdder		g_responsesWritten				= Metrics.getSharedMetrics().getCounter(Metrics.RESPONSES_WRITTEN);
+	static final LongAdder		g_responsesUnmatched			= Metrics.getSharedMetrics().getCounter(Metrics.RESPONSES_UNMATCHED);
+	static final LongAdder		g_responsesNullSequence			= Metrics.getSharedMetrics().getCounter(Metrics.RESPONSES_NULL_SEQUENCE);
+	static final Histogram		g_requestRoundTripTime			= Metrics.getSharedMetrics().getHistogram(Metrics.REQUEST_ROUND_TRIP_TIME);
+	
+	//Member variables
+	RetryProxy			_retryProxy;
+	int					_sessionId;
+	String				_sourceIP;
+	ProxyConnection		_sourceConnection;
+	ProxyConnection		_destinationConnection;
+	volatile DestinationPool	_destinationPool;		//The destination the session is routed to
+	AtomicInteger		_destinationOutstandingCount;	//Requests written to the destination and not replied yet - part of the load of the destination
+	ExecutorService		_retryLogicExecutor;
+	int					_currentSequenceNumber;
+	boolean				_isClosed;
+	volatile boolean	_isStarted;				//The destination is connected and the source is read
+	volatile boolean	_isDraining;			//The source is not read anymore - the session closes once its requests are finished
+	volatile long		_sourceShutdownTime;	//When the end of stream was sent to the source once drained - 0 before
+	
+	//Retry window - Requests sent and not replied yet, indexed by sequence number
+	OutstandingRequest[]				_outstandingRequests;
+	int									_outstandingRequestCount;
+	ArrayDeque<OutstandingRequest>		_requestsInOrder;		//Requests in the order they were received from source - responses are written in this order
+	
+	//Submission queue - Requests received from source and not sent yet, bounded by the proxy's submission queue capacity
+	ArrayDeque<OutstandingRequest>		_queuedRequests;
+	AtomicBoolean						_isSendScheduled;
+	boolean								_isSourceReadingPaused;
+	long								_acceptedRequestCount;		//Requests queued to be sent - guarded by the outstanding requests lock
+	
+	//Without the retry logic, the responses are only matched by their order - the error response of a rejected request waits for the
+	//responses of the requests accepted before it: the number of destination responses to write first, guarded by the source write lock
+	ArrayDeque<Long>					_rejectedRequestPositions;
+	long								_destinationResponseCount;
+	
+	Lock								_outstandingRequestsLock;
+	Lock								_destinationWriteLock;
+	Lock								_sourceWriteLock;
+	OutboundQueue						_sourceQueue;			//Responses waiting to be written to source together
+	boolean								_isDestinationReadingPaused;	//The source is not writable - guarded by the source write lock
+	ScheduledFuture<?>					_scheduledSourceFlush;
+	
+	//Responses read by an event loop and decrypted by the decrypt executor - they are handled in the order they were read
+	ArrayDeque<DecryptResponseOperation>	_decryptedResponses;
+	Lock								_decryptedResponsesLock;
+	
+	//Session Metrics
+	AtomicLong							_bytesFromSource;
+	AtomicLong							_bytesFromDestination;
+	AtomicLong							_requestCount;
+	AtomicLong							_receivedRequestCount;		//Counted as soon as a request is handed to the session - the requests metric is counted once its read is handled
+	AtomicLong							_retryCount;
+	AtomicLong							_failedRequestCount;
+	AtomicLong							_droppedRequestCount;
+	AtomicLong							_rejectedRequestCount;
+	AtomicLong							_responseCount;
+	
+	
+	//Constructor
+	public ProxySession(RetryProxy proxy, int sessionId, ProxyConnection sourceConnection) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::ProxySession [Session #%d]", sessionId);
+		
+		//Variable Initialization
+		_retryProxy					= proxy;
+		_sessionId					= sessionId;
+		_sourceConnection			= sourceConnection;
+		_sourceIP					= sourceConnection.getRemoteAddress();
+		_destinationConnection		= null;
+		_destinationPool			= null;
+		_destinationOutstandingCount	= new AtomicInteger(0);
+		_retryLogicExecutor			= _newRetryLogicExecutor(proxy.getThreadFactory());
+		_currentSequenceNumber		= 0;
+		_isClosed					= false;
+		_isStarted					= false;
+		_isDraining					= false;
+		_sourceShutdownTime			= 0;
+		_outstandingRequests		= new OutstandingRequest[SEQUENCE_NUMBER_COUNT];
+		_outstandingRequestCount	= 0;
+		_requestsInOrder			= new ArrayDeque<OutstandingRequest>();
+		_queuedRequests				= new ArrayDeque<OutstandingRequest>();
+		_isSendScheduled			= new AtomicBoolean(false);
+		_isSourceReadingPaused		= false;
+		_acceptedRequestCount		= 0;
+		_rejectedRequestPositions	= new ArrayDeque<Long>();
+		_destinationResponseCount	= 0;
+		_outstandingRequestsLock	= new ReentrantLock();
+		_destinationWriteLock		= new ReentrantLock();
+		_sourceWriteLock			= new ReentrantLock();
+		_sourceQueue				= new OutboundQueue(sourceConnection);
+		_isDestinationReadingPaused	= false;
+		_scheduledSourceFlush		= null;
+		_decryptedResponses			= new ArrayDeque<DecryptResponseOperation>();
+		_decryptedResponsesLock		= new ReentrantLock();
+		_bytesFromSource			= new AtomicLong(0);
+		_bytesFromDestination		= new AtomicLong(0);
+		_requestCount				= new AtomicLong(0);
+		_receivedRequestCount		= new AtomicLong(0);
+		_retryCount					= new AtomicLong(0);
+		_failedRequestCount			= new AtomicLong(0);
+		_droppedRequestCount		= new AtomicLong(0);
+		_rejectedRequestCount		= new AtomicLong(0);
+		_responseCount				= new AtomicLong(0);
+	}
+	
+	
+	//Properties
+	public int getSessionId() {
+		return _sessionId;
+	}
+	
+	public String getSourceIP() {
+		return _sourceIP;
+	}
+	
+	public boolean isClosed() {
+		return _isClosed;
+	}
+	
+	//One "session.id.name value" line per session counter
+	public void writeMetricsText(StringBuilder out) {
+		String prefix = "session." + _sessionId + ".";
+		
+		out.append(prefix).append("source ").append(_sourceIP).append('\n');
+		out.append(prefix).append("bytes.fromSource ").append(_bytesFromSource.get()).append('\n');
+		out.append(prefix).append("bytes.fromDestination ").append(_bytesFromDestination.get()).append('\n');
+		out.append(prefix).append("requests ").append(_requestCount.get()).append('\n');
+		out.append(prefix).append("requests.retried ").append(_retryCount.get()).append('\n');
+		out.append(prefix).append("requests.failed ").append(_failedRequestCount.get()).append('\n');
+		out.append(prefix).append("requests.dropped ").append(_droppedRequestCount.get()).append('\n');
+		out.append(prefix).append("requests.rejected ").append(_rejectedRequestCount.get()).append('\n');
+		out.append(prefix).append("responses ").append(_responseCount.get()).append('\n');
+	}
+	
+	
+	//Public Functions
+	//The destination is connected by the retry logic executor - the acceptor goes back to accepting at once
+	public void start() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::start [Session #%d - Source %s]", _sessionId, _sourceIP);
+		
+		_submit(new StartOperation());
+	}
+	
+	public void close() {
+		synchronized (this) {
+			if (_isClosed) {
+				return;
+			}
+			_isClosed = true;
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::close [Session #%d]", _sessionId);
+		
+		TrafficCapture capture = _retryProxy.getTrafficCapture();
+		if (capture != null) {
+			capture.recordSessionClosed(_sessionId);
+		}
+		
+		//Stop pending write operations and retries - the requests not written go back to the pool
+		_retryLogicExecutor.shutdownNow();
+		_cancelOutstandingRequests();
+		
+		_disconnectSource();
+		_releaseDestination();
+		
+		//Unregister from the proxy
+		_retryProxy.sessionClosed(this);
+	}
+	
+	//Stops reading requests from the source - the requests already received are sent, retried and replied as usual
+	public void drain() {
+		_outstandingRequestsLock.lock();
+		try {
+			if (_isDraining) {
+				return;
+			}
+			_isDraining				= true;
+			_isSourceReadingPaused	= true;
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::drain [Session #%d]", _sessionId);
+		
+		_pauseSourceReading();
+	}
+	
+	//True once every request received is replied, failed, dropped or rejected, and the responses are written to the source
+	public boolean isDrained() {
+		if (_isStarted == false) {
+			return false;
+		}
+		
+		_outstandingRequestsLock.lock();
+		try {
+			if ((_queuedRequests.isEmpty() == false) || (_requestsInOrder.isEmpty() == false)) {
+				return false;
+			}
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+		
+		//Without the retry logic, a request written to the destination is only tracked by its response
+		if (_responseCount.get() + _droppedRequestCount.get() + _failedRequestCount.get() < _receivedRequestCount.get()) {
+			return false;
+		}
+		
+		_sourceWriteLock.lock();
+		try {
+			if ((_sourceQueue.isEmpty() == false) || (_scheduledSourceFlush != null)) {
+				return false;
+			}
+		} finally {
+			_sourceWriteLock.unlock();
+		}
+		
+		ProxyConnection connection = _sourceConnection;
+		
+		return ((connection == null) || (connection.hasPendingWrites() == false));
+	}
+	
+	//Once drained, the source gets the end of stream after its responses and is read until it closes
+	//Closing the socket with requests of the source left unread would reset the connection, and the responses not sent yet would be lost
+	public void shutdownSource() {
+		ProxyConnection connection = _sourceConnection;
+		
+		if ((_sourceShutdownTime != 0) || (connection == null)) {
+			return;
+		}
+		_sourceShutdownTime = System.nanoTime();
+		
+		connection.shutdownOutput();
+		connection.resumeReading();
+	}
+	
+	public long getSourceShutdownTime() {
+		return _sourceShutdownTime;
+	}
+	
+	//The frame is only valid during the call - it is copied once since the write is asynchronous
+	//The copy leaves room for the header and the sequence number, written in place before the request is sent
+	//The request waits in the submission queue - the overflow policy applies once the queue is full
+	public void writeDataToDestination(ByteBuffer frame) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::writeDataToDestination");
+		
+		TrafficCapture capture = _retryProxy.getTrafficCapture();
+		if (capture != null) {
+			capture.recordRequest(_sessionId, frame);
+		}
+		
+		//The requests received after the end of stream was sent to the source cannot be answered
+		if ((_isClosed) || (_sourceShutdownTime != 0)) {
+			return;
+		}
+		
+		_receivedRequestCount.incrementAndGet();
+		
+		PooledBuffer				data				= BufferPool.getSharedBufferPool().acquire(REQUEST_HEADER_LENGTH + frame.remaining());
+		OutstandingRequest			request				= null;
+		OutstandingRequest			droppedRequest		= null;
+		long						requestPosition		= 0;
+		boolean						shouldPause			= false;
+		int							capacity			= _retryProxy.getSubmissionQueueCapacity();
+		RetryProxy.OverflowPolicy	overflowPolicy		= _retryProxy.getOverflowPolicy();
+		
+		data.getBuffer().position(REQUEST_HEADER_LENGTH);
+		data.getBuffer().put(frame);
+		data.getBuffer().position(REQUEST_HEADER_LENGTH);
+		
+		request = new OutstandingRequest(data);
+		
+		_outstandingRequestsLock.lock();
+		try {
+			if (_isClosed) {
+				request.release();
+				return;
+			}
+			
+			if (_queuedRequests.size() >= capacity) {
+				if (overflowPolicy == RetryProxy.OverflowPolicy.OverflowPolicyDropOldest) {
+					droppedRequest = _queuedRequests.poll();
+					_requestsInOrder.remove(droppedRequest);
+				} else if (overflowPolicy == RetryProxy.OverflowPolicy.OverflowPolicyReject) {
+					request.reject();
+				}
+			}
+			
+			if (request.isRejected() == false) {
+				_queuedRequests.add(request);
+				_acceptedRequestCount++;
+			}
+			requestPosition = _acceptedRequestCount;
+			
+			//The responses are written in the order of the requests, the error responses of the rejected requests included
+			if (_retryProxy.getUseNetworkRetry()) {
+				_requestsInOrder.add(request);
+			}
+			
+			//The frames of the read being decoded are still queued - the next read waits for the queue to drain
+			if ((overflowPolicy == RetryProxy.OverflowPolicy.OverflowPolicyBlock) && (_queuedRequests.size() >= capacity) && (_isSourceReadingPaused == false)) {
+				_isSourceReadingPaused	= true;
+				shouldPause				= true;
+			}
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+		
+		if (droppedRequest != null) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::writeDataToDestination [Submission Queue Full - Oldest Request Dropped - Session #%d]", _sessionId);
+			
+			droppedRequest.release();
+			g_requestsDropped.increment();
+			_droppedRequestCount.incrementAndGet();
+		}
+		
+		if (request.isRejected()) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::writeDataToDestination [Submission Queue Full - Request Rejected - Session #%d]", _sessionId);
+			
+			g_requestsRejected.increment();
+			_rejectedRequestCount.incrementAndGet();
+			
+			//The error response is written once the previous requests are replied - with the retry logic, or failed
+			if (_retryProxy.getUseNetworkRetry() == false) {
+				_sourceWriteLock.lock();
+				try {
+					_rejectedRequestPositions.add(requestPosition);
+					_writeRejectedResponses();
+					_flushSource();
+				} finally {
+					_sourceWriteLock.unlock();
+				}
+			}
+			return;
+		}
+		
+		if (shouldPause) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::writeDataToDestination [Submission Queue Full - Pausing the Source - Session #%d]", _sessionId);
+			
+			g_sourceReadsPaused.increment();
+			_pauseSourceReading();
+		}
+		
+		_scheduleSendQueuedRequests();
+	}
+	
+	
+	public void writeDataToSource(ByteBuffer frame) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::writeDataToSource");
+		
+		TrafficCapture capture = _retryProxy.getTrafficCapture();
+		if (capture != null) {
+			capture.recordResponse(_sessionId, frame);
+		}
+		
+		//With the retry logic, a frame holds at least the sequence number - the destination is not trusted with the next frames
+		if ((_retryProxy.getUseNetworkRetry()) && (frame.remaining() < 1)) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::writeDataToSource [Protocol Error - Frame without Sequence Number - Closing the Destination - Session #%d]", _sessionId);
+			
+			//The requests waiting for a reply are retried on the next connection
+			_disconnectDestination();
+			return;
+		}
+		
+		_destinationReplied();
+		
+		int				returnedSequenceNumber	= 0;
+		PooledBuffer	response				= null;
+		RSADecryptor	decryptor				= _retryProxy.getDecryptor(_sourceIP);
+		
+		//Get the sequence number used by the retry logic
+		if (_retryProxy.getUseNetworkRetry()) {
+			returnedSequenceNumber = frame.get() & 0xFF;
+		}
+		response = _copyResponse(frame);
+		
+		//An event loop does not wait for the decryption - the response is handled by the loop once decrypted, after the ones read before it
+		if (EventLoop.isEventLoopThread()) {
+			DecryptResponseOperation operation = new DecryptResponseOperation(returnedSequenceNumber, response, (EventLoop)Thread.currentThread());
+			
+			_decryptedResponsesLock.lock();
+			try {
+				if ((decryptor == null) && (_decryptedResponses.isEmpty())) {
+					operation = null;
+				} else {
+					_decryptedResponses.add(operation);
+				}
+			} finally {
+				_decryptedResponsesLock.unlock();
+			}
+			
+			if (operation != null) {
+				operation.start(decryptor);
+				return;
+			}
+		} else if (decryptor != null) {
+			response = _decryptResponse(response, decryptor);
+		}
+		
+		_handleDecryptedResponse(returnedSequenceNumber, response);
+	}
+	
+	//Reader callbacks
+	
+	void sourceDataReceived(int byteCount, int frameCount) {
+		g_sourceBytesReceived.add(byteCount);
+		g_sourceFramesReceived.add(frameCount);
+		_bytesFromSource.addAndGet(byteCount);
+		_requestCount.addAndGet(frameCount);
+	}
+	
+	//Called once the frames of a read are handled - the responses they released are written together
+	void destinationDataReceived(int byteCount, int frameCount) {
+		g_destinationBytesReceived.add(byteCount);
+		g_destinationFramesReceived.add(frameCount);
+		_bytesFromDestination.addAndGet(byteCount);
+		
+		_sourceWriteLock.lock();
+		try {
+			_flushSource();
+		} finally {
+			_sourceWriteLock.unlock();
+		}
+	}
+	
+	//The source took the responses queued while it was not writable - the destination is read again
+	void sourceWritable() {
+		ProxyConnection connection = null;
+		
+		_sourceWriteLock.lock();
+		try {
+			if (_isDestinationReadingPaused == false) {
+				return;
+			}
+			_isDestinationReadingPaused = false;
+			
+			synchronized (this) {
+				connection = _destinationConnection;
+			}
+		} finally {
+			_sourceWriteLock.unlock();
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::sourceWritable [Resuming the Destination - Session #%d]", _sessionId);
+		
+		if (connection != null) {
+			connection.resumeReading();
+		}
+	}
+	
+	void sourceDisconnected() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::sourceDisconnected [Session #%d]", _sessionId);
+		
+		close();
+	}
+	
+	//The next write opens another connection - the requests waiting for a reply are retried on it when the retry logic is used
+	void destinationDisconnected(ProxyConnection connection) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ProxySession::destinationDisconnected [Session #%d]", _sessionId);
+		
+		synchronized (this) {
+			if (_destinationConnection == connection) {
+				_destinationConnection = null;
+			}
+		}
+		
+		connection.close();
+	}
+	
+	//Private Functions
+	
+	//The destination is chosen by the balancing policy - the next ones are tried when the connection fails
+	boolean _connectToDestination() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_connectToDestination");
+		
+		DestinationGroup		group			= _retryProxy.getDestinationGroup();
+		List<DestinationPool>	failedPools		= null;
+		DestinationPool			pool			= null;
+		
+		while ((pool = group.select(failedPools)) != null) {
+			String				destinationIP	= pool.getDestinationIP();
+			int					destinationPort	= pool.getDestinationPort();
+			
+			_setDestinationPool(pool);
+			
+			try {
+				//The connection reads for this session - it is an idle connection of the pool when one is available
+				ProxyConnection connection = pool.acquire(this);
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_connectToDestination [Connected to %s:%d]", destinationIP, destinationPort);
+				
+				synchronized (this) {
+					if (_isClosed == false) {
+						_destinationConnection	= connection;
+						connection				= null;
+					}
+				}
+				
+				//The session was closed meanwhile
+				if (connection != null) {
+					pool.release(connection);
+					return false;
+				}
+				
+				return true;
+			} catch (ConnectException ex) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_connectToDestination [Failed to connect to %s:%d]", destinationIP, destinationPort);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			if (failedPools == null) {
+				failedPools = new ArrayList<DestinationPool>();
+			}
+			failedPools.add(pool);
+		}
+		
+		return false;
+	}
+	
+	void _setDestinationPool(DestinationPool pool) {
+		_clearDestinationLoad();
+		
+		_destinationPool = pool;
+	}
+	
+	//The requests not replied by the destination no longer count in its load
+	void _clearDestinationLoad() {
+		DestinationPool		pool				= _destinationPool;
+		int					outstandingCount	= _destinationOutstandingCount.getAndSet(0);
+		
+		if ((pool != null) && (outstandingCount != 0)) {
+			pool.addOutstandingRequests(-outstandingCount);
+		}
+	}
+	
+	//A frame of the destination replies to one of the requests written to it
+	void _destinationReplied() {
+		int outstandingCount = 0;
+		
+		do {
+			outstandingCount = _destinationOutstandingCount.get();
+			
+			if (outstandingCount == 0) {
+				return;
+			}
+		} while (_destinationOutstandingCount.compareAndSet(outstandingCount, outstandingCount - 1) == false);
+		
+		_destinationPool.addOutstandingRequests(-1);
+	}
+	
+	
+	//Without the retry logic, the request is written once - the data is positioned after the room left for the header and the sequence number
+	void _writeRequestWithoutRetry(OutstandingRequest request) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_writeRequestWithoutRetry");
+		
+		PooledBuffer		data				= request.getFrame();
+		ByteBuffer			outBuffer			= data.getBuffer();
+		int					dataLength			= outBuffer.remaining();
+		
+		//The header is written just before the data - the byte left for the sequence number is not sent
+		outBuffer.put(1, (byte)(dataLength / 256));
+		outBuffer.put(2, (byte)(dataLength % 256));
+		outBuffer.position(REQUEST_HEADER_LENGTH - DATA_HEADER_LENGTH);
+		
+		try {
+			_writeToDestination(data);
+		} finally {
+			request.release();
+		}
+	}
+	
+	//The caller keeps its reference on the buffer - the bytes between its position and its limit are written
+	boolean _writeToDestination(PooledBuffer outBuffer) {
+		boolean result = false;
+		
+		//Check the source has not disconnected
+		if ((_isClosed) || (_sourceConnection == null) || (_sourceConnection.isConnected() == false)) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_writeToDestination [Source Socket Disconnected: Exiting Task]");
+			return false;
+		}
+		
+		//Requests and retries are written from the retry logic executor and must not interleave with a reconnection
+		_destinationWriteLock.lock();
+		try {
+			//Reconnect only when the connection was lost
+			ProxyConnection connection = _destinationConnection;
+			
+			if ((connection == null) || (connection.isConnected() == false)) {
+				_disconnectDestination();
+				_connectToDestination();
+				connection = _destinationConnection;
+			}
+			
+			if ((connection != null) && (connection.isConnected())) {
+				//Counted before the write - the reply may be handled before the write returns
+				_destinationOutstandingCount.incrementAndGet();
+				_destinationPool.addOutstandingRequests(1);
+				
+				connection.write(outBuffer);
+				result = true;
+				g_requestsSent.increment();
+				
+				//Log the written data to console
+				if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "ProxySession::_writeToDestination [Proxy -> Dst]%s", HexDump.copyOf(outBuffer.getBuffer()));
+				}
+			} else {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_writeToDestination [Destination Socket Disconnected]");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_writeToDestination [Failed to write the data on output stream]");
+			
+			//The connection is not reused after a failed write - the next write opens another one
+			_disconnectDestination();
+		} finally {
+			_destinationWriteLock.unlock();
+		}
+		
+		return result;
+	}
+	
+	ExecutorService _newRetryLogicExecutor(ThreadFactory threadFactory) {
+		//The write operations of a session are serialized - they run on a virtual thread when the proxy provides a factory
+		if (threadFactory != null) {
+			return Executors.newSingleThreadExecutor(threadFactory);
+		}
+		
+		return Executors.newSingleThreadExecutor();
+	}
+	
+	//Retry Logic
+	
+	//Takes over a reference on the frame of the request, retained by the caller while the request was outstanding
+	void _sendRequest(OutstandingRequest request, PooledBuffer frame) {
+		try {
+			_writeToDestination(frame);
+		} finally {
+			frame.release();
+		}
+		
+		//Wait for the reply - A lost write is retried like a lost reply
+		_outstandingRequestsLock.lock();
+		try {
+			if ((_isClosed == false) && (request.isPending())) {
+				long timeout = _destinationPool.getRoundTripEstimator().getTimeout(request._retryNumber);
+				
+				request._timeout = _retryProxy.getRetryTimer().schedule(new RequestTimeoutOperation(request), timeout, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+	}
+	
+	void _retryRequest(OutstandingRequest request) {
+		List<OutstandingRequest>	releasedRequests	= null;
+		PooledBuffer				frame				= null;
+		
+		_sourceWriteLock.lock();
+		try {
+			_outstandingRequestsLock.lock();
+			try {
+				//The reply may have been received meanwhile
+				if ((_isClosed) || (request.isPending() == false)) {
+					return;
+				}
+				
+				//Increment the retry number
+				request._retryNumber++;
+				
+				if (request._retryNumber <= _retryProxy.getRetryCount()) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_retryRequest [Retry #%d - Sequence Number = %d]", request._retryNumber, request.getSequenceNumber());
+					
+					//The frame is kept while it is written - the request may be replied and released meanwhile
+					//The time is taken before the write - the reply may be handled before the write returns
+					frame				= request.getFrame().retain();
+					request._sentTime	= System.nanoTime();
+					g_requestsRetried.increment();
+					_retryCount.incrementAndGet();
+				} else {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_retryRequest [Failed to write the data to destination - No response is received - Sequence Number = %d]", request.getSequenceNumber());
+					
+					_removeOutstandingRequest(request);
+					request.fail();
+					g_requestsFailed.increment();
+					_failedRequestCount.incrementAndGet();
+					releasedRequests = _releaseRequests();
+				}
+			} finally {
+				_outstandingRequestsLock.unlock();
+			}
+			
+			//The failed request may unblock the responses received for the next ones
+			_writeReleasedResponses(releasedRequests);
+			_flushSource();
+		} finally {
+			_sourceWriteLock.unlock();
+		}
+		
+		if (frame != null) {
+			_sendRequest(request, frame);
+		} else {
+			_sendQueuedRequests();
+		}
+	}
+	
+	//Takes over the caller's reference on the response
+	void _handleResponse(int returnedSequenceNumber, PooledBuffer response) {
+		List<OutstandingRequest>	releasedRequests	= null;
+		boolean						shouldResend		= false;
+		boolean						hasQueuedRequests	= false;
+		
+		_sourceWriteLock.lock();
+		try {
+			_outstandingRequestsLock.lock();
+			try {
+				OutstandingRequest request = _outstandingRequests[returnedSequenceNumber];
+				
+				//Check for retry errors
+				if ((request == null) && (returnedSequenceNumber == 0)) {
+					//The destination reset its sequence number - the outstanding requests are sent again with new sequence numbers
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_handleResponse [Received a null sequence number - Will reset current sequence number and send the outstanding requests again]");
+					
+					shouldResend = true;
+					g_responsesNullSequence.increment();
+					response.release();
+				} else if (request == null) {
+					//Late reply to a request already replied or failed - a lost request is retried when its timeout expires
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_handleResponse [The sequence number of the response (%d) does not match any outstanding request]", returnedSequenceNumber);
+					g_responsesUnmatched.increment();
+					response.release();
+				} else {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_handleResponse [Received Valid Response - Sequence Number = %d]", returnedSequenceNumber);
+					
+					//A request without a send time is not measured
+					long roundTripTime = ((request._sentTime != 0) ? System.nanoTime() - request._sentTime : 0);
+					
+					_removeOutstandingRequest(request);
+					request.complete(response);
+					
+					if (roundTripTime > 0) {
+						g_requestRoundTripTime.record(roundTripTime);
+						
+						//The reply to a retried request may answer any of its attempts - it is not measured
+						if (request._retryNumber == 0) {
+							_destinationPool.getRoundTripEstimator().record(roundTripTime);
+						}
+					}
+					releasedRequests	= _releaseRequests();
+					hasQueuedRequests	= (_queuedRequests.isEmpty() == false);
+				}
+			} finally {
+				_outstandingRequestsLock.unlock();
+			}
+			
+			//Write the responses in the order of the requests
+			_writeReleasedResponses(releasedRequests);
+		} finally {
+			_sourceWriteLock.unlock();
+		}
+		
+		if (shouldResend) {
+			_submit(new ResetSequenceNumberOperation());
+		} else if (hasQueuedRequests) {
+			//A slot of the retry window is now free
+			_scheduleSendQueuedRequests();
+		}
+	}
+	
+	void _resendOutstandingRequests() {
+		List<OutstandingRequest> resentRequests = new ArrayList<OutstandingRequest>();
+		
+		_outstandingRequestsLock.lock();
+		try {
+			//Reset the sequence number
+			_resetSequenceNumber();
+			
+			//Renumber the outstanding requests in order
+			for (OutstandingRequest request : _requestsInOrder) {
+				if (request.isPending()) {
+					request.cancelTimeout();
+					_outstandingRequests[request.getSequenceNumber()] = null;
+					
+					resentRequests.add(request);
+				}
+			}
+			
+			for (OutstandingRequest request : resentRequests) {
+				_updateSequenceNumber();
+				request.setSequenceNumber(_currentSequenceNumber);
+				_outstandingRequests[_currentSequenceNumber] = request;
+			}
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+		
+		for (OutstandingRequest request : resentRequests) {
+			_retryRequest(request);
+		}
+	}
+	
+	//Sends the requests of the submission queue in order - with the retry logic, as long as the retry window has a free slot
+	void _sendQueuedRequests() {
+		boolean				useRetry		= _retryProxy.getUseNetworkRetry();
+		OutstandingRequest	request			= null;
+		PooledBuffer		frame			= null;
+		boolean				shouldResume	= false;
+		
+		do {
+			_outstandingRequestsLock.lock();
+			try {
+				request = null;
+				
+				if (_queuedRequests.isEmpty() == false) {
+					if (useRetry == false) {
+						request	= _queuedRequests.poll();
+					} else if (_outstandingRequestCount < _retryProxy.getRetryWindowSize()) {
+						request	= _queuedRequests.poll();
+						frame	= _startOutstandingRequest(request).retain();
+					} else {
+						//The request is sent once a reply is received or a request fails
+						Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_sendQueuedRequests [Retry Window Full - %d Requests Outstanding - %d Requests Queued]", _outstandingRequestCount, _queuedRequests.size());
+					}
+				}
+				
+				//The source is read again once half of the queue is free - it is not paused and resumed for each request
+				//A draining session does not read from its source anymore
+				if ((_isSourceReadingPaused) && (_isDraining == false) && (_queuedRequests.size() <= _retryProxy.getSubmissionQueueCapacity() / 2)) {
+					_isSourceReadingPaused	= false;
+					shouldResume			= true;
+				}
+			} finally {
+				_outstandingRequestsLock.unlock();
+			}
+			
+			if (shouldResume) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_sendQueuedRequests [Resuming the Source - Session #%d]", _sessionId);
+				
+				shouldResume = false;
+				_resumeSourceReading();
+			}
+			
+			if (request == null) {
+				break;
+			}
+			
+			if (useRetry) {
+				_sendRequest(request, frame);
+			} else {
+				_writeRequestWithoutRetry(request);
+			}
+		} while (true);
+	}
+	
+	//One operation sends all the requests queued until it runs
+	void _scheduleSendQueuedRequests() {
+		if (_isSendScheduled.compareAndSet(false, true)) {
+			_submit(new SendQueuedRequestsOperation());
+		}
+	}
+	
+	//Must be called with the outstanding requests lock held - returns the frame of the request, sent as is on each retry
+	PooledBuffer _startOutstandingRequest(OutstandingRequest request) {
+		PooledBuffer		data				= request.getFrame();
+		ByteBuffer			outBuffer			= data.getBuffer();
+		int					dataLength			= outBuffer.remaining() + 1;		//The sequence number is added at the beginning of the request
+		
+		//Update the sequence number each time a new request is received from the source - sequence number is needed for retry logic
+		//The numbers still used by outstanding requests are skipped
+		do {
+			_updateSequenceNumber();
+		} while (_outstandingRequests[_currentSequenceNumber] != null);
+		
+		//The header and the sequence number are written in the room left before the data
+		outBuffer.put(0, (byte)(dataLength / 256));
+		outBuffer.put(1, (byte)(dataLength % 256));
+		outBuffer.position(0);
+		
+		//Track the request until its reply is received - the time is taken before the write, the reply may be handled before the write returns
+		request.send(_currentSequenceNumber);
+		request._sentTime = System.nanoTime();
+		_outstandingRequests[_currentSequenceNumber] = request;
+		_outstandingRequestCount++;
+		
+		return data;
+	}
+	
+	//Must be called with the outstanding requests lock held
+	void _removeOutstandingRequest(OutstandingRequest request) {
+		if (_outstandingRequests[request.getSequenceNumber()] == request) {
+			_outstandingRequests[request.getSequenceNumber()] = null;
+			_outstandingRequestCount--;
+		}
+	}
+	
+	//Must be called with the outstanding requests lock held - returns the requests that can be written to source in order
+	List<OutstandingRequest> _releaseRequests() {
+		List<OutstandingRequest> releasedRequests = new ArrayList<OutstandingRequest>();
+		
+		while ((_requestsInOrder.isEmpty() == false) && (_requestsInOrder.peek().isFinished())) {
+			releasedRequests.add(_requestsInOrder.poll());
+		}
+		
+		return releasedRequests;
+	}
+	
+	//Must be called with the source write lock held
+	void _writeReleasedResponses(List<OutstandingRequest> releasedRequests) {
+		if (releasedRequests == null) {
+			return;
+		}
+		
+		for (OutstandingRequest request : releasedRequests) {
+			if (request._response != null) {
+				_writeResponseToSource(request._response);
+			} else if (request.isRejected()) {
+				_writeErrorResponseToSource();
+			}
+			request.release();
+		}
+	}
+	
+	void _cancelOutstandingRequests() {
+		_outstandingRequestsLock.lock();
+		try {
+			OutstandingRequest queuedRequest = null;
+			
+			for (OutstandingRequest request : _requestsInOrder) {
+				request.cancelTimeout();
+				request.release();
+			}
+			
+			//With the retry logic, the queued requests are also in the requests in order - releasing a request twice is harmless
+			while ((queuedRequest = _queuedRequests.poll()) != null) {
+				queuedRequest.release();
+			}
+			
+			_requestsInOrder.clear();
+			
+			//A late reply is handled as an unmatched reply
+			Arrays.fill(_outstandingRequests, null);
+			_outstandingRequestCount = 0;
+		} finally {
+			_outstandingRequestsLock.unlock();
+		}
+	}
+	
+	void _submit(Runnable operation) {
+		try {
+			_retryLogicExecutor.submit(operation);
+		} catch (RejectedExecutionException e) {
+			//The session is closed
+		}
+	}
+	
+	//Pauses and resumes the reads of the source with the submission queue
+	void _pauseSourceReading() {
+		ProxyConnection connection = _sourceConnection;
+		
+		if (connection != null) {
+			connection.pauseReading();
+		}
+	}
+	
+	void _resumeSourceReading() {
+		ProxyConnection connection = _sourceConnection;
+		
+		if (connection != null) {
+			connection.resumeReading();
+		}
+	}
+	
+	//Takes over the caller's reference on the response
+	void _handleDecryptedResponse(int returnedSequenceNumber, PooledBuffer response) {
+		if (_retryProxy.getUseNetworkRetry()) {
+			//Match the response with its request - It is written once the previous requests are replied or failed
+			_handleResponse(returnedSequenceNumber, response);
+		} else {
+			//The response is written with the other responses of the same read
+			_sourceWriteLock.lock();
+			try {
+				_writeResponseToSource(response);
+				_destinationResponseCount++;
+				_writeRejectedResponses();
+			} finally {
+				_sourceWriteLock.unlock();
+				response.release();
+			}
+		}
+	}
+	
+	//Runs on the event loop once a response is decrypted - the responses decrypted are handled in the order they were read, and written together
+	void _handleDecryptedResponses() {
+		boolean hasHandledResponses = false;
+		
+		//The lock is held while handling - the responses of a session read by two loops, before and after a reconnection, stay in order
+		_decryptedResponsesLock.lock();
+		try {
+			while ((_decryptedResponses.isEmpty() == false) && (_decryptedResponses.peek()._isDecrypted)) {
+				DecryptResponseOperation operation = _decryptedResponses.poll();
+				
+				//The responses decrypted after the session closed are not late replies
+				if (_isClosed) {
+					operation._response.release();
+					continue;
+				}
+				
+				_handleDecryptedResponse(operation._sequenceNumber, operation._response);
+				hasHandledResponses = true;
+			}
+		} finally {
+			_decryptedResponsesLock.unlock();
+		}
+		
+		if (hasHandledResponses) {
+			_sourceWriteLock.lock();
+			try {
+				_flushSource();
+			} finally {
+				_sourceWriteLock.unlock();
+			}
+		}
+	}
+	
+	//Takes over the caller's reference on the response - returns the decrypted response, positioned after the room left for its header
+	//The decrypted responses are kept for audit as they are decrypted, the late replies included
+	PooledBuffer _decryptResponse(PooledBuffer response, RSADecryptor decryptor) {
+		if (response.getBuffer().hasRemaining() == false) {
+			return response;
+		}
+		
+		PooledBuffer	decrypted	= BufferPool.getSharedBufferPool().acquire(DATA_HEADER_LENGTH + response.getBuffer().remaining());
+		ByteBuffer		data		= decrypted.getBuffer();
+		int				dataLength	= 0;
+		
+		try {
+			data.position(DATA_HEADER_LENGTH);
+			dataLength = decryptor.decrypt(response.getBuffer(), data);
+			data.limit(DATA_HEADER_LENGTH + dataLength);
+			data.position(DATA_HEADER_LENGTH);
+		} catch (RuntimeException e) {
+			decrypted.release();
+			throw e;
+		} finally {
+			response.release();
+		}
+		
+		//The copy for audit is written by the audit log's thread
+		AuditLog auditLog = _retryProxy.getRuntime().getAuditLog();
+		if ((auditLog != null) && (dataLength > 0)) {
+			auditLog.record(_sessionId, _sourceIP, data);
+		}
+		
+		return decrypted;
+	}
+	
+	//Copies the response into a pooled buffer, leaving room for the header written before the response is sent to source
+	PooledBuffer _copyResponse(ByteBuffer frame) {
+		PooledBuffer response = BufferPool.getSharedBufferPool().acquire(DATA_HEADER_LENGTH + frame.remaining());
+		
+		response.getBuffer().position(DATA_HEADER_LENGTH);
+		response.getBuffer().put(frame);
+		response.getBuffer().position(DATA_HEADER_LENGTH);
+		
+		return response;
+	}
+	
+	//Must be called with the source write lock held - the response is queued and written by the next _flushSource()
+	//The caller keeps its reference on the response - the response is decrypted already and positioned after the room left for its header
+	void _writeResponseToSource(PooledBuffer response) {
+		PooledBuffer		tmpBuffer			= response.retainedDuplicate();
+		ByteBuffer			data				= tmpBuffer.getBuffer();
+		int					dataLength			= data.remaining();
+		
+		//Check if response is valid
+		if (dataLength == 0) {
+			//Return an invalid response {0x00, 0x00}
+			tmpBuffer.release();
+			
+			tmpBuffer	= BufferPool.getSharedBufferPool().acquire(DATA_HEADER_LENGTH + 2);
+			data		= tmpBuffer.getBuffer();
+			dataLength	= 2;
+			data.put(2, (byte)0x00);
+			data.put(3, (byte)0x00);
+		}
+		
+		//The header is written in the room left before the data
+		data.put(0, (byte)(dataLength / 256));
+		data.put(1, (byte)(dataLength % 256));
+		data.position(0);
+		
+		//Queue the data - it is written with the other queued responses
+		ProxyConnection ptrSourceConnection = _sourceConnection;
+		
+		if ((ptrSourceConnection != null) && (ptrSourceConnection.isConnected())) {
+			//Log the written data to console
+			if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "ProxySession::writeDataToSource [Proxy -> Src]%s", HexDump.copyOf(data));
+			}
+			
+			if (_sourceQueue.add(tmpBuffer)) {
+				_writeSourceQueue();
+			}
+			g_responsesWritten.increment();
+			_responseCount.incrementAndGet();
+		} else {
+			tmpBuffer.release();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::writeDataToSource [Failed to write data - Source Disconnected]");
+		}
+	}
+	
+	//Must be called with the source write lock held - without the retry logic, writes the error responses of the rejected requests
+	//whose previous requests are replied
+	void _writeRejectedResponses() {
+		while ((_rejectedRequestPositions.isEmpty() == false) && (_rejectedRequestPositions.peek() <= _destinationResponseCount)) {
+			_rejectedRequestPositions.poll();
+			_writeErrorResponseToSource();
+		}
+	}
+	
+	//Must be called with the source write lock held - an empty response is written as the invalid response {0x00, 0x00}
+	void _writeErrorResponseToSource() {
+		PooledBuffer response = BufferPool.getSharedBufferPool().acquire(DATA_HEADER_LENGTH);
+		
+		response.getBuffer().position(DATA_HEADER_LENGTH);
+		try {
+			_writeResponseToSource(response);
+		} finally {
+			response.release();
+		}
+	}
+	
+	//Must be called with the source write lock held
+	//Writes the queued responses, or makes sure they are written within the flush latency
+	void _flushSource() {
+		int latency = _retryProxy.getSourceFlushLatency();
+		
+		if ((_sourceQueue.isEmpty()) || (_scheduledSourceFlush != null)) {
+			return;
+		}
+		
+		if (latency == 0) {
+			_writeSourceQueue();
+		} else {
+			_scheduledSourceFlush = _retryProxy.getRetryTimer().schedule(new FlushSourceOperation(), latency, TimeUnit.MICROSECONDS);
+		}
+	}
+	
+	//Must be called with the source write lock held
+	//A source that does not take its responses holds back the destination - the writer does not wait, it may be an event loop
+	void _writeSourceQueue() {
+		try {
+			if (_sourceQueue.flush() > 0) {
+				g_sourceWrites.increment();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::_writeSourceQueue [Failed to write data to source]");
+		}
+		
+		ProxyConnection sourceConnection = _sourceConnection;
+		
+		if ((_isDestinationReadingPaused == false) && (sourceConnection != null) && (sourceConnection.isWritable() == false)) {
+			ProxyConnection destinationConnection = null;
+			
+			synchronized (this) {
+				destinationConnection = _destinationConnection;
+			}
+			
+			if (destinationConnection != null) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_writeSourceQueue [Source not Writable - Pausing the Destination - Session #%d]", _sessionId);
+				
+				_isDestinationReadingPaused = true;
+				destinationConnection.pauseReading();
+			}
+		}
+	}
+	
+	//Sequence Number Management
+	
+	//The first request is numbered 1 - 0 is never sent, a reply numbered 0 is the reset of the destination
+	void _initializeSequenceNumber() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_initializeSequenceNumber");
+		
+		_currentSequenceNumber = 0;
+	}
+	
+	void _resetSequenceNumber() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_resetSequenceNumber");
+		
+		_currentSequenceNumber = 0;
+	}
+	
+	void _updateSequenceNumber() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "ProxySession::_updateSequenceNumber [Sequence Number = %d]", _currentSequenceNumber + 1);
+		
+		_currentSequenceNumber++;
+		
+		if (_currentSequenceNumber == 256) {
+			_currentSequenceNumber = 1;
+		}
+	}
+	
+	void _disconnectSource() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_disconnectSource");
+		
+		ProxyConnection connection = null;
+		
+		//The monitor is not held while closing - joining the reader from a virtual thread would pin its carrier
+		synchronized (this) {
+			connection			= _sourceConnection;
+			_sourceConnection	= null;
+		}
+		
+		//Closing the connection stops its reader
+		if (connection != null) {
+			connection.close();
+		}
+	}
+	
+	void _disconnectDestination() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_disconnectDestination");
+		
+		ProxyConnection connection = null;
+		
+		//The monitor is not held while closing - joining the reader from a virtual thread would pin its carrier
+		synchronized (this) {
+			connection				= _destinationConnection;
+			_destinationConnection	= null;
+		}
+		
+		//Closing the connection stops its reader
+		if (connection != null) {
+			connection.close();
+		}
+	}
+	
+	//The connection goes back to the pool when every request was replied once - a late reply would reach the next session
+	//and could match the sequence number of one of its requests, so a connection that carried a retried request is closed
+	void _releaseDestination() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::_releaseDestination");
+		
+		ProxyConnection connection = null;
+		
+		synchronized (this) {
+			connection				= _destinationConnection;
+			_destinationConnection	= null;
+		}
+		
+		_clearDestinationLoad();
+		
+		if (connection == null) {
+			return;
+		}
+		
+		//The dropped requests were never sent - the first reply to a retried request may still be on its way
+		if ((_retryCount.get() == 0) && (_responseCount.get() + _droppedRequestCount.get() == _requestCount.get())) {
+			//A connection paused for a slow source reads again in its pool
+			connection.resumeReading();
+			_destinationPool.release(connection);
+		} else {
+			connection.close();
+		}
+	}
+	
+	
+	//Operation Classes
+	
+	class RetryOperation implements Runnable {
+		
+		OutstandingRequest _request = null;
+		
+		public RetryOperation (OutstandingRequest request) {
+			_request = request;
+		}
+		
+		public void run() {
+			_retryRequest(_request);
+		}
+		
+	}
+	
+	//Runs on the retry timer - the retry itself is performed by the retry logic executor
+	class RequestTimeoutOperation implements Runnable {
+		
+		OutstandingRequest _request = null;
+		
+		public RequestTimeoutOperation (OutstandingRequest request) {
+			_request = request;
+		}
+		
+		public void run() {
+			_submit(new RetryOperation(_request));
+		}
+		
+	}
+	
+	//Runs on the retry timer once the flush latency has elapsed
+	class FlushSourceOperation implements Runnable {
+		
+		public void run() {
+			//A thread holding the lock is writing to source - the timer is not blocked, the queue is written after another period
+			if (_sourceWriteLock.tryLock() == false) {
+				_retryProxy.getRetryTimer().schedule(this, _retryProxy.getSourceFlushLatency(), TimeUnit.MICROSECONDS);
+				return;
+			}
+			
+			try {
+				_scheduledSourceFlush = null;
+				
+				if (_isClosed) {
+					_sourceQueue.clear();
+				} else {
+					_writeSourceQueue();
+				}
+			} finally {
+				_sourceWriteLock.unlock();
+			}
+		}
+		
+	}
+	
+	class ResetSequenceNumberOperation implements Runnable {
+		
+		public void run() {
+			_resendOutstandingRequests();
+		}
+		
+	}
+	
+	class StartOperation implements Runnable {
+		
+		public void run() {
+			//Reset the sequence number used for retry logic
+			if (_retryProxy.getUseNetworkRetry()) {
+				_initializeSequenceNumber();
+			}
+			
+			//Connect to destination
+			_connectToDestination();
+			
+			ProxyConnection sourceConnection = null;
+			
+			synchronized (ProxySession.this) {
+				if (_isClosed == false) {
+					sourceConnection = _sourceConnection;
+				}
+			}
+			
+			//The session was closed while connecting to the destination - the source connection is already closed
+			if (sourceConnection == null) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "ProxySession::StartOperation [Session #%d closed while starting]", _sessionId);
+				return;
+			}
+			
+			//Start reading from the source - a session drained meanwhile only reads the end of stream
+			sourceConnection.start(ProxySession.this, true);
+			_isStarted = true;
+			
+			if (_isDraining) {
+				_pauseSourceReading();
+			}
+		}
+		
+	}
+	
+	//Decrypts a response read by an event loop on the decrypt executor, then has the loop handle it
+	class DecryptResponseOperation implements Runnable {
+		
+		int					_sequenceNumber;
+		PooledBuffer		_response;
+		EventLoop			_eventLoop;
+		RSADecryptor		_decryptor;
+		volatile boolean	_isDecrypted;
+		
+		public DecryptResponseOperation(int sequenceNumber, PooledBuffer response, EventLoop eventLoop) {
+			_sequenceNumber	= sequenceNumber;
+			_response		= response;
+			_eventLoop		= eventLoop;
+			_decryptor		= null;
+			_isDecrypted	= false;
+		}
+		
+		//A response without a decryptor only waits for the responses read before it
+		public void start(RSADecryptor decryptor) {
+			_decryptor = decryptor;
+			
+			if (decryptor != null) {
+				try {
+					RSADecryptor.execute(this);
+					return;
+				} catch (RejectedExecutionException e) {
+					_response = _decryptResponse(_response, decryptor);
+				}
+			}
+			
+			_isDecrypted = true;
+			_handleDecryptedResponses();
+		}
+		
+		public void run() {
+			try {
+				_response = _decryptResponse(_response, _decryptor);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ProxySession::DecryptResponseOperation [Decryption Failed - Session #%d - %s]", _sessionId, e.toString());
+				
+				//The response was released - it is answered with the invalid response {0x00, 0x00}
+				_response = BufferPool.getSharedBufferPool().acquire(DATA_HEADER_LENGTH);
+				_response.getBuffer().position(DATA_HEADER_LENGTH);
+			}
+			
+			_isDecrypted = true;
+			
+			_eventLoop.execute(new Runnable() {
+				public void run() {
+					_handleDecryptedResponses();
+				}
+			});
+		}
+		
+	}
+	
+	class SendQueuedRequestsOperation implements Runnable {
+		
+		public void run() {
+			//The requests queued from now on schedule another operation
+			_isSendScheduled.set(false);
+			_sendQueuedRequests();
+		}
+		
+	}
+}
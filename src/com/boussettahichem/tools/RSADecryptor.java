@@ -1,51 +1,70 @@
 package com.boussettahichem.tools;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.interfaces.RSAKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 
 public class RSADecryptor {
-
+	
 	
 	//Constants
 	static final String				ALGORITHM						= "RSA";
+	static final int				MIN_PARALLEL_BLOCK_COUNT		= 4;		//Smaller responses are decrypted by the calling thread
+	
+	//DER encoding of the PKCS#8 header of an RSA key: version 0 and the rsaEncryption algorithm identifier
+	static final byte[]				PKCS8_RSA_VERSION_AND_ALGORITHM	= {0x02, 0x01, 0x00, 0x30, 0x0d, 0x06, 0x09, 0x2a, (byte)0x86, 0x48, (byte)0x86, (byte)0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00};
+	static final byte				DER_SEQUENCE_TAG				= 0x30;
+	static final byte				DER_OCTET_STRING_TAG			= 0x04;
 	
 	//Static Variables
 	private static RSADecryptor 		g_sharedRSADecryptor 		= null;
 	
+	//The workers decrypt the blocks of large responses in parallel - shared by all the decryptors
+	private static final int			g_decryptWorkerCount		= Runtime.getRuntime().availableProcessors();
+	private static final ExecutorService	g_decryptWorkers		= Executors.newFixedThreadPool(g_decryptWorkerCount, new DecryptThreadFactory("RSADecryptor"));
+	
+	//The executor decrypts the responses read by the event loops, which do not wait - its tasks may wait for the workers, never the other way around
+	private static final ExecutorService	g_decryptExecutor		= Executors.newFixedThreadPool(g_decryptWorkerCount, new DecryptThreadFactory("RSADecryptor-Response"));
+	
+	//Metrics
+	private static final Histogram		g_decryptTime				= Metrics.getSharedMetrics().getHistogram(Metrics.DECRYPT_TIME);
+	private static final LongAdder		g_decryptedBytes			= Metrics.getSharedMetrics().getCounter(Metrics.DECRYPTED_BYTES);
+	
 	//Member Variables
-	private PrivateKey					_privateRSAKey				= null;
+	private volatile PrivateKey			_privateRSAKey				= null;		//Replaced as a whole - decryptions in progress keep the key they started with
 	private int							_privateRSAKeyLength		= 0;
-	private Cipher						_decryptor					= null;
+	private ThreadLocal<Decryptor>		_decryptors					= null;		//A Cipher is not thread safe - each thread uses its own
 	
 	
-	//Private Constructor
-	private RSADecryptor () {
+	//Constructor
+	public RSADecryptor () {
 		_privateRSAKey			= null;
-		
-		//Initialize the decryptor
-		try {
-			_decryptor			= Cipher.getInstance(ALGORITHM);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (NoSuchPaddingException e) {
-			e.printStackTrace();
-		}
+		_decryptors				= new ThreadLocal<Decryptor>();
 	}
 	
 	//Shared Constructor
-	static public RSADecryptor getSharedRSADecryptor() {
+	static public synchronized RSADecryptor getSharedRSADecryptor() {
 		if (g_sharedRSADecryptor == null) {
 			g_sharedRSADecryptor = new RSADecryptor();
 		}
@@ -54,47 +73,36 @@ public class RSADecryptor {
 	
 	
 	//Member methods
+	
+	//The key may be a PEM file, PKCS#8 (BEGIN PRIVATE KEY) or PKCS#1 (BEGIN RSA PRIVATE KEY), or raw DER in either format
 	public boolean setPrivateRSAKey(byte[] key) {
-		Logger.getSharedLogger().log("RSADecryptor::setPrivateRSAKey");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "RSADecryptor::setPrivateRSAKey");
 		
-		KeyFactory				keyFactory		= null;
-		PKCS8EncodedKeySpec		privateKeySpec	= null;
 		boolean					result			= false;
-		PEMReader 				pemReader		= null;
-		byte[] 					pkcs8Key		= null;
+		PrivateKey				privateKey		= null;
 		
 		if (key != null) {
 			try {
 				//Process the private key
-				keyFactory		= KeyFactory.getInstance(ALGORITHM);
-				try {
-					pemReader		= new PEMReader(key);
-					pkcs8Key		= pemReader.getDerBytes();
-					privateKeySpec	= new PKCS8EncodedKeySpec(pkcs8Key);
+				privateKey = _readPrivateKey(key);
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RSADecryptor::setPrivateRSAKey [RSA Key Processed Successfully | Key Length: %d bits]", _getBlockLength(privateKey) * 8);
+				
+				//Check the key can initialize a decryptor - the threads initialize their own decryptor on first use
+				if (_getDecryptor(privateKey) != null) {
+					//Swap the key - the current key stays in use if the new one is invalid
+					_privateRSAKey			= privateKey;
+					_privateRSAKeyLength	= _getBlockLength(privateKey) * 8;
 					
-					try {
-						_privateRSAKey	= keyFactory.generatePrivate(privateKeySpec);
-						//_privateRSAKeyLengthprivateRSA = _privateRSAKey.;
-						
-						Logger.getSharedLogger().log("RSADecryptor::setPrivateRSAKey [RSA Key Processed Successfully]");
-						
-						//Initialize the decryptor
-						try {
-							_decryptor.init(Cipher.DECRYPT_MODE, _privateRSAKey);
-							
-							//At this point, everything worked fine
-							result = true;
-						} catch (InvalidKeyException e) {
-							Logger.getSharedLogger().log("RSADecryptor::setPrivateRSAKey [Failed to initialize the decryptor with private key]");
-							e.printStackTrace();
-						}
-					} catch (InvalidKeySpecException e) {
-						Logger.getSharedLogger().log("RSADecryptor::setPrivateRSAKey [Failed to initialize the private key]");
-						e.printStackTrace();
-					}
-				} catch (IOException e1) {
-					e1.printStackTrace();
+					//At this point, everything worked fine
+					result = true;
+				} else {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::setPrivateRSAKey [Failed to initialize the decryptor with private key]");
 				}
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::setPrivateRSAKey [Failed to read the private key - %s]", e.getMessage());
+			} catch (InvalidKeySpecException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::setPrivateRSAKey [Failed to initialize the private key - %s]", e.getMessage());
 			} catch (NoSuchAlgorithmException e) {
 				e.printStackTrace();
 			}
@@ -104,37 +112,375 @@ public class RSADecryptor {
 	}
 	
 	public byte[] decrypt(byte[] cipher) {
-		Logger.getSharedLogger().log(String.format("RSADecryptor::decrypt | Cipher: %s", HexDump.dump(cipher)));
-		
-		byte[] 					decrypted			= null;
-		byte[] 					block				= new byte[32];
-		ByteArrayInputStream	inByteArrayStream	= null;
-		ByteArrayOutputStream	outByteArrayStream	= new ByteArrayOutputStream();
-		CipherInputStream		cipherInStream		= null;
-		int						bytesRead			= 0;
-		
-		while ((cipher != null) && (cipher.length >= 256)) {
-			inByteArrayStream	= new ByteArrayInputStream(Arrays.copyOfRange(cipher, 0, 256));
-			cipherInStream		= new CipherInputStream(inByteArrayStream, _decryptor);
+		return decrypt(cipher, 0, ((cipher != null) ? cipher.length : 0));
+	}
+	
+	//Decrypts the whole blocks found in length bytes of cipher, starting at offset
+	public byte[] decrypt(byte[] cipher, int offset, int length) {
+		ByteBuffer	input			= ((cipher != null) ? ByteBuffer.wrap(cipher, offset, length) : ByteBuffer.allocate(0));
+		ByteBuffer	output			= ByteBuffer.allocate(input.remaining());
+		int			outputLength	= decrypt(input, output);
+		
+		return ((outputLength == output.capacity()) ? output.array() : Arrays.copyOf(output.array(), outputLength));
+	}
+	
+	//Decrypts the whole blocks found between the position and the limit of cipher into output - returns the number of bytes written
+	//The output must have room for cipher.remaining() bytes - its position is moved past the decrypted bytes, the position of cipher is not moved
+	public int decrypt(ByteBuffer cipher, ByteBuffer output) {
+		if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RSADecryptor::decrypt | Cipher: %s", HexDump.copyOf(cipher));
+		}
+		
+		PrivateKey				privateKey			= _privateRSAKey;
+		int						blockLength			= _getBlockLength(privateKey);
+		int						blockCount			= ((blockLength > 0) ? cipher.remaining() / blockLength : 0);
+		long					startTime			= System.nanoTime();
+		int						outputLength		= 0;
+		
+		if ((blockCount < MIN_PARALLEL_BLOCK_COUNT) || (g_decryptWorkerCount < 2)) {
+			outputLength = _decryptBlocks(privateKey, cipher, cipher.position(), blockLength, blockCount, output);
+		} else {
+			outputLength = _decryptBlocksInParallel(privateKey, cipher, blockLength, blockCount, output);
+		}
+		
+		g_decryptTime.record(System.nanoTime() - startTime);
+		g_decryptedBytes.add(blockCount * blockLength);
+		
+		//Log the decrypted Message
+		if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+			ByteBuffer decrypted = output.duplicate();
 			
-			//Decrypt
-			//Read blocks and decrypt
-			try {
-				while ((bytesRead = cipherInStream.read(block)) > 0) {
-					outByteArrayStream.write(block, 0, bytesRead);
+			decrypted.flip();
+			decrypted.position(decrypted.limit() - outputLength);
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RSADecryptor::decrypt | Decrypted: %s", HexDump.copyOf(decrypted));
+		}
+		
+		return outputLength;
+	}
+	
+	//Runs the operation on the decrypt executor - throws RejectedExecutionException if it cannot be queued
+	static public void execute(Runnable operation) {
+		g_decryptExecutor.execute(operation);
+	}
+	
+	//The length of a cipher block - the byte length of the key's modulus
+	public int getBlockLength() {
+		return _getBlockLength(_privateRSAKey);
+	}
+	
+	
+	public boolean hasPrivateRSAKey() {
+		return (_privateRSAKey != null);
+	}
+	
+	public int getPrivateRSAKeyLength() {
+		return _privateRSAKeyLength;
+	}
+	
+	
+	//Private Functions
+	
+	//Decodes the key without going through Strings - a PKCS#1 key is wrapped in a PKCS#8 structure for the key factory
+	PrivateKey _readPrivateKey(byte[] key) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		PEMReader				pemReader		= new PEMReader(key);
+		String					beginMarker		= pemReader.getBeginMarker();
+		byte[]					derKey			= pemReader.getDerBytes();
+		KeyFactory				keyFactory		= KeyFactory.getInstance(ALGORITHM);
+		
+		if (PEMReader.PRIVATE_PKCS1_MARKER.equals(beginMarker)) {
+			return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(_wrapPKCS1Key(derKey)));
+		}
+		
+		if ((beginMarker != null) && (PEMReader.PRIVATE_PKCS8_MARKER.equals(beginMarker) == false)) {
+			throw new InvalidKeySpecException("Unsupported PEM type " + beginMarker);
+		}
+		
+		//Raw DER keys do not tell their format - PKCS#8 first
+		try {
+			return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(derKey));
+		} catch (InvalidKeySpecException e) {
+			if (beginMarker != null) {
+				throw e;
+			}
+			
+			return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(_wrapPKCS1Key(derKey)));
+		}
+	}
+	
+	//PrivateKeyInfo ::= SEQUENCE { version 0, rsaEncryption AlgorithmIdentifier, OCTET STRING { RSAPrivateKey } }
+	static byte[] _wrapPKCS1Key(byte[] pkcs1Key) {
+		int			octetStringLength	= 1 + _getDERLengthSize(pkcs1Key.length) + pkcs1Key.length;
+		int			contentLength		= PKCS8_RSA_VERSION_AND_ALGORITHM.length + octetStringLength;
+		byte[]		pkcs8Key			= new byte[1 + _getDERLengthSize(contentLength) + contentLength];
+		int			index				= 0;
+		
+		pkcs8Key[index++] = DER_SEQUENCE_TAG;
+		index = _putDERLength(pkcs8Key, index, contentLength);
+		System.arraycopy(PKCS8_RSA_VERSION_AND_ALGORITHM, 0, pkcs8Key, index, PKCS8_RSA_VERSION_AND_ALGORITHM.length);
+		index += PKCS8_RSA_VERSION_AND_ALGORITHM.length;
+		pkcs8Key[index++] = DER_OCTET_STRING_TAG;
+		index = _putDERLength(pkcs8Key, index, pkcs1Key.length);
+		System.arraycopy(pkcs1Key, 0, pkcs8Key, index, pkcs1Key.length);
+		
+		return pkcs8Key;
+	}
+	
+	//Short form below 128, else the count of the length bytes followed by the length
+	static int _getDERLengthSize(int length) {
+		int size = 1;
+		
+		if (length >= 0x80) {
+			for (int value = length; value != 0; value >>>= 8) {
+				size++;
+			}
+		}
+		
+		return size;
+	}
+	
+	static int _putDERLength(byte[] out, int index, int length) {
+		int size = _getDERLengthSize(length);
+		
+		if (size == 1) {
+			out[index++] = (byte)length;
+			return index;
+		}
+		
+		out[index++] = (byte)(0x80 | (size - 1));
+		for (int shift = (size - 2) * 8; shift >= 0; shift -= 8) {
+			out[index++] = (byte)(length >>> shift);
+		}
+		
+		return index;
+	}
+	
+	int _getBlockLength(PrivateKey privateKey) {
+		if (privateKey instanceof RSAKey) {
+			return (((RSAKey)privateKey).getModulus().bitLength() + 7) / 8;
+		}
+		
+		return 0;
+	}
+	
+	//Splits the blocks in one contiguous range per worker - the calling thread decrypts the last range
+	//Each range is decrypted into its own region of the output, then the regions are moved back together in order
+	//The output is not given back before every worker is done with it - nothing is decrypted if the calling thread is interrupted meanwhile
+	int _decryptBlocksInParallel(PrivateKey privateKey, ByteBuffer cipher, int blockLength, int blockCount, ByteBuffer output) {
+		int							rangeCount			= Math.min(g_decryptWorkerCount, blockCount);
+		List<DecryptOperation>		operations			= new ArrayList<DecryptOperation>(rangeCount - 1);
+		CountDownLatch				operationsDone		= new CountDownLatch(rangeCount - 1);
+		AtomicBoolean				isCancelled			= new AtomicBoolean(false);
+		int[]						rangeOffsets		= new int[rangeCount];
+		int[]						rangeLengths		= new int[rangeCount];
+		int							outputOffset		= output.position();
+		int							firstBlock			= 0;
+		boolean						isInterrupted		= false;
+		boolean						hasFailed			= false;
+		
+		for (int i = 0; i < rangeCount; i++) {
+			int			lastBlock		= (int)(((long)blockCount * (i + 1)) / rangeCount);
+			int			cipherOffset	= cipher.position() + firstBlock * blockLength;
+			ByteBuffer	rangeOutput		= output.duplicate();
+			
+			rangeOffsets[i] = outputOffset + firstBlock * blockLength;
+			rangeOutput.limit(outputOffset + lastBlock * blockLength);
+			rangeOutput.position(rangeOffsets[i]);
+			
+			if (i < rangeCount - 1) {
+				DecryptOperation operation = new DecryptOperation(privateKey, cipher, cipherOffset, blockLength, lastBlock - firstBlock, rangeOutput, isCancelled, operationsDone);
+				
+				operations.add(operation);
+				try {
+					g_decryptWorkers.execute(operation);
+				} catch (RejectedExecutionException e) {
+					operation._hasFailed = true;
+					operationsDone.countDown();
 				}
-			} catch (IOException e) {
+			} else if (Thread.currentThread().isInterrupted()) {
+				isCancelled.set(true);
+			} else {
+				rangeLengths[i] = _decryptBlocks(privateKey, cipher, cipherOffset, blockLength, lastBlock - firstBlock, rangeOutput, isCancelled);
+			}
+			firstBlock = lastBlock;
+		}
+		
+		//Wait for the workers - the ones not started yet are cancelled on an interruption, the running ones still write into the output
+		while (true) {
+			try {
+				operationsDone.await();
+				break;
+			} catch (InterruptedException e) {
+				isInterrupted = true;
+				isCancelled.set(true);
+			}
+		}
+		
+		if ((isInterrupted) || (Thread.currentThread().isInterrupted())) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::_decryptBlocksInParallel [Interrupted - Decryption Failed]");
+			
+			//The interruption is left for the caller
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+		
+		for (int i = 0; i < operations.size(); i++) {
+			rangeLengths[i]	= operations.get(i)._outputLength;
+			hasFailed		|= operations.get(i)._hasFailed;
+		}
+		
+		if (hasFailed) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::_decryptBlocksInParallel [A worker failed - Decryption Failed]");
+			return 0;
+		}
+		
+		//Put the ranges back together in order - a range only moves towards the start of the output
+		for (int i = 0; i < rangeCount; i++) {
+			ByteBuffer range = output.duplicate();
+			
+			range.limit(rangeOffsets[i] + rangeLengths[i]);
+			range.position(rangeOffsets[i]);
+			
+			if (rangeOffsets[i] != output.position()) {
+				output.duplicate().put(range);
+			}
+			output.position(output.position() + rangeLengths[i]);
+		}
+		
+		return output.position() - outputOffset;
+	}
+	
+	//Decrypts each block straight from the cipher into the output - returns the number of bytes written
+	int _decryptBlocks(PrivateKey privateKey, ByteBuffer cipher, int offset, int blockLength, int blockCount, ByteBuffer output) {
+		return _decryptBlocks(privateKey, cipher, offset, blockLength, blockCount, output, null);
+	}
+	
+	//Stops before the next block once cancelled
+	int _decryptBlocks(PrivateKey privateKey, ByteBuffer cipher, int offset, int blockLength, int blockCount, ByteBuffer output, AtomicBoolean isCancelled) {
+		Cipher					decryptor			= _getDecryptor(privateKey);
+		ByteBuffer				block				= cipher.duplicate();
+		int						outputLength		= 0;
+		
+		if (decryptor == null) {
+			return 0;
+		}
+		
+		for (int i = 0; i < blockCount; i++) {
+			if ((isCancelled != null) && (isCancelled.get())) {
+				break;
+			}
+			
+			try {
+				block.limit(offset + (i + 1) * blockLength);
+				block.position(offset + i * blockLength);
+				outputLength += decryptor.doFinal(block, output);
+			} catch (GeneralSecurityException e) {
+				//Skip the block, as a failed read of the block did before
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RSADecryptor::_decryptBlocks [Failed to decrypt block %d: %s]", i, e.getMessage());
+			}
+		}
+		
+		return outputLength;
+	}
+	
+	//Returns the calling thread's decryptor, initialized with the given key
+	Cipher _getDecryptor(PrivateKey privateKey) {
+		Decryptor decryptor = _decryptors.get();
+		
+		if ((decryptor == null) || (decryptor._privateKey != privateKey)) {
+			try {
+				decryptor = new Decryptor(privateKey);
+				_decryptors.set(decryptor);
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return null;
+			} catch (NoSuchPaddingException e) {
 				e.printStackTrace();
+				return null;
+			} catch (InvalidKeyException e) {
+				e.printStackTrace();
+				return null;
 			}
+		}
+		
+		return decryptor._cipher;
+	}
+	
+	
+	//Per Thread Decryptor
+	
+	static class Decryptor {
+		
+		PrivateKey		_privateKey;
+		Cipher			_cipher;
+		
+		public Decryptor(PrivateKey privateKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+			_privateKey		= privateKey;
+			_cipher			= Cipher.getInstance(ALGORITHM);
+			_cipher.init(Cipher.DECRYPT_MODE, privateKey);
+		}
+	}
+	
+	
+	//Thread Factory Class
+	
+	static class DecryptThreadFactory implements ThreadFactory {
+		
+		String				_name;
+		AtomicInteger		_threadCount;
+		
+		public DecryptThreadFactory(String name) {
+			_name			= name;
+			_threadCount	= new AtomicInteger(0);
+		}
+		
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, String.format("%s-%d", _name, _threadCount.incrementAndGet()));
+			thread.setDaemon(true);
 			
-			cipher = Arrays.copyOfRange(cipher, 256, cipher.length);
+			return thread;
 		}
+	}
+	
+	
+	//Operation Class
+	
+	//Counts down the latch once done - the output must not be given back before
+	class DecryptOperation implements Runnable {
 		
-		decrypted = outByteArrayStream.toByteArray();
+		PrivateKey		_privateKey;
+		ByteBuffer		_cipher;
+		int				_offset;
+		int				_blockLength;
+		int				_blockCount;
+		ByteBuffer		_output;
+		AtomicBoolean	_isCancelled;
+		CountDownLatch	_done;
+		int				_outputLength;		//Read once the latch is released
+		boolean			_hasFailed;
 		
-		//Log the decrypted Message
-		Logger.getSharedLogger().log(String.format("RSADecryptor::decrypt | Decrypted: %s", HexDump.dump(decrypted)));
+		public DecryptOperation(PrivateKey privateKey, ByteBuffer cipher, int offset, int blockLength, int blockCount, ByteBuffer output, AtomicBoolean isCancelled, CountDownLatch done) {
+			_privateKey		= privateKey;
+			_cipher			= cipher;
+			_offset			= offset;
+			_blockLength	= blockLength;
+			_blockCount		= blockCount;
+			_output			= output;
+			_isCancelled	= isCancelled;
+			_done			= done;
+			_outputLength	= 0;
+			_hasFailed		= false;
+		}
 		
-		return decrypted;
+		public void run() {
+			try {
+				_outputLength = _decryptBlocks(_privateKey, _cipher, _offset, _blockLength, _blockCount, _output, _isCancelled);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				
+				_hasFailed = true;
+			} finally {
+				_done.countDown();
+			}
+		}
 	}
 }
@@ -1,565 +1,969 @@
 package com.boussettahichem.tools;
 
-import java.awt.HeadlessException;
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RetryProxy {
-
+	
 	//User Defined Types
-	enum  RetryErrors {
-		RetryErrorNoError,
-		RetryErrorNullSequenceNumber,
-		RetryErrorWrongSequenceNumber
+	enum ExecutionMode {
+		ExecutionModeThreads,		//Blocking reader threads per connection
+		ExecutionModeNIO,			//Selector based event loops shared by all the sessions
+		ExecutionModeVirtualThreads	//Blocking readers, accept loop and write operations on virtual threads
+	};
+	
+	//What a session does with the requests of its source once its submission queue is full
+	enum OverflowPolicy {
+		OverflowPolicyBlock,		//Stop reading from the source until the queue drains - TCP flow control holds the source back
+		OverflowPolicyDropOldest,	//Drop the oldest request not sent yet to make room
+		OverflowPolicyReject		//Do not send the request - an error response is written to the source instead
+	};
+	
+	//How a session chooses its destination when there are several
+	enum BalancingPolicy {
+		BalancingPolicyLeastOutstanding,	//The destination with the fewest requests not replied yet
+		BalancingPolicyLatency				//The fewest requests not replied yet, weighted by the smoothed round trip time of the destination
 	};
 	
 	//Constants & Defaults
 	final int			DEFAULT_RETRY_COUNT				= 2;
 	final int 			DEFAULT_SOURCE_PORT				= 9530;
 	final int 			DEFAULT_DESTINATION_PORT		= 9530;
-	final int 			DEFAULT_WAIT_FOR_REPLY_TIMEOUT	= 10;
-	final int 			DATA_HEADER_LENGTH				= 2;
+	final int 			DEFAULT_WAIT_FOR_REPLY_TIMEOUT	= 10;		//Seconds - the retry timeout until round trip times are measured
+	final int			DEFAULT_MIN_RETRY_TIMEOUT		= 10;		//Milliseconds
+	final int			DEFAULT_MAX_RETRY_TIMEOUT		= 60000;	//Milliseconds
+	final int			DEFAULT_RETRY_WINDOW_SIZE		= 8;
+	final int			MAX_RETRY_WINDOW_SIZE			= 128;		//Half of the sequence numbers - a late reply cannot match a newer request
+	final int			DEFAULT_SOURCE_FLUSH_LATENCY	= 0;		//Microseconds
+	final int			DEFAULT_SUBMISSION_QUEUE_CAPACITY	= 256;	//Requests per session
+	final int			DEFAULT_DRAIN_TIMEOUT			= 30;		//Seconds
+	final int			DRAIN_CHECK_PERIOD				= 10;		//Milliseconds
+	final int			SOURCE_LINGER_TIME				= 1000;		//Milliseconds a drained source has to close the connection after the end of stream
+	final int			DEFAULT_ACCEPTOR_COUNT			= 1;
+	final int			ACCEPT_BACKLOG					= 1024;		//Connections waiting to be accepted - capped by the system (somaxconn)
+	
+	//Metrics
+	static final LongAdder	g_sessionsAccepted			= Metrics.getSharedMetrics().getCounter(Metrics.SESSIONS_ACCEPTED);
+	static final LongAdder	g_sessionsActive			= Metrics.getSharedMetrics().getCounter(Metrics.SESSIONS_ACTIVE);
 	
 	//Member variables
-	String				_sourceIP;
+	ProxyRuntime		_runtime;
+	String				_name;
 	String				_destinationIP;
 	int					_sourcePort;
 	int					_destinationPort;
+	List<InetSocketAddress>	_additionalDestinations;
+	BalancingPolicy		_balancingPolicy;
 	boolean				_useNetworkRetry;
-	ServerSocket		_serverSocket;
-	Socket				_sourceSocket;
-	Socket				_destinationSocket;
+	List<ServerSocketChannel>	_serverChannels;	//One per acceptor with SO_REUSEPORT, or one shared by the acceptors
+	ServerSocketChannel	_inheritedChannel;		//The listening socket passed by the process that started the proxy
+	List<ChannelAcceptor>	_channelAcceptors;
+	int					_acceptorCount;
 	boolean				_isServerStarted;
+	AtomicBoolean		_isStopping;
+	CountDownLatch		_stopLatch;				//Released once the proxy is stopped - runServer() returns then
+	int					_drainTimeout;
 	int					_retryCount;
 	int 				_waitForReplyTimeout;
-	SourceThread		_sourceThread;
-	DestinationThread	_destinationThread;
-	ExecutorService		_retryLogicExecutor;
-	int					_currentSequenceNumber;
-	Condition			_waitForReplyCondition;
-	Lock				_waitForReplyLock;
-	RetryErrors			_currentRetryError;
+	int					_minRetryTimeout;
+	int					_maxRetryTimeout;
+	int					_retryWindowSize;
+	ScheduledExecutorService	_retryTimer;
 	byte[]				_privateKey;
 	boolean				_useDecryption;
+	KeyRing				_keyRing;
+	ConcurrentMap<Integer, ProxySession>	_sessions;
+	ExecutionMode		_executionMode;
+	EventLoopGroup		_eventLoopGroup;
+	ThreadFactory		_threadFactory;
+	int					_metricsPort;
+	DestinationGroup	_destinationGroup;
+	int					_warmDestinationConnectionCount;
+	int					_sourceFlushLatency;
+	int					_submissionQueueCapacity;
+	OverflowPolicy		_overflowPolicy;
+	TrafficCapture		_trafficCapture;		//Records the frames of the sessions when a capture file is set
 	
 	
 	
 	//Constructor
 	public RetryProxy() {
-		Logger.getSharedLogger().log("RetryProxy::RetryProxy");
+		this(new ProxyRuntime());
+	}
+	
+	//The proxies of a runtime share its event loops, timers, key ring and metrics endpoint
+	public RetryProxy(ProxyRuntime runtime) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::RetryProxy");
 		
 		//Variable Initialization
-		_sourceIP					= "";
+		_runtime					= runtime;
+		_name						= "";
 		_destinationIP				= "";
 		_sourcePort					= DEFAULT_SOURCE_PORT;
 		_destinationPort			= DEFAULT_DESTINATION_PORT;
+		_additionalDestinations		= new ArrayList<InetSocketAddress>();
+		_balancingPolicy			= BalancingPolicy.BalancingPolicyLeastOutstanding;
 		_useNetworkRetry			= false;
-		_serverSocket				= null;
-		_sourceSocket				= null;
-		_destinationSocket			= null;
+		_serverChannels				= null;
+		_inheritedChannel			= null;
+		_channelAcceptors			= null;
+		_acceptorCount				= DEFAULT_ACCEPTOR_COUNT;
 		_isServerStarted			= false;
+		_isStopping					= new AtomicBoolean(false);
+		_stopLatch					= new CountDownLatch(1);
+		_drainTimeout				= DEFAULT_DRAIN_TIMEOUT;
 		_retryCount					= DEFAULT_RETRY_COUNT;
 		_waitForReplyTimeout		= DEFAULT_WAIT_FOR_REPLY_TIMEOUT;
-		_sourceThread				= null;
-		_destinationThread			= null;
-		_retryLogicExecutor			= Executors.newSingleThreadExecutor();
-		_currentSequenceNumber		= 0;
-		_waitForReplyLock			= new ReentrantLock();
-		_waitForReplyCondition 		= _waitForReplyLock.newCondition();
-		_currentRetryError			= RetryErrors.RetryErrorNoError;
+		_minRetryTimeout			= DEFAULT_MIN_RETRY_TIMEOUT;
+		_maxRetryTimeout			= DEFAULT_MAX_RETRY_TIMEOUT;
+		_retryWindowSize			= DEFAULT_RETRY_WINDOW_SIZE;
+		_retryTimer					= runtime.getTimer();
 		_privateKey					= null;
 		_useDecryption				= false;
+		_keyRing					= runtime.getKeyRing();
+		_sessions					= new ConcurrentHashMap<Integer, ProxySession>();
+		_executionMode				= ExecutionMode.ExecutionModeThreads;
+		_eventLoopGroup				= null;
+		_threadFactory				= null;
+		_metricsPort				= 0;
+		_destinationGroup			= null;
+		_warmDestinationConnectionCount	= DestinationPool.DEFAULT_WARM_CONNECTION_COUNT;
+		_sourceFlushLatency			= DEFAULT_SOURCE_FLUSH_LATENCY;
+		_submissionQueueCapacity	= DEFAULT_SUBMISSION_QUEUE_CAPACITY;
+		_overflowPolicy				= OverflowPolicy.OverflowPolicyBlock;
+		_trafficCapture				= null;
 	}
 	
 	
 	//Properties
+	
+	//Name of the route the proxy serves - the metrics of its destinations are prefixed with it when it is set
+	public void setName(String name) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setName [%s]", name);
+		_name = ((name != null) ? name : "");
+	}
+	
 	public void setDestinationIP(String dstIP) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setDestinationIP [%s]", dstIP));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setDestinationIP [%s]", dstIP);
 		_destinationIP = dstIP;
 	}
 	
 	public void setSourcePort(int srcPort) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setSourcePort [%d]", srcPort));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setSourcePort [%d]", srcPort);
 		if (srcPort > 0) {
 			_sourcePort = srcPort;
 		}
 	}
 	
+	//Listens on the socket inherited from the process that started the proxy (systemd socket activation, inetd wait mode) instead of binding one
+	//The socket outlives the proxy - the connections arriving while the proxy is replaced wait in its backlog instead of being refused
+	//Returns false when no listening socket was inherited - the source port is the port of the socket otherwise
+	public boolean setUseInheritedChannel() {
+		Channel channel = null;
+		
+		try {
+			channel = System.inheritedChannel();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if ((channel instanceof ServerSocketChannel) == false) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::setUseInheritedChannel [No listening socket inherited]");
+			return false;
+		}
+		
+		_inheritedChannel	= (ServerSocketChannel)channel;
+		_sourcePort			= _inheritedChannel.socket().getLocalPort();
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setUseInheritedChannel [Port %d]", _sourcePort);
+		
+		return true;
+	}
+	
 	public void setDestinationPort(int dstPort) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setDestinationPort [%d]", dstPort));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setDestinationPort [%d]", dstPort);
 		if (dstPort > 0) {
 			_destinationPort = dstPort;
 		}
 	}
 	
+	//Adds a destination to the one set by setDestinationIP() and setDestinationPort() - the sessions are balanced between them
+	public void addDestination(String dstIP, int dstPort) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::addDestination [%s:%d]", dstIP, dstPort);
+		_additionalDestinations.add(InetSocketAddress.createUnresolved(dstIP, dstPort));
+	}
+	
+	//Sets the destinations from a list of IP[:port] separated by commas - defaultPort is the port of the destinations without one
+	public void setDestinations(String destinations, int defaultPort) {
+		String[] entries = destinations.split(",");
+		
+		for (int i = 0; i < entries.length; i++) {
+			String	entryIP			= entries[i].trim();
+			int		entryPort		= defaultPort;
+			int		separatorIndex	= entryIP.lastIndexOf(':');
+			
+			if (separatorIndex >= 0) {
+				entryPort	= Integer.parseInt(entryIP.substring(separatorIndex + 1));
+				entryIP		= entryIP.substring(0, separatorIndex);
+			}
+			
+			if (i == 0) {
+				setDestinationIP(entryIP);
+				setDestinationPort(entryPort);
+			} else {
+				addDestination(entryIP, entryPort);
+			}
+		}
+	}
+	
+	public void setBalancingPolicy(BalancingPolicy policy) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setBalancingPolicy [%s]", policy.name());
+		_balancingPolicy = policy;
+	}
+	
 	public void setUseNetworkRetry(boolean enableRetry) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setUseNetworkRetry [%s]", ((enableRetry) ? "yes" : "no")));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setUseNetworkRetry [%s]", ((enableRetry) ? "yes" : "no"));
 		_useNetworkRetry = enableRetry;
 	}
 	
 	public void setRetryCount(int count) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setRetryCount [%d]", count));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setRetryCount [%d]", count);
 		if (count > 0) {
 			_retryCount = count;
 		}
 	}
 	
 	public void setWaitForReplyTimeout(int timeout) {
-		Logger.getSharedLogger().log(String.format("RetryProxy::setWaitForReplyTimeout [timeout = %d]", timeout));
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setWaitForReplyTimeout [timeout = %d]", timeout);
 		if(timeout > 0) {
 			_waitForReplyTimeout = timeout;
 		}
 	}
 	
+	//Bounds of the retry timeouts in milliseconds - the timeouts follow the round trip times of the destination and double on each retry
+	public void setMinRetryTimeout(int timeout) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setMinRetryTimeout [%d ms]", timeout);
+		if (timeout > 0) {
+			_minRetryTimeout = timeout;
+		}
+	}
+	
+	public void setMaxRetryTimeout(int timeout) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setMaxRetryTimeout [%d ms]", timeout);
+		if (timeout > 0) {
+			_maxRetryTimeout = timeout;
+		}
+	}
+	
+	//Maximum number of requests sent to destination and waiting for their reply, per session
+	public void setRetryWindowSize(int size) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setRetryWindowSize [%d]", size);
+		if (size > 0) {
+			_retryWindowSize = Math.min(size, MAX_RETRY_WINDOW_SIZE);
+		}
+	}
+	
+	//The key of the sources without a key of their own - the source port must be set first, the key ring may be shared with other listeners
 	public void setPrivateKey(byte[] key) {
-		Logger.getSharedLogger().log("RetryProxy::setPrivateKey");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setPrivateKey");
 		_privateKey = key;
 		
-		//Initialize the RSA Decryptor
-		if (RSADecryptor.getSharedRSADecryptor().setPrivateRSAKey(_privateKey)) {
-			Logger.getSharedLogger().log("RetryProxy::setPrivateKey [Proxy is now using decryption]");
+		String keyName = KeyRing.DEFAULT_KEY_NAME + ":" + _sourcePort;
+		
+		//Initialize the RSA Decryptor of the listener's key
+		if ((_privateKey != null) && (_keyRing.addKey(keyName, _privateKey) != null)) {
+			_keyRing.setListenerKey(_sourcePort, keyName);
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setPrivateKey [Proxy is now using decryption]");
 			
 			_useDecryption = true;
 		} else {
-			Logger.getSharedLogger().log("RetryProxy::setPrivateKey [Proxy failed to set decryption mode]");
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::setPrivateKey [Proxy failed to set decryption mode]");
 			
 			_useDecryption = false;
 		}
 	}
 	
-	public String getSourceIP() {
-		Logger.getSharedLogger().log("RetryProxy::getSourceIP");
-		return _sourceIP;
+	//Adds a key file to the key ring, reloaded when the file changes
+	//The key is used for the given source address, or for the sources without a key of their own when sourceAddress is null
+	//The rules are those of the listener - the source port must be set first
+	//A directory is loaded as a whole, see _addPrivateKeyDirectory()
+	public boolean addPrivateKeyFile(String keyPath, String sourceAddress) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::addPrivateKeyFile [%s - Source %s]", keyPath, ((sourceAddress != null) ? sourceAddress : "any"));
+		
+		if ((sourceAddress == null) && (Files.isDirectory(Paths.get(keyPath)))) {
+			return _addPrivateKeyDirectory(keyPath);
+		}
+		
+		String keyName = _keyRing.addKeyFile(keyPath);
+		
+		if (keyName == null) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::addPrivateKeyFile [Failed to load the key]");
+			return false;
+		}
+		
+		if (sourceAddress != null) {
+			_keyRing.setSourceKey(_sourcePort, sourceAddress, keyName);
+		} else {
+			_keyRing.setListenerKey(_sourcePort, keyName);
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::addPrivateKeyFile [Proxy is now using decryption]");
+		_useDecryption = true;
+		
+		return true;
+	}
+	
+	//Adds the key files of a list of path[,sourceIP=path...] - returns false if a key could not be loaded
+	public boolean addPrivateKeyFiles(String keyFiles) {
+		boolean result = true;
+		
+		for (String keyEntry : keyFiles.split(",")) {
+			int separatorIndex = keyEntry.indexOf('=');
+			
+			if (separatorIndex < 0) {
+				result &= addPrivateKeyFile(keyEntry.trim(), null);
+			} else {
+				result &= addPrivateKeyFile(keyEntry.substring(separatorIndex + 1).trim(), keyEntry.substring(0, separatorIndex).trim());
+			}
+		}
+		
+		return result;
+	}
+	
+	//Local port of the metrics text endpoint - 0 only publishes the metrics over JMX
+	//The endpoint is shared by the proxies of the runtime - the first one giving a port starts it
+	public void setMetricsPort(int port) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setMetricsPort [%d]", port);
+		if (port >= 0) {
+			_metricsPort = port;
+		}
+	}
+	
+	//Records the frames of all the sessions to the file, until the proxy stops - see TrafficCapture
+	public boolean setCaptureFile(String path) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setCaptureFile [%s]", path);
+		
+		_closeCapture();
+		
+		try {
+			_trafficCapture = new TrafficCapture(path);
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "RetryProxy::setCaptureFile [Failed to create %s]", path);
+			
+			_trafficCapture = null;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	//Number of idle destination connections opened ahead of the sessions
+	public void setWarmDestinationConnectionCount(int count) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setWarmDestinationConnectionCount [%d]", count);
+		if (count >= 0) {
+			_warmDestinationConnectionCount = count;
+		}
+	}
+	
+	//Time in microseconds a response may wait for the next ones to be written to the source with them
+	//0 writes the responses available at once together, without waiting for more
+	public void setSourceFlushLatency(int latency) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setSourceFlushLatency [%d us]", latency);
+		if (latency >= 0) {
+			_sourceFlushLatency = latency;
+		}
+	}
+	
+	//Maximum number of requests of a session received from source and not sent to destination yet
+	public void setSubmissionQueueCapacity(int capacity) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setSubmissionQueueCapacity [%d]", capacity);
+		if (capacity > 0) {
+			_submissionQueueCapacity = capacity;
+		}
+	}
+	
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setOverflowPolicy [%s]", policy.name());
+		_overflowPolicy = policy;
+	}
+	
+	//Time in seconds stopServer() waits for the requests in progress to be replied before closing the sessions
+	public void setDrainTimeout(int timeout) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setDrainTimeout [%d s]", timeout);
+		if (timeout >= 0) {
+			_drainTimeout = timeout;
+		}
+	}
+	
+	//Threads accepting the connections of the listening port - each one listens on its own socket when the system supports SO_REUSEPORT
+	public void setAcceptorCount(int count) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setAcceptorCount [%d]", count);
+		if (count > 0) {
+			_acceptorCount = count;
+		}
+	}
+	
+	public void setExecutionMode(ExecutionMode mode) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::setExecutionMode [%s]", mode.name());
+		_executionMode = mode;
+	}
+	
+	public String getName() {
+		return _name;
+	}
+	
+	public ProxyRuntime getRuntime() {
+		return _runtime;
 	}
 	
 	public String getDestinationIP() {
-		Logger.getSharedLogger().log("RetryProxy::getDestinationIP");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getDestinationIP");
 		return _destinationIP;
 	}
 	
 	public int getSourcePort() {
-		Logger.getSharedLogger().log("RetryProxy::getSourcePort");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getSourcePort");
 		return _sourcePort;
 	}
 	
 	public int getDestinationPort() {
-		Logger.getSharedLogger().log("RetryProxy::getDestinationPort");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getDestinationPort");
 		return _destinationPort;
 	}
 	
 	public int getRetryCount() {
-		Logger.getSharedLogger().log("RetryProxy::getRetryCount");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getRetryCount");
 		return _retryCount;
 	}
 	
 	public int getWaitForReplyTimeout() {
-		Logger.getSharedLogger().log("RetryProxy::getWaitForReplyTimeout");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getWaitForReplyTimeout");
 		return _waitForReplyTimeout;
 	}
 	
-	public byte[] getPrivateKey() {
-		Logger.getSharedLogger().log("RetryProxy::getPrivateKey");
-		return _privateKey;
+	public int getMinRetryTimeout() {
+		return _minRetryTimeout;
 	}
 	
-	//Public Functions
-	public synchronized boolean runServer() {
-		Logger.getSharedLogger().log("RetryProxy::runServer");
-		
-		boolean result = true;
-		
-		if (_isServerStarted == false) {
-			// Create a ServerSocket to listen for connections with
-		    try {
-				_serverSocket = new ServerSocket(_sourcePort);
-			} catch (IOException e) {
-				e.printStackTrace();
-				
-				result = false;
-				Logger.getSharedLogger().log("RetryProxy::runServer [Failed to initialize Server Socket]");
-				
-				return false;
-			}
-		    
-		    //Set the server as started
-		    _isServerStarted = true;
-		    Logger.getSharedLogger().log(String.format("RetryProxy::runServer [Server Started on %s:%d]", _serverSocket.getInetAddress().getHostAddress(), _sourcePort));
-		    
-		    do {
-		    	Socket tmpClient = null;
-			    
-			    //Wait for a client to connect
-			    try {
-					tmpClient = _serverSocket.accept();
-				} catch (IOException e) {
-					e.printStackTrace();
-					
-					Logger.getSharedLogger().log("RetryProxy::runServer [Failed to Accept Connection]");
-				}
-			    
-			    //If a source is already connected, disconnect it and stop the source thread
-			    if (_sourceSocket != null) {
-		    		Logger.getSharedLogger().log("RetryProxy::runServer [The server received a new connection attempt - The current client will be disconnected]");
-					_disconnectSource();
-					_disconnectDestination();
-			    }
-			    
-		    	_sourceSocket 	= tmpClient;
-		    	_sourceIP		= tmpClient.getInetAddress().getHostAddress();
-		    	Logger.getSharedLogger().log(String.format("RetryProxy::runServer [Connection Accepted for %s]", _sourceIP));
-		    	
-		    	//Reset the sequence number used for retry logic
-		    	if (_useNetworkRetry) {
-		    		_initializeSequenceNumber();
-		    	}
-		    	
-		    	//Connect to destination
-		    	_connectToDestination();
-		    		
-		    	//Start SourceThread
-				_sourceThread = new SourceThread(this, _sourceSocket);
-				_sourceThread.start();
-		    } while (true);
-			
-		} else {
-			Logger.getSharedLogger().log("RetryProxy::runServer [Server Already Started]");
-		}
-	    
-		
-		return result;
+	public int getMaxRetryTimeout() {
+		return _maxRetryTimeout;
 	}
 	
-	public synchronized void stopServer() {
-		Logger.getSharedLogger().log("RetryProxy::stopServer");
+	public int getRetryWindowSize() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getRetryWindowSize");
+		return _retryWindowSize;
 	}
 	
-	public boolean getUseNetworkRetry() {
-		Logger.getSharedLogger().log("RetryProxy::getUseNetworkRetry");
-		return _useNetworkRetry;
+	public int getSourceFlushLatency() {
+		return _sourceFlushLatency;
 	}
 	
-	public void writeDataToDestination(byte[] data) {
-		Logger.getSharedLogger().log("RetryProxy::writeDataToDestination");
-		
-		_retryLogicExecutor.submit(new SourceToDestinationWriteOperation(data));
+	public int getSubmissionQueueCapacity() {
+		return _submissionQueueCapacity;
 	}
 	
+	public OverflowPolicy getOverflowPolicy() {
+		return _overflowPolicy;
+	}
 	
-	public void writeDataToSource(byte[] data) {
-		Logger.getSharedLogger().log("RetryProxy::writeDataToSource");
-		
-		byte[]				tmpBuffer			= null;
-		byte[]				outBuffer			= null;
-		
-		//Check if retry logic is enabled
-		if (_useNetworkRetry) {
-			//Get the sequence number
-			int returnedSequenceNumber = data[0];
-			tmpBuffer = Arrays.copyOfRange(data, 1, data.length);
-			
-			//Signal the wait for reply condition
-			_waitForReplyLock.lock();
-			_waitForReplyCondition.signal();
-			
-			//Check for retry errors
-			if ((returnedSequenceNumber != _currentSequenceNumber) && (returnedSequenceNumber == 0)) {
-				
-				//Turn on the reset sequence number flag so that the current request is sent again with a null sequence number
-				_currentRetryError = RetryErrors.RetryErrorNullSequenceNumber;
-				
-				//Return without writing the data to source - Release the lock protecting the condition
-				_waitForReplyLock.unlock();
-				return;
-			} else if (returnedSequenceNumber != _currentSequenceNumber) {
-				Logger.getSharedLogger().log(String.format("RetryProxy::writeDataToSource [The sequence number of the response (%d) does not match the one used in the request (%d)]", returnedSequenceNumber, _currentSequenceNumber));
-				
-				_currentRetryError = RetryErrors.RetryErrorWrongSequenceNumber;
-				
-				//Return without writing the data to source - Release the lock protecting the condition
-				_waitForReplyLock.unlock();
-				return;
-			}
-			
-			_currentRetryError = RetryErrors.RetryErrorNoError;
-			
-			//Release the lock protecting the condition
-			_waitForReplyLock.unlock();
-		} else {
-			tmpBuffer = data;
+	//Timer of the reply timeouts of all the sessions - shared by the proxies of the runtime
+	public ScheduledExecutorService getRetryTimer() {
+		return _retryTimer;
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getExecutionMode");
+		return _executionMode;
+	}
+	
+	//Factory of the threads running the sessions - null when platform threads are used
+	public ThreadFactory getThreadFactory() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getThreadFactory");
+		return _threadFactory;
+	}
+	
+	public byte[] getPrivateKey() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getPrivateKey");
+		return _privateKey;
+	}
+	
+	//The destinations and their connections shared by the sessions - created when the server starts
+	public DestinationGroup getDestinationGroup() {
+		return _destinationGroup;
+	}
+	
+	public KeyRing getKeyRing() {
+		return _keyRing;
+	}
+	
+	//Null when no capture file is set
+	public TrafficCapture getTrafficCapture() {
+		return _trafficCapture;
+	}
+	
+	//The decryptor of a source's responses - null when decryption is disabled
+	public RSADecryptor getDecryptor(String sourceAddress) {
+		if (_useDecryption == false) {
+			return null;
 		}
 		
-		//Use decryption when applicable
-		if (_useDecryption) {
-			tmpBuffer = RSADecryptor.getSharedRSADecryptor().decrypt(tmpBuffer);
+		return _keyRing.getDecryptor(_sourcePort, sourceAddress);
+	}
+	
+	//Parses an execution mode name: threads, nio or virtual - returns null for an unknown name
+	static public ExecutionMode parseExecutionMode(String name) {
+		if (name.equalsIgnoreCase("threads")) {
+			return ExecutionMode.ExecutionModeThreads;
+		} else if (name.equalsIgnoreCase("nio")) {
+			return ExecutionMode.ExecutionModeNIO;
+		} else if (name.equalsIgnoreCase("virtual")) {
+			return ExecutionMode.ExecutionModeVirtualThreads;
 		}
 		
-		//Check if response is valid
-		if ((tmpBuffer == null) || (tmpBuffer.length == 0)) {
-			//Return an invalid response {0x00, 0x00}
-			tmpBuffer = new byte[] {0x00, 0x00};
+		return null;
+	}
+	
+	//Parses an overflow policy name: block, drop or reject - returns null for an unknown name
+	static public OverflowPolicy parseOverflowPolicy(String name) {
+		if (name.equalsIgnoreCase("block")) {
+			return OverflowPolicy.OverflowPolicyBlock;
+		} else if (name.equalsIgnoreCase("drop")) {
+			return OverflowPolicy.OverflowPolicyDropOldest;
+		} else if (name.equalsIgnoreCase("reject")) {
+			return OverflowPolicy.OverflowPolicyReject;
 		}
 		
-		//Allocate memory for message
-		outBuffer = new byte[DATA_HEADER_LENGTH + tmpBuffer.length];
-		
-		//Prepare the data
-		outBuffer[0] = (byte)(tmpBuffer.length / 256);
-		outBuffer[1] = (byte)(tmpBuffer.length % 256);
-		try {
-			System.arraycopy(tmpBuffer, 0, outBuffer, 2, tmpBuffer.length);
-		} catch (ArrayIndexOutOfBoundsException ex) {
-			ex.printStackTrace();
+		return null;
+	}
+	
+	//Parses a balancing policy name: outstanding or latency - returns null for an unknown name
+	static public BalancingPolicy parseBalancingPolicy(String name) {
+		if (name.equalsIgnoreCase("outstanding")) {
+			return BalancingPolicy.BalancingPolicyLeastOutstanding;
+		} else if (name.equalsIgnoreCase("latency")) {
+			return BalancingPolicy.BalancingPolicyLatency;
 		}
 		
-		//Write the data
-		try {
-			if ((_sourceSocket != null) && (_sourceSocket.isConnected())) {
-				_sourceSocket.getOutputStream().write(outBuffer);
-				
-				//Log the written data to console
-				Logger.getSharedLogger().log(String.format("RetryProxy::writeDataToSource [Proxy -> Src]%s", HexDump.dump(outBuffer)));
-			} else {
-				Logger.getSharedLogger().log("RetryProxy::writeDataToSource [Failed to write data - Source Disconnected]");
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		return null;
 	}
 	
-	//Private Functions
-	
-	boolean _connectToDestination() {
-		Logger.getSharedLogger().log("RetryProxy::_connectToDestination");
+	//Public Functions
+	public synchronized boolean runServer() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer");
 		
 		boolean result = true;
 		
-		try {
-			_destinationSocket = new Socket(_destinationIP, _destinationPort);
-			
-			Logger.getSharedLogger().log(String.format("RetryProxy::_connectToDestination [Connected to %s:%d]", _destinationIP, _destinationPort));
+		if (_isStopping.get()) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer [Server Stopped]");
+			return false;
+		}
+		
+		if (_isServerStarted == false) {
+			if (_executionMode == ExecutionMode.ExecutionModeVirtualThreads) {
+				_threadFactory = VirtualThreads.getThreadFactory();
+				
+				if (_threadFactory == null) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::runServer [Virtual threads are not available - Falling back to platform threads]");
+					_executionMode = ExecutionMode.ExecutionModeThreads;
+				}
+			}
 			
-			//Run Destination Thread
-			_destinationThread = new DestinationThread(this, _destinationSocket);
-			_destinationThread.start();
-		} catch (ConnectException ex) {
-			Logger.getSharedLogger().log(String.format("RetryProxy::_connectToDestination [Failed to connect to %s:%d]", _destinationIP, _destinationPort));
+			_runtime.proxyStarted(this, _metricsPort);
 			
-			_destinationSocket = null;
-			result = false;
-		} catch (IOException e) {
-			e.printStackTrace();
+			_destinationGroup = new DestinationGroup(_balancingPolicy);
+			_destinationGroup.add(new DestinationPool(this, _destinationIP, _destinationPort));
+			for (InetSocketAddress destination : _additionalDestinations) {
+				_destinationGroup.add(new DestinationPool(this, destination.getHostString(), destination.getPort()));
+			}
+			_destinationGroup.setWarmConnectionCount(_warmDestinationConnectionCount);
 			
-			_destinationSocket = null;
-			result = false;
+			if (_executionMode == ExecutionMode.ExecutionModeNIO) {
+				result = _runChannelServer();
+			} else {
+				result = _runSocketServer();
+			}
+		} else {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer [Server Already Started]");
 		}
 		
+		
 		return result;
 	}
 	
-	
-	void _scheduledWriteDataToDestination(byte[] data) {
-		Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination");
+	//Stops accepting, lets the sessions finish the requests they received within the drain timeout, then closes them
+	//The sessions stop reading from their source at once - the requests in progress are sent, retried and replied as usual
+	//A drained session sends the end of stream to its source, and is closed when the source closes or after the linger time
+	//Returns once the proxy is stopped - runServer() returns then
+	public void stopServer() {
+		if (_isStopping.compareAndSet(false, true) == false) {
+			return;
+		}
 		
-		byte[]				outBuffer			= null;
-		int					outBufferLength		= 0;
-		int					dataLength			= 0;
-		int 				retryNumber			= 0;
-		Socket				_ptrSourceSocket	= _sourceSocket; 
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::stopServer [Draining %d Sessions - %d s]", _sessions.size(), _drainTimeout);
 		
-		//Prepare the request
-		if (_useNetworkRetry) {
-			//Update the sequence number each time a new request is received from the source - sequence number is needed for retry logic
-			_updateSequenceNumber();
+		long	deadline		= System.nanoTime() + TimeUnit.SECONDS.toNanos(_drainTimeout);
+		long	lingerTime		= TimeUnit.MILLISECONDS.toNanos(SOURCE_LINGER_TIME);
+		
+		_closeListener();
+		
+		//A session accepted while the listener was closing is drained with the others
+		while (true) {
+			for (ProxySession session : _sessions.values()) {
+				session.drain();
+				
+				if (session.getSourceShutdownTime() != 0) {
+					if (System.nanoTime() - session.getSourceShutdownTime() >= lingerTime) {
+						session.close();
+					}
+				} else if (session.isDrained()) {
+					session.shutdownSource();
+				}
+			}
 			
-			dataLength			= data.length + 1;		//The sequence number is added at the beginning of the request
-			outBufferLength		= dataLength + DATA_HEADER_LENGTH;
-			outBuffer			= new byte[outBufferLength];
-			outBuffer[0]		= (byte)(dataLength / 256);
-			outBuffer[1]		= (byte)(dataLength % 256);
-			outBuffer[2]		= (byte)_currentSequenceNumber;
-			System.arraycopy(data, 0, outBuffer, DATA_HEADER_LENGTH + 1, dataLength - 1);
-		} else {
-			dataLength			= data.length;
-			outBufferLength 	= dataLength + DATA_HEADER_LENGTH;
-			outBuffer			= new byte[outBufferLength];
-			outBuffer[0]		= (byte)(dataLength / 256);
-			outBuffer[1]		= (byte)(dataLength % 256);
-			System.arraycopy(data, 0, outBuffer, DATA_HEADER_LENGTH, dataLength);
-		}
-		
-		do {
-			//Check the source has not disconnected
-			if ((_ptrSourceSocket != _sourceSocket) || (_ptrSourceSocket.isConnected() == false)) {
-				Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Source Socket Disconnected: Exiting Task]");
+			if ((_sessions.isEmpty()) || (System.nanoTime() - deadline >= 0)) {
 				break;
 			}
 			
-			//Write the data
 			try {
-				//Connect to destination
-				_connectToDestination();
-				
-				if ((_destinationSocket != null) && (_destinationSocket.isConnected())) {
-					_destinationSocket.getOutputStream().write(outBuffer);
-					
-					//Log the written data to console
-					Logger.getSharedLogger().log(String.format("RetryProxy::_scheduledWriteDataToDestination [Proxy -> Dst]%s", HexDump.dump(outBuffer)));
-				} else {
-					Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Destination Socket Disconnected]");
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				
-				Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Failed to write the data on output stream]");
-				
-				//Check if the destination socket is still connected
-				if (_destinationSocket.isConnected() == false) {
-					Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Destination Socket Disconnected]");
-					_disconnectDestination();
-				}
+				Thread.sleep(DRAIN_CHECK_PERIOD);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
 			}
+		}
+		
+		if (_sessions.isEmpty() == false) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::stopServer [Drain Timeout - Closing %d Sessions with Requests in Progress]", _sessions.size());
 			
-			if (_useNetworkRetry) {
-				//Wait for the reply
-				_waitForReplyLock.lock();
-				try {
-					if (_waitForReplyCondition.await(_waitForReplyTimeout, TimeUnit.SECONDS) == true) {		//The condition is signaled
-						
-						//Check for errors
-						if (_currentRetryError == RetryErrors.RetryErrorNoError) {
-							Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Received Valid Response - Ending Scheduled Task]");
-							
-							//Unlock the condition and exit the loop
-							_waitForReplyLock.unlock();
-							break;
-						} else if (_currentRetryError == RetryErrors.RetryErrorNullSequenceNumber) {
-							//Reset the sequence number
-							_resetSequenceNumber();
-							
-							Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Received a null sequence number - Will reset current sequence number and send the request again]");
-						} else if (_currentRetryError == RetryErrors.RetryErrorWrongSequenceNumber) {
-							Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Received a wrong sequence number - Will send the request again]");
-						}
-					}
-					//Increment the retry number
-					retryNumber++;
-					
-					if (retryNumber <= _retryCount) {
-						Logger.getSharedLogger().log(String.format("RetryProxy::_scheduledWriteDataToDestination [Retry #%d]", retryNumber));
-					}
-					
-					//Reconnect to destination
-					//_connectToDestination();
-					_waitForReplyLock.unlock();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			for (ProxySession session : _sessions.values()) {
+				session.close();
 			}
-			
-		} while ((_useNetworkRetry) && (retryNumber <= _retryCount));
+		}
 		
-		if ((_useNetworkRetry) && (retryNumber == _retryCount)) {
-			Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Failed to write the data to destination - No response is received]");
+		if (_destinationGroup != null) {
+			_destinationGroup.close();
 		}
 		
-		Logger.getSharedLogger().log("RetryProxy::_scheduledWriteDataToDestination [Task Ended]");
+		_closeCapture();
+		
+		//The shared resources are released with the last proxy of the runtime
+		_runtime.proxyStopped(this);
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::stopServer [Server Stopped on port %d]", _sourcePort);
+		
+		_stopLatch.countDown();
 	}
 	
-	//Sequence Number Management
+	public boolean isStopping() {
+		return _isStopping.get();
+	}
 	
-	void _initializeSequenceNumber() {
-		Logger.getSharedLogger().log("RetryProxy::_initializeSequenceNumber");
-		
-		_currentSequenceNumber = -1;
+	public boolean getUseNetworkRetry() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getUseNetworkRetry");
+		return _useNetworkRetry;
+	}
+	
+	public boolean getUseDecryption() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getUseDecryption");
+		return _useDecryption;
+	}
+	
+	public int getSessionCount() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "RetryProxy::getSessionCount");
+		return _sessions.size();
 	}
 	
-	void _resetSequenceNumber() {
-		Logger.getSharedLogger().log("RetryProxy::_resetSequenceNumber");
+	public Collection<ProxySession> getSessions() {
+		return _sessions.values();
+	}
+	
+	//Session Management
+	
+	void acceptConnection(ProxyConnection connection) {
+		//The listener is closing
+		if (_isStopping.get()) {
+			connection.close();
+			return;
+		}
+		
+		//A client without a key, from a listener without a key for its other clients, would get the responses undecrypted
+		if ((_useDecryption) && (getDecryptor(connection.getRemoteAddress()) == null)) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::acceptConnection [No Key for %s - Connection Refused]", connection.getRemoteAddress());
+			
+			connection.close();
+			return;
+		}
+		
+		//Each client gets its own session - the sessions already connected are kept running
+		ProxySession session = new ProxySession(this, _runtime.nextSessionId(), connection);
+		_sessions.put(Integer.valueOf(session.getSessionId()), session);
+		g_sessionsAccepted.increment();
+		g_sessionsActive.increment();
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::acceptConnection [Connection Accepted for %s - Session #%d - %d Active Sessions]", session.getSourceIP(), session.getSessionId(), _sessions.size());
 		
-		_currentSequenceNumber = 0;
+		//Connect to destination and start reading from the source
+		session.start();
 	}
 	
-	void _updateSequenceNumber() {
-		Logger.getSharedLogger().log(String.format("RetryProxy::_updateSequenceNumber [Sequence Number = %d]", _currentSequenceNumber + 1));
+	//The connection is not started - keep alive probes detect the destinations lost while their connection is idle
+	ProxyConnection openDestinationConnection(String destinationIP, int destinationPort) throws IOException {
+		if (_executionMode == ExecutionMode.ExecutionModeNIO) {
+			return ChannelConnection.connect(_eventLoopGroup.next(), destinationIP, destinationPort);
+		}
+		
+		//The socket of a channel writes several buffers at once
+		Socket socket = SocketChannel.open(new InetSocketAddress(destinationIP, destinationPort)).socket();
 		
-		_currentSequenceNumber++;
+		socket.setKeepAlive(true);
 		
-		if (_currentSequenceNumber == 256) {
-			_currentSequenceNumber = 1;
+		return new SocketConnection(socket, _threadFactory);
+	}
+	
+	void sessionClosed(ProxySession session) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::sessionClosed [Session #%d - %s]", session.getSessionId(), session.getSourceIP());
+		
+		if (_sessions.remove(Integer.valueOf(session.getSessionId())) != null) {
+			g_sessionsActive.decrement();
 		}
 	}
 	
-	synchronized void _disconnectSource() {
-		Logger.getSharedLogger().log("RetryProxy::_disconnectSource");
+	//Private Functions
+	
+	//The keys of a directory are loaded in parallel - each one is the key of the source address it is named after (10.0.1.5.pem)
+	//and default.pem, default.key or default.der is the key of the sources without a key of their own
+	boolean _addPrivateKeyDirectory(String directoryPath) {
+		Map<String, String> keyNames = _keyRing.addKeyDirectory(directoryPath);
 		
-		try {
-			_sourceSocket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-			
-			Logger.getSharedLogger().log("RetryProxy::_disconnectSource [Failed to close the source socket - Socket may have been already closed]");
+		if (keyNames.isEmpty()) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::addPrivateKeyFile [No key loaded from %s]", directoryPath);
+			return false;
 		}
 		
-		//Stop Source Thread
-		if (_sourceThread != null) {
-			_sourceThread.stopThread();
+		for (Map.Entry<String, String> keyName : keyNames.entrySet()) {
+			if (keyName.getKey().equals(KeyRing.DEFAULT_KEY_NAME)) {
+				_keyRing.setListenerKey(_sourcePort, keyName.getValue());
+			} else {
+				_keyRing.setSourceKey(_sourcePort, keyName.getKey(), keyName.getValue());
+			}
 		}
 		
-		try {
-			_sourceThread.join();
-		} catch (InterruptedException e) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::addPrivateKeyFile [Proxy is now using decryption]");
+		_useDecryption = true;
+		
+		return true;
+	}
+	
+	boolean _runSocketServer() {
+		// Create the sockets to listen for connections with - the sockets of a channel write several buffers at once
+	    try {
+	    	_serverChannels = _openServerChannels();
+	    	
+	    	for (ServerSocketChannel channel : _serverChannels) {
+	    		channel.configureBlocking(true);
+	    	}
+		} catch (IOException e) {
 			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "RetryProxy::runServer [Failed to initialize Server Socket]");
+			
+			_closeCapture();
+			_runtime.proxyStopped(this);
+			return false;
 		}
 		
-		_sourceSocket = null;
+	    //Set the server as started
+	    _isServerStarted = true;
+	    Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer [Server Started on port %d with %d acceptors on %d sockets]", _sourcePort, _acceptorCount, _serverChannels.size());
+	    
+	    _destinationGroup.start();
+	    
+	    //The accept loops run on virtual threads when applicable - the sessions connect their destination on their own thread
+	    List<Thread> acceptThreads = new ArrayList<Thread>();
+	    
+	    for (int i = 0; i < _acceptorCount; i++) {
+	    	final ServerSocket serverSocket = _serverChannels.get(i % _serverChannels.size()).socket();
+	    	
+	    	Runnable acceptLoop = new Runnable() {
+	    		public void run() {
+	    			_acceptConnections(serverSocket);
+	    		}
+	    	};
+	    	
+	    	Thread acceptThread = ((_threadFactory != null) ? _threadFactory.newThread(acceptLoop) : new Thread(acceptLoop, "Acceptor-" + _sourcePort + "-" + i));
+	    	
+	    	acceptThread.start();
+	    	acceptThreads.add(acceptThread);
+	    }
+	    
+	    for (Thread acceptThread : acceptThreads) {
+	    	try {
+				acceptThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+	    }
+	    
+	    _awaitStop();
+	    
+	    return true;
 	}
 	
-	synchronized void _disconnectDestination() {
-		Logger.getSharedLogger().log("RetryProxy::_disconnectDestination");
-		
+	void _acceptConnections(ServerSocket serverSocket) {
+	    do {
+	    	Socket tmpClient = null;
+	    	
+		    //Wait for a client to connect
+		    try {
+				tmpClient = serverSocket.accept();
+			} catch (IOException e) {
+				//The listener was closed by stopServer()
+				if (_isStopping.get()) {
+					return;
+				}
+				
+				e.printStackTrace();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::_acceptConnections [Failed to Accept Connection]");
+				continue;
+			}
+			
+		    acceptConnection(new SocketConnection(tmpClient, _threadFactory));
+	    } while (true);
+	}
+	
+	boolean _runChannelServer() {
+		//Create the event loops and the listening channels - each acceptor is registered on the next loop
 		try {
-			_destinationSocket.close();
+			_eventLoopGroup		= _runtime.getEventLoopGroup();
+			_serverChannels		= _openServerChannels();
+			_channelAcceptors	= new ArrayList<ChannelAcceptor>();
+			
+			for (ServerSocketChannel channel : _serverChannels) {
+				ChannelAcceptor acceptor = new ChannelAcceptor(this, channel, _eventLoopGroup);
+				
+				acceptor.start();
+				_channelAcceptors.add(acceptor);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			
-			Logger.getSharedLogger().log("RetryProxy::_disconnectSource [Failed to close the destination socket - Socket may have been already closed]");
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "RetryProxy::runServer [Failed to initialize Server Channel]");
+			
+			_closeListener();
+			_closeCapture();
+			_runtime.proxyStopped(this);
+			return false;
+		}
+		
+		//Set the server as started
+		_isServerStarted = true;
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RetryProxy::runServer [Server Started on port %d with %d acceptors and %d event loops]", _sourcePort, _channelAcceptors.size(), _eventLoopGroup.getSize());
+		
+		_destinationGroup.start();
+		
+		//The event loops accept and serve the connections - they are shared with the other proxies of the runtime
+		_awaitStop();
+		
+		return true;
+	}
+	
+	//With SO_REUSEPORT each acceptor binds the port with its own socket and the system spreads the connections between them
+	//Otherwise, or with an inherited socket, the acceptors share one socket - an event loop accepts all its connections in NIO mode
+	List<ServerSocketChannel> _openServerChannels() throws IOException {
+		List<ServerSocketChannel>	channels		= new ArrayList<ServerSocketChannel>();
+		int							channelCount	= 1;
+		
+		if (_inheritedChannel != null) {
+			channels.add(_inheritedChannel);
+			return channels;
 		}
 		
-		//Stop Destination Thread
-		if (_destinationThread != null) {
-			_destinationThread.stopThread();
+		if (_acceptorCount > 1) {
+			if (ReusePort.isSupported()) {
+				channelCount = _acceptorCount;
+			} else {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "RetryProxy::runServer [SO_REUSEPORT is not available - The acceptors share one socket]");
+			}
 		}
 		
 		try {
-			_destinationThread.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			for (int i = 0; i < channelCount; i++) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channels.add(channel);
+				
+				if (channelCount > 1) {
+					ReusePort.enable(channel);
+				}
+				channel.bind(new InetSocketAddress(_sourcePort), ACCEPT_BACKLOG);
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException closeException) {
+					closeException.printStackTrace();
+				}
+			}
+			throw e;
 		}
 		
-		_destinationSocket = null;
+		return channels;
 	}
 	
-	
-	//Operation Class
-	
-	class SourceToDestinationWriteOperation implements Runnable {
-
-		byte[] _sourceData = null;
+	//No more connections are accepted - the connections waiting in the backlog of an inherited socket are left for the next proxy
+	//The channels of the acceptors are closed by their event loop - the others at once
+	void _closeListener() {
+		int acceptorCount = 0;
 		
-		public SourceToDestinationWriteOperation (byte[] sourceData) {
-			_sourceData = sourceData;
+		if (_channelAcceptors != null) {
+			for (ChannelAcceptor acceptor : _channelAcceptors) {
+				acceptor.close();
+			}
+			acceptorCount = _channelAcceptors.size();
 		}
 		
-		public void run() {
-			_scheduledWriteDataToDestination(_sourceData);
+		if (_serverChannels != null) {
+			for (int i = acceptorCount; i < _serverChannels.size(); i++) {
+				try {
+					_serverChannels.get(i).close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	void _closeCapture() {
+		if (_trafficCapture != null) {
+			_trafficCapture.close();
+		}
+	}
+	
+	void _awaitStop() {
+		try {
+			_stopLatch.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
-		
 	}
 }
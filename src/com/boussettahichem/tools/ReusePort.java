@@ -0,0 +1,71 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+
+public class ReusePort {
+
+	//Static Variables
+	private static SocketOption<Boolean>	g_reusePortOption		= null;
+	private static boolean					g_isLookupDone			= false;
+
+
+	//Private Constructor
+	private ReusePort() {
+
+	}
+
+
+	//Returns the SO_REUSEPORT option or null when the runtime or the system does not support it (Java 9 and later, Linux and BSD)
+	//The option is looked up by reflection so that the proxy still builds and runs on older runtimes
+	@SuppressWarnings("unchecked")
+	static public synchronized SocketOption<Boolean> getOption() {
+		if (g_isLookupDone == false) {
+			g_isLookupDone = true;
+
+			ServerSocketChannel probe = null;
+
+			try {
+				SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+
+				//The option exists on every system from Java 9 - a channel tells whether the system supports it
+				probe = ServerSocketChannel.open();
+				if (probe.supportedOptions().contains(option)) {
+					g_reusePortOption = option;
+
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "ReusePort::getOption [SO_REUSEPORT is available]");
+				} else {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ReusePort::getOption [SO_REUSEPORT is not supported by the system]");
+				}
+			} catch (NoSuchFieldException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ReusePort::getOption [SO_REUSEPORT is not supported by Java %s]", System.getProperty("java.version"));
+			} catch (Exception e) {
+				e.printStackTrace();
+
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "ReusePort::getOption [Failed to look up SO_REUSEPORT]");
+			} finally {
+				if (probe != null) {
+					try {
+						probe.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		return g_reusePortOption;
+	}
+
+	static public boolean isSupported() {
+		return (getOption() != null);
+	}
+
+	//Lets several sockets bind the same port - the system spreads the incoming connections between the listening ones
+	static public void enable(NetworkChannel channel) throws IOException {
+		channel.setOption(getOption(), Boolean.TRUE);
+	}
+}
@@ -0,0 +1,98 @@
+package com.boussettahichem.tools;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+//Round trip time estimator of a destination and the retry timeouts derived from it, computed like TCP's (RFC 6298)
+//The timeouts are doubled on each retry of a request and jittered so that the requests lost together are not retried together
+//Times in nanoseconds
+public class RoundTripEstimator {
+	
+	//Constants - the gains of RFC 6298
+	static final int		SMOOTHING_SHIFT				= 3;			//alpha = 1/8
+	static final int		VARIATION_SHIFT				= 2;			//beta = 1/4
+	static final int		VARIATION_FACTOR			= 4;			//K
+	static final long		CLOCK_GRANULARITY			= 1000000;		//G - the retry timer has a millisecond resolution
+	static final int		JITTER_SHIFT				= 3;			//The timeouts are spread over +/- 1/16 of their value
+	static final int		MAX_BACKOFF_SHIFT			= 16;
+	
+	//Member Variables
+	long					_minTimeout;
+	long					_maxTimeout;
+	long					_smoothedRoundTripTime;		//SRTT - 0 until the first sample
+	long					_roundTripTimeVariation;	//RTTVAR
+	volatile long			_timeout;					//RTO
+	
+	
+	//Constructor - the initial timeout is used until the first round trip time is measured
+	public RoundTripEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+		_minTimeout				= minTimeout;
+		_maxTimeout				= Math.max(minTimeout, maxTimeout);
+		_smoothedRoundTripTime	= 0;
+		_roundTripTimeVariation	= 0;
+		_timeout				= _clamp(initialTimeout);
+	}
+	
+	
+	//Properties
+	public synchronized long getSmoothedRoundTripTime() {
+		return _smoothedRoundTripTime;
+	}
+	
+	public synchronized long getRoundTripTimeVariation() {
+		return _roundTripTimeVariation;
+	}
+	
+	//The timeout of a request's first attempt, without jitter
+	public long getTimeout() {
+		return _timeout;
+	}
+	
+	
+	//Public Functions
+	
+	//Only the replies to requests sent once are measured - the reply to a retried request may answer any of its attempts (Karn)
+	public synchronized void record(long roundTripTime) {
+		if (roundTripTime <= 0) {
+			return;
+		}
+		
+		if (_smoothedRoundTripTime == 0) {
+			_smoothedRoundTripTime	= roundTripTime;
+			_roundTripTimeVariation	= roundTripTime / 2;
+		} else {
+			_roundTripTimeVariation	+= (Math.abs(_smoothedRoundTripTime - roundTripTime) - _roundTripTimeVariation) >> VARIATION_SHIFT;
+			_smoothedRoundTripTime	+= (roundTripTime - _smoothedRoundTripTime) >> SMOOTHING_SHIFT;
+		}
+		
+		_timeout = _clamp(_smoothedRoundTripTime + Math.max(CLOCK_GRANULARITY, VARIATION_FACTOR * _roundTripTimeVariation));
+	}
+	
+	//The timeout of the given attempt of a request - 0 for the first one
+	public long getTimeout(int retryNumber) {
+		long	timeout		= _timeout;
+		int		shift		= Math.min(retryNumber, MAX_BACKOFF_SHIFT);
+		
+		//Exponential backoff
+		if (timeout > (_maxTimeout >> shift)) {
+			timeout = _maxTimeout;
+		} else {
+			timeout <<= shift;
+		}
+		
+		//Jitter
+		long jitterRange = timeout >> JITTER_SHIFT;
+		
+		if (jitterRange > 0) {
+			timeout += ThreadLocalRandom.current().nextLong(jitterRange) - (jitterRange / 2);
+		}
+		
+		return _clamp(timeout);
+	}
+	
+	
+	//Private Functions
+	
+	long _clamp(long timeout) {
+		return Math.min(_maxTimeout, Math.max(_minTimeout, timeout));
+	}
+}
@@ -0,0 +1,297 @@
+package com.boussettahichem.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+//The routes of a process, each one a listener with its own destinations and settings, read from a properties file
+//The proxies of the routes share one runtime: the event loops, the timers, the key ring and the metrics endpoint
+//
+//	executionMode = nio
+//	logLevel = info
+//	metricsPort = 9100
+//	auditDirectory = /var/log/proxy/audit
+//	auditQueueCapacity = 65536
+//	auditOverflow = block
+//
+//	route.orders.listenPort = 9530
+//	route.orders.destinations = 10.0.0.1,10.0.0.2:9531
+//	route.orders.destinationPort = 9530
+//	route.orders.retry = yes
+//	route.orders.retries = 2
+//	route.orders.timeout = 10
+//	route.orders.minTimeout = 10
+//	route.orders.maxTimeout = 60000
+//	route.orders.window = 8
+//	route.orders.key = orders.pem,10.0.1.5=partner.pem
+//	route.orders.warmConnections = 1
+//	route.orders.flushLatency = 0
+//	route.orders.queueCapacity = 256
+//	route.orders.overflow = block
+//	route.orders.balancing = outstanding
+//	route.orders.drainTimeout = 30
+//	route.orders.acceptors = 1
+//	route.orders.capture = orders.capture
+//
+//The execution mode, the log level, the metrics port and the audit settings are those of the whole process
+//Only listenPort and destinations are required - the settings take the values and the units of the command line's arguments
+//One route may listen on the socket inherited from the process that started the proxy, with listenPort = inherited
+public class RouteConfiguration {
+	
+	//Constants
+	static final String			ROUTE_PREFIX			= "route.";
+	static final String			INHERITED_PORT			= "inherited";
+	
+	//Member Variables
+	ProxyRuntime				_runtime;
+	List<RetryProxy>			_proxies;
+	
+	
+	//Constructor
+	public RouteConfiguration(ProxyRuntime runtime) {
+		_runtime		= runtime;
+		_proxies		= new ArrayList<RetryProxy>();
+	}
+	
+	
+	//Properties
+	
+	//One proxy per route, not started
+	public List<RetryProxy> getProxies() {
+		return _proxies;
+	}
+	
+	
+	//Public Functions
+	
+	//Reads the file and configures a proxy for each route - returns false, with the error logged, if a setting is invalid
+	public boolean load(String path) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RouteConfiguration::load [%s]", path);
+		
+		Properties properties = new Properties();
+		
+		try (InputStream input = new FileInputStream(path)) {
+			properties.load(input);
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "RouteConfiguration::load [Failed to read %s - %s]", path, e.toString());
+			return false;
+		}
+		
+		try {
+			return _load(properties);
+		} catch (IllegalArgumentException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "RouteConfiguration::load [%s]", e.getMessage());
+			return false;
+		}
+	}
+	
+	//Runs the proxies of the routes, each one on its own thread, until they stop - returns false if a proxy failed to start
+	public boolean run() {
+		final boolean[]		results		= new boolean[_proxies.size()];
+		List<Thread>		threads		= new ArrayList<Thread>();
+		boolean				result		= true;
+		
+		//A route failing to bind stops while the others start - the runtime keeps the shared resources until they all stop
+		for (RetryProxy proxy : _proxies) {
+			_runtime.proxyStarting(proxy);
+		}
+		
+		for (int i = 0; i < _proxies.size(); i++) {
+			final int			index	= i;
+			final RetryProxy	proxy	= _proxies.get(i);
+			
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					results[index] = proxy.runServer();
+				}
+			}, "Route-" + proxy.getName());
+			
+			thread.start();
+			threads.add(thread);
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		for (boolean routeResult : results) {
+			result &= routeResult;
+		}
+		
+		return result;
+	}
+	
+	
+	//Private Functions
+	
+	boolean _load(Properties properties) {
+		RetryProxy.ExecutionMode	executionMode	= RetryProxy.ExecutionMode.ExecutionModeThreads;
+		int							metricsPort		= _getInt(properties, "metricsPort", 0);
+		Set<String>					routeNames		= new TreeSet<String>();
+		Set<Integer>				listenPorts		= new HashSet<Integer>();
+		
+		//Process settings
+		String value = properties.getProperty("logLevel");
+		if (value != null) {
+			Logger.LogLevel logLevel = Logger.parseLevel(value.trim());
+			
+			if (logLevel == null) {
+				throw new IllegalArgumentException("Unknown log level " + value);
+			}
+			Logger.getSharedLogger().setLevel(logLevel);
+		}
+		
+		value = properties.getProperty("executionMode");
+		if (value != null) {
+			executionMode = RetryProxy.parseExecutionMode(value.trim());
+			
+			if (executionMode == null) {
+				throw new IllegalArgumentException("Unknown execution mode " + value);
+			}
+		}
+		
+		_runtime.setAuditQueueCapacity(_getInt(properties, "auditQueueCapacity", 0));
+		
+		value = properties.getProperty("auditOverflow");
+		if (value != null) {
+			AuditLog.OverflowPolicy auditOverflowPolicy = AuditLog.parseOverflowPolicy(value.trim());
+			
+			if (auditOverflowPolicy == null) {
+				throw new IllegalArgumentException("Unknown audit overflow policy " + value);
+			}
+			_runtime.setAuditOverflowPolicy(auditOverflowPolicy);
+		}
+		
+		value = properties.getProperty("auditDirectory");
+		if ((value != null) && (_runtime.setAuditDirectory(value.trim()) == false)) {
+			throw new IllegalArgumentException("Failed to open the audit directory " + value);
+		}
+		
+		//The routes - route.<name>.<setting>
+		for (String key : properties.stringPropertyNames()) {
+			int separatorIndex = key.indexOf('.', ROUTE_PREFIX.length());
+			
+			if ((key.startsWith(ROUTE_PREFIX)) && (separatorIndex > ROUTE_PREFIX.length())) {
+				routeNames.add(key.substring(ROUTE_PREFIX.length(), separatorIndex));
+			}
+		}
+		
+		if (routeNames.isEmpty()) {
+			throw new IllegalArgumentException("No route is configured");
+		}
+		
+		for (String routeName : routeNames) {
+			String		prefix			= ROUTE_PREFIX + routeName + ".";
+			String		listenValue		= properties.getProperty(prefix + "listenPort", "").trim();
+			boolean		isInherited		= listenValue.equalsIgnoreCase(INHERITED_PORT);
+			int			listenPort		= 0;
+			String		destinations	= properties.getProperty(prefix + "destinations");
+			RetryProxy	proxy			= new RetryProxy(_runtime);
+			
+			if (isInherited) {
+				if (proxy.setUseInheritedChannel() == false) {
+					throw new IllegalArgumentException("Route " + routeName + " listens on the inherited socket, but no listening socket was inherited");
+				}
+				listenPort = proxy.getSourcePort();
+			} else {
+				listenPort = _getInt(properties, prefix + "listenPort", 0);
+			}
+			
+			if ((listenPort <= 0) || (destinations == null)) {
+				throw new IllegalArgumentException("Route " + routeName + " needs a listenPort and destinations");
+			}
+			
+			if (listenPorts.add(Integer.valueOf(listenPort)) == false) {
+				throw new IllegalArgumentException("Route " + routeName + " listens on port " + listenPort + " already used by another route");
+			}
+			
+			//The source port comes first - the key rules are those of the listener
+			proxy.setName(routeName);
+			proxy.setSourcePort(listenPort);
+			proxy.setExecutionMode(executionMode);
+			proxy.setMetricsPort(metricsPort);
+			proxy.setDestinations(destinations, _getInt(properties, prefix + "destinationPort", proxy.getDestinationPort()));
+			proxy.setUseNetworkRetry(_getBoolean(properties, prefix + "retry", false));
+			proxy.setRetryCount(_getInt(properties, prefix + "retries", 0));
+			proxy.setWaitForReplyTimeout(_getInt(properties, prefix + "timeout", 0));
+			proxy.setMinRetryTimeout(_getInt(properties, prefix + "minTimeout", 0));
+			proxy.setMaxRetryTimeout(_getInt(properties, prefix + "maxTimeout", 0));
+			proxy.setRetryWindowSize(_getInt(properties, prefix + "window", 0));
+			proxy.setWarmDestinationConnectionCount(_getInt(properties, prefix + "warmConnections", -1));
+			proxy.setSourceFlushLatency(_getInt(properties, prefix + "flushLatency", 0));
+			proxy.setSubmissionQueueCapacity(_getInt(properties, prefix + "queueCapacity", 0));
+			proxy.setDrainTimeout(_getInt(properties, prefix + "drainTimeout", -1));
+			proxy.setAcceptorCount(_getInt(properties, prefix + "acceptors", 0));
+			
+			value = properties.getProperty(prefix + "overflow");
+			if (value != null) {
+				RetryProxy.OverflowPolicy overflowPolicy = RetryProxy.parseOverflowPolicy(value.trim());
+				
+				if (overflowPolicy == null) {
+					throw new IllegalArgumentException("Unknown overflow policy " + value + " for route " + routeName);
+				}
+				proxy.setOverflowPolicy(overflowPolicy);
+			}
+			
+			value = properties.getProperty(prefix + "balancing");
+			if (value != null) {
+				RetryProxy.BalancingPolicy balancingPolicy = RetryProxy.parseBalancingPolicy(value.trim());
+				
+				if (balancingPolicy == null) {
+					throw new IllegalArgumentException("Unknown balancing policy " + value + " for route " + routeName);
+				}
+				proxy.setBalancingPolicy(balancingPolicy);
+			}
+			
+			value = properties.getProperty(prefix + "capture");
+			if ((value != null) && (proxy.setCaptureFile(value.trim()) == false)) {
+				throw new IllegalArgumentException("Failed to create the capture file of route " + routeName);
+			}
+			
+			value = properties.getProperty(prefix + "key");
+			if ((value != null) && (proxy.addPrivateKeyFiles(value) == false)) {
+				throw new IllegalArgumentException("Failed to load the keys of route " + routeName);
+			}
+			
+			_proxies.add(proxy);
+		}
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "RouteConfiguration::load [%d Routes]", _proxies.size());
+		
+		return true;
+	}
+	
+	int _getInt(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number " + value + " for " + key);
+		}
+	}
+	
+	boolean _getBoolean(Properties properties, String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		return (value.trim().equalsIgnoreCase("yes") || value.trim().equalsIgnoreCase("true"));
+	}
+}
@@ -0,0 +1,166 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SocketConnection extends ProxyConnection {
+	
+	//Member Variables
+	Socket				_socket;
+	Thread				_readerThread;
+	ThreadFactory		_threadFactory;
+	volatile boolean	_isReadingPaused;
+	Lock				_readingLock;			//Not a monitor - a paused virtual thread reader does not pin its carrier
+	Condition			_readingResumed;
+	
+	
+	//Constructor
+	public SocketConnection(Socket socket, ThreadFactory threadFactory) {
+		_socket			= socket;
+		_readerThread	= null;
+		_threadFactory	= threadFactory;
+		_isReadingPaused	= false;
+		_readingLock		= new ReentrantLock();
+		_readingResumed		= _readingLock.newCondition();
+	}
+	
+	
+	//Public Functions
+	public void start(ProxySession session, boolean isSource) {
+		_session		= session;
+		_isSource		= isSource;
+		
+		//Run a blocking reader on the socket
+		Thread reader = null;
+		
+		if (_isSource) {
+			reader = new SourceThread(this, session, _socket);
+		} else {
+			reader = new DestinationThread(this, _socket);
+		}
+		
+		//With a thread factory (virtual threads), the reader is only used as the Runnable of the factory's thread
+		if (_threadFactory != null) {
+			_readerThread = _threadFactory.newThread(reader);
+		} else {
+			_readerThread = reader;
+		}
+		_readerThread.start();
+	}
+	
+	public void write(PooledBuffer[] buffers, int offset, int length) throws IOException {
+		SocketChannel	channel		= _socket.getChannel();
+		ByteBuffer[]	views		= new ByteBuffer[length];
+		long			byteCount	= 0;
+		
+		//The writes move the positions of views of the buffers
+		for (int i = 0; i < length; i++) {
+			views[i]	= buffers[offset + i].getBuffer().duplicate();
+			byteCount	+= views[i].remaining();
+		}
+		
+		//The sockets of the proxy are created from channels - the channel is blocking and writes all the buffers
+		if (channel != null) {
+			while (byteCount > 0) {
+				byteCount -= channel.write(views, 0, length);
+			}
+			return;
+		}
+		
+		//Plain socket - the buffers are copied into one write
+		byte[]	data		= new byte[(int)byteCount];
+		int		position	= 0;
+		
+		for (int i = 0; i < length; i++) {
+			int remaining = views[i].remaining();
+			
+			views[i].get(data, position, remaining);
+			position += remaining;
+		}
+		_socket.getOutputStream().write(data);
+	}
+	
+	public boolean isConnected() {
+		return ((_socket.isConnected()) && (_socket.isClosed() == false));
+	}
+	
+	public void pauseReading() {
+		_isReadingPaused = true;
+	}
+	
+	public void resumeReading() {
+		_readingLock.lock();
+		try {
+			_isReadingPaused = false;
+			_readingResumed.signalAll();
+		} finally {
+			_readingLock.unlock();
+		}
+	}
+	
+	public void shutdownOutput() {
+		try {
+			_socket.shutdownOutput();
+		} catch (IOException e) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SocketConnection::shutdownOutput [Failed to shut down the output - %s]", e.toString());
+		}
+	}
+	
+	public void close() {
+		try {
+			_socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "SocketConnection::close [Failed to close the socket - Socket may have been already closed]");
+		}
+		
+		//A paused reader wakes up to see the socket closed
+		_readingLock.lock();
+		try {
+			_readingResumed.signalAll();
+		} finally {
+			_readingLock.unlock();
+		}
+		
+		//The reader stops once its socket is closed - it may be the caller when it detected the disconnection itself
+		if ((_readerThread != null) && (_readerThread != Thread.currentThread())) {
+			try {
+				_readerThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	public String getRemoteAddress() {
+		return _socket.getInetAddress().getHostAddress();
+	}
+	
+	
+	//Reader Functions
+	
+	//Called by the reader before each read - blocks while reading is paused and the socket is open
+	void _awaitReading() {
+		if (_isReadingPaused == false) {
+			return;
+		}
+		
+		_readingLock.lock();
+		try {
+			while ((_isReadingPaused) && (_socket.isClosed() == false)) {
+				_readingResumed.await();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			_readingLock.unlock();
+		}
+	}
+}
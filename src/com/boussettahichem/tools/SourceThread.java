@@ -2,104 +2,95 @@ package com.boussettahichem.tools;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
-public class SourceThread extends Thread {
+public class SourceThread extends Thread implements FrameDecoder.FrameHandler {
 	
 	
-	//Constants
-	final int IN_BUFFER_LENGTH				= 4096;
-	final int DATA_HEADER_LENGTH			= 2;
-	
 	//Member Variables
+	SocketConnection		_connection;		//Pauses the reads while the session cannot take more requests
 	Socket					_srcSocket;
-	RetryProxy				_retryProxy;
-	ByteArrayOutputStream	_sourceData;
+	ProxySession			_session;
+	FrameDecoder			_sourceData;
 	boolean					_shouldKeepRunning;
 	
 	//Constructor
-	public SourceThread(RetryProxy proxy, Socket srcSocket) {
-		Logger.getSharedLogger().log("SourceThread::SourceThread");
+	public SourceThread(SocketConnection connection, ProxySession session, Socket srcSocket) {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::SourceThread");
 		
+		_connection			= connection;
 		_srcSocket			= srcSocket;
-		_retryProxy			= proxy;
-		_sourceData			= new ByteArrayOutputStream();
+		_session			= session;
+		_sourceData			= new FrameDecoder();
 		_shouldKeepRunning	= true;
 	}
 	
 	//
 	public void run() {
-		Logger.getSharedLogger().log("SourceThread::run");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::run");
 		
 		//Read incoming data and process it
-		byte[] inBuffer		= new byte[IN_BUFFER_LENGTH];
 		int bytesRead 		= 0;
 		_shouldKeepRunning	= true;
 		
 		while(_shouldKeepRunning) {
+			//Wait until the session takes requests again
+			_connection._awaitReading();
+			
 			try {
-				bytesRead = _srcSocket.getInputStream().read(inBuffer);
+				//Read directly into the frame decoder's buffer
+				bytesRead = _sourceData.readFrom(_srcSocket.getInputStream());
 			} catch (IOException e) {
+				//The socket was closed locally
+				if (_srcSocket.isClosed()) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::run [Socket Closed - Stopping the thread]");
+					break;
+				}
+				
 				e.printStackTrace();
-				Logger.getSharedLogger().log("SourceThread::run [Error Reading Data from Source]");
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "SourceThread::run [Error Reading Data from Source]");
 				
-				//Check if the source socket is closed
-				if (_srcSocket.isConnected() == false) {
-					_shouldKeepRunning = false;
-					
-					Logger.getSharedLogger().log("SourceThread::run [Socket Closed - Stopping the thread]");
-				}
+				//The connection is lost, reset by the client for instance - reported like an end of stream
+				bytesRead = -1;
 			}
 			
-			//Bufferize the received data
-			if (bytesRead > 0) {
-				_sourceData.write(inBuffer, 0, bytesRead);
+			//The peer closed the connection
+			if (bytesRead < 0) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::run [End of Stream - Stopping the thread]");
 				
+				_shouldKeepRunning = false;
+				_session.sourceDisconnected();
+				break;
+			}
+			
+			if (bytesRead > 0) {
 				//Log the data read
-				Logger.getSharedLogger().log(String.format("SourceThread::run [Src -> Proxy] %s", HexDump.dump(Arrays.copyOfRange(inBuffer, 0, bytesRead))));
+				if (Logger.getSharedLogger().isLoggable(Logger.LogLevel.LogLevelTrace)) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "SourceThread::run [Src -> Proxy] %s", HexDump.copyOf(_sourceData.getLastReadData()));
+				}
 				
 				//Process the received data - Extract the request and send them to destination
-				processSourceData();
-			}
-			
-			try {
-				sleep(10);	//Sleep 10 milliseconds
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				_session.sourceDataReceived(bytesRead, processSourceData());
 			}
 		}
-		Logger.getSharedLogger().log("SourceThread::run [SourceThread Ended]");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::run [SourceThread Ended]");
 	}
 	
-	void processSourceData() {
-		//Logger.getSharedLogger().log("SourceThread::processSourceData");
+	//Returns the number of frames decoded
+	int processSourceData() {
+		//Logger.getSharedLogger().log(Logger.LogLevel.LogLevelTrace, "SourceThread::processSourceData");
 		
-		int 		expectedDataLength 	= 0;
-		int 		totalDataLength 	= 0;
-		byte[]		bytes				= _sourceData.toByteArray();
-		
-		//Get the source's requests one by one
-		while (bytes.length > DATA_HEADER_LENGTH) {
-			expectedDataLength = ((bytes[0] + 256) % 256) * 256 + (bytes[1] + 256) % 256;
-			totalDataLength = DATA_HEADER_LENGTH + expectedDataLength;
-			
-			if (bytes.length >= totalDataLength) {
-				//Send the request
-				byte[] tmp = Arrays.copyOfRange(bytes, DATA_HEADER_LENGTH, totalDataLength);
-				_retryProxy.writeDataToDestination(tmp);
-				
-				//Remove the request data from the buffer
-				_sourceData.reset();
-				_sourceData.write(bytes, totalDataLength, bytes.length - totalDataLength);
-				bytes = _sourceData.toByteArray();
-			} else {
-				break;
-			}
-		}
+		//Get the source's requests one by one - each one is handed to handleFrame
+		return _sourceData.decode(this);
+	}
+	
+	public void handleFrame(ByteBuffer frame) {
+		//Send the request
+		_session.writeDataToDestination(frame);
 	}
 	
 	public void stopThread() {
-		Logger.getSharedLogger().log("SourceThread::stopThread");
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelDebug, "SourceThread::stopThread");
 		
 		_shouldKeepRunning = false;
 	}
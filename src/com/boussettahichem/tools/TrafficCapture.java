@@ -0,0 +1,162 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Records the frames of the sessions of a proxy to a binary file, written through memory mapped regions of the file
+//
+//	Header:		magic "RPXC" (4) | version (4) | start time in ms since the epoch (8)
+//	Record:		time in ns since the start (8) | type (1) | session id (4) | frame length (2) | frame
+//
+//The requests are the frames read from the sources, the responses the frames read from the destinations - with their sequence number when the retry logic is used
+//The numbers are big endian. The file is truncated to the records written when the capture is closed - TrafficReplay plays it back against a proxy
+public class TrafficCapture {
+	
+	//Constants
+	static final int		MAGIC					= 0x52505843;		//RPXC
+	static final int		VERSION					= 1;
+	static final int		HEADER_LENGTH			= 16;
+	static final int		RECORD_HEADER_LENGTH	= 15;
+	static final int		REGION_SIZE				= 64 * 1024 * 1024;	//Bytes mapped at once - the file grows by a region at a time
+	static final byte		RECORD_REQUEST			= 1;
+	static final byte		RECORD_RESPONSE			= 2;
+	static final byte		RECORD_SESSION_CLOSED	= 3;				//No frame
+	
+	//Member Variables
+	String					_path;
+	FileChannel				_channel;
+	MappedByteBuffer		_region;
+	long					_regionPosition;	//Position of the region in the file
+	long					_startTime;			//System.nanoTime() when the capture started
+	ReentrantLock			_lock;				//The records of all the sessions are appended in the order of their time
+	boolean					_isClosed;
+	
+	
+	//Constructor
+	public TrafficCapture(String path) throws IOException {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "TrafficCapture::TrafficCapture [%s]", path);
+		
+		_path			= path;
+		_channel		= FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		_regionPosition	= 0;
+		_startTime		= System.nanoTime();
+		_lock			= new ReentrantLock();
+		_isClosed		= false;
+		
+		try {
+			_region = _channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+		} catch (IOException e) {
+			_channel.close();
+			throw e;
+		}
+		
+		_region.putInt(MAGIC);
+		_region.putInt(VERSION);
+		_region.putLong(System.currentTimeMillis());
+	}
+	
+	
+	//Properties
+	public String getPath() {
+		return _path;
+	}
+	
+	
+	//Public Functions
+	
+	//The frames are recorded between their position and their limit - the positions are not moved
+	public void recordRequest(int sessionId, ByteBuffer frame) {
+		_record(RECORD_REQUEST, sessionId, frame);
+	}
+	
+	public void recordResponse(int sessionId, ByteBuffer frame) {
+		_record(RECORD_RESPONSE, sessionId, frame);
+	}
+	
+	public void recordSessionClosed(int sessionId) {
+		_record(RECORD_SESSION_CLOSED, sessionId, null);
+	}
+	
+	//Writes the records to the file and cuts the part of the last region not used
+	public void close() {
+		_lock.lock();
+		try {
+			if (_isClosed) {
+				return;
+			}
+			_isClosed = true;
+			
+			long length = _regionPosition + _region.position();
+			
+			_region.force();
+			_region = null;
+			
+			_channel.truncate(length);
+			_channel.close();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "TrafficCapture::close [%s - %d bytes]", _path, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficCapture::close [Failed to close %s]", _path);
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	
+	//Private Functions
+	
+	void _record(byte type, int sessionId, ByteBuffer frame) {
+		int length = ((frame != null) ? frame.remaining() : 0);
+		
+		_lock.lock();
+		try {
+			if (_isClosed) {
+				return;
+			}
+			
+			if (_region.remaining() < RECORD_HEADER_LENGTH + length) {
+				_mapNextRegion();
+			}
+			
+			_region.putLong(System.nanoTime() - _startTime);
+			_region.put(type);
+			_region.putInt(sessionId);
+			_region.putShort((short)length);
+			
+			if (frame != null) {
+				_region.put(frame.duplicate());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			//The file cannot grow anymore - the records written are kept
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "TrafficCapture::_record [Failed to extend %s - Capture Stopped]", _path);
+			
+			_isClosed = true;
+			
+			try {
+				_channel.truncate(_regionPosition + _region.position());
+				_channel.close();
+			} catch (IOException closeException) {
+				closeException.printStackTrace();
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	//The next region starts at the end of the records - the pages of the current one are written back by the system
+	void _mapNextRegion() throws IOException {
+		long position = _regionPosition + _region.position();
+		
+		_region			= _channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+		_regionPosition	= position;
+	}
+}
@@ -0,0 +1,379 @@
+package com.boussettahichem.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//Plays a capture of TrafficCapture back against a proxy - each captured session gets its own connection, opened with its first request
+//The requests are sent at their captured time divided by the speed, or one after the other at speed 0
+//The responses are read by one thread per connection, which measures their latency - the captured responses are not compared
+public class TrafficReplay {
+	
+	//Constants
+	static final long		RESPONSE_TIMEOUT		= 10;		//Seconds to wait for the last responses
+	static final int		CONNECT_TIMEOUT			= 5000;		//Milliseconds
+	static final int		OUTPUT_BUFFER_SIZE		= 64 * 1024;
+	
+	//Member Variables
+	String					_path;
+	String					_host;
+	int						_port;
+	double					_speed;				//1 plays the capture at its original speed, 2 twice faster, 0 as fast as possible
+	Map<Integer, ReplaySession>	_sessions;		//By captured session id - only used by the replay thread
+	ReplaySession			_unflushedSession;	//The session written last, flushed before writing to another one or waiting
+	AtomicLong				_requestsSent;
+	AtomicLong				_responsesReceived;
+	int						_failedSessionCount;
+	Histogram				_latency;			//Nanoseconds between a request and its response
+	
+	
+	//Constructor
+	public TrafficReplay(String path, String host, int port, double speed) {
+		_path				= path;
+		_host				= host;
+		_port				= port;
+		_speed				= Math.max(0, speed);
+		_sessions			= new HashMap<Integer, ReplaySession>();
+		_unflushedSession	= null;
+		_requestsSent		= new AtomicLong(0);
+		_responsesReceived	= new AtomicLong(0);
+		_failedSessionCount	= 0;
+		_latency			= new Histogram("replay.latency");
+	}
+	
+	
+	//Properties
+	public Histogram getLatency() {
+		return _latency;
+	}
+	
+	public long getRequestsSent() {
+		return _requestsSent.get();
+	}
+	
+	public long getResponsesReceived() {
+		return _responsesReceived.get();
+	}
+	
+	
+	//Public Functions
+	
+	//Returns false if the capture cannot be read, or if requests were not answered
+	public boolean run() {
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "TrafficReplay::run [%s to %s:%d - Speed %s]", _path, _host, _port, ((_speed > 0) ? String.valueOf(_speed) : "max"));
+		
+		long	startTime		= 0;
+		long	firstTime		= -1;	//The replay starts with the first record - the time the proxy waited for its first client is skipped
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(_path), StandardOpenOption.READ)) {
+			long				size			= channel.size();
+			long				position		= TrafficCapture.HEADER_LENGTH;
+			long				regionPosition	= 0;
+			MappedByteBuffer	region			= channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, TrafficCapture.REGION_SIZE));
+			byte[]				frame			= new byte[2 + 0xFFFF];
+			
+			if ((size < TrafficCapture.HEADER_LENGTH) || (region.getInt() != TrafficCapture.MAGIC) || (region.getInt() != TrafficCapture.VERSION)) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "TrafficReplay::run [%s is not a capture]", _path);
+				return false;
+			}
+			
+			startTime = System.nanoTime();
+			
+			while (position + TrafficCapture.RECORD_HEADER_LENGTH <= size) {
+				//The regions are mapped again from the next record when it does not fit
+				if (position + TrafficCapture.RECORD_HEADER_LENGTH > regionPosition + region.limit()) {
+					region			= channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, TrafficCapture.REGION_SIZE));
+					regionPosition	= position;
+				}
+				
+				region.position((int)(position - regionPosition));
+				
+				long	time		= region.getLong();
+				byte	type		= region.get();
+				int		sessionId	= region.getInt();
+				int		length		= region.getShort() & 0xFFFF;
+				
+				if (position + TrafficCapture.RECORD_HEADER_LENGTH + length > size) {
+					Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficReplay::run [Truncated record at %d]", position);
+					break;
+				}
+				
+				if (position + TrafficCapture.RECORD_HEADER_LENGTH + length > regionPosition + region.limit()) {
+					region			= channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, TrafficCapture.REGION_SIZE));
+					regionPosition	= position;
+					region.position(TrafficCapture.RECORD_HEADER_LENGTH);
+				}
+				
+				position += TrafficCapture.RECORD_HEADER_LENGTH + length;
+				
+				if (type == TrafficCapture.RECORD_RESPONSE) {
+					continue;
+				}
+				
+				if (firstTime < 0) {
+					firstTime = time;
+				}
+				_waitUntil(startTime, time - firstTime);
+				
+				if (type == TrafficCapture.RECORD_REQUEST) {
+					//The frame is sent with its length
+					frame[0] = (byte)(length >> 8);
+					frame[1] = (byte)length;
+					region.get(frame, 2, length);
+					
+					_sendRequest(sessionId, frame, 2 + length);
+				} else if (type == TrafficCapture.RECORD_SESSION_CLOSED) {
+					ReplaySession session = _sessions.get(Integer.valueOf(sessionId));
+					
+					if (session != null) {
+						_flush();
+						session.finish();
+					}
+				}
+			}
+			
+			_flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelError, "TrafficReplay::run [Failed to read %s]", _path);
+			_closeSessions();
+			return false;
+		}
+		
+		long sendTime = System.nanoTime() - startTime;
+		
+		boolean result = _awaitResponses();
+		_closeSessions();
+		
+		double seconds = Math.max(sendTime, 1) / 1e9;
+		
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "TrafficReplay::run [%d Sessions (%d failed) - %d Requests in %.3f s - %.0f Requests/s - %d Responses]", _sessions.size(), _failedSessionCount, _requestsSent.get(), seconds, _requestsSent.get() / seconds, _responsesReceived.get());
+		Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "TrafficReplay::run [Latency us - Mean %.1f - p50 %d - p99 %d - p99.9 %d - Max %d]", _latency.getMean() / 1000, _latency.getValueAtPercentile(50) / 1000, _latency.getValueAtPercentile(99) / 1000, _latency.getValueAtPercentile(99.9) / 1000, _latency.getMax() / 1000);
+		
+		return result;
+	}
+	
+	
+	//Private Functions
+	
+	//The writes of a session are flushed before sleeping - at speed 0 the requests are sent at once
+	void _waitUntil(long startTime, long captureTime) {
+		if (_speed <= 0) {
+			return;
+		}
+		
+		long	targetTime	= startTime + (long)(captureTime / _speed);
+		long	delay		= targetTime - System.nanoTime();
+		
+		if (delay <= 0) {
+			return;
+		}
+		
+		_flush();
+		
+		while ((delay = targetTime - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(delay);
+		}
+	}
+	
+	void _sendRequest(int sessionId, byte[] frame, int length) {
+		Integer			key		= Integer.valueOf(sessionId);
+		ReplaySession	session	= _sessions.get(key);
+		
+		//A session starts with its first request
+		if (session == null) {
+			session = new ReplaySession(sessionId);
+			_sessions.put(key, session);
+			
+			if (session.connect() == false) {
+				_failedSessionCount++;
+			}
+		}
+		
+		if (session.isConnected() == false) {
+			return;
+		}
+		
+		//The requests of a session in a row are flushed together
+		if ((_unflushedSession != null) && (_unflushedSession != session)) {
+			_flush();
+		}
+		
+		if (session.write(frame, length)) {
+			_unflushedSession = session;
+			_requestsSent.incrementAndGet();
+		}
+	}
+	
+	void _flush() {
+		if (_unflushedSession != null) {
+			_unflushedSession.flush();
+			_unflushedSession = null;
+		}
+	}
+	
+	boolean _awaitResponses() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT);
+		
+		for (ReplaySession session : _sessions.values()) {
+			while ((session.getOutstandingCount() > 0) && (session.isConnected()) && (System.nanoTime() - deadline < 0)) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+		
+		long missingCount = _requestsSent.get() - _responsesReceived.get();
+		
+		if (missingCount > 0) {
+			Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficReplay::_awaitResponses [%d Requests not answered]", missingCount);
+		}
+		
+		return ((missingCount == 0) && (_failedSessionCount == 0));
+	}
+	
+	void _closeSessions() {
+		for (ReplaySession session : _sessions.values()) {
+			session.close();
+		}
+	}
+	
+	
+	//Session Class
+	
+	//A connection to the proxy - the send times of the requests waiting for their response are queued in order
+	class ReplaySession implements Runnable {
+		
+		int									_sessionId;
+		Socket								_socket;
+		OutputStream						_output;
+		ConcurrentLinkedQueue<Long>			_sendTimes;
+		volatile boolean					_isConnected;
+		boolean								_isFinished;	//The captured session closed - the connection is closed once its responses are read
+		
+		public ReplaySession(int sessionId) {
+			_sessionId		= sessionId;
+			_socket			= null;
+			_output			= null;
+			_sendTimes		= new ConcurrentLinkedQueue<Long>();
+			_isConnected	= false;
+			_isFinished		= false;
+		}
+		
+		public boolean isConnected() {
+			return _isConnected;
+		}
+		
+		public int getOutstandingCount() {
+			return _sendTimes.size();
+		}
+		
+		public boolean connect() {
+			try {
+				_socket = new Socket();
+				_socket.setTcpNoDelay(true);
+				_socket.connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT);
+				
+				_output			= new BufferedOutputStream(_socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+				_isConnected	= true;
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficReplay::connect [Session #%d - Failed to connect to %s:%d - %s]", _sessionId, _host, _port, e.toString());
+				return false;
+			}
+			
+			Thread reader = new Thread(this, "Replay-" + _sessionId);
+			reader.setDaemon(true);
+			reader.start();
+			
+			return true;
+		}
+		
+		public boolean write(byte[] frame, int length) {
+			//The time is queued first - the response may be read before the write returns
+			_sendTimes.add(Long.valueOf(System.nanoTime()));
+			
+			try {
+				_output.write(frame, 0, length);
+				return true;
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficReplay::write [Session #%d - %s]", _sessionId, e.toString());
+				
+				_sendTimes.clear();
+				close();
+				return false;
+			}
+		}
+		
+		public void flush() {
+			try {
+				_output.flush();
+			} catch (IOException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "TrafficReplay::flush [Session #%d - %s]", _sessionId, e.toString());
+				
+				close();
+			}
+		}
+		
+		public synchronized void finish() {
+			_isFinished = true;
+			
+			if (_sendTimes.isEmpty()) {
+				close();
+			}
+		}
+		
+		public synchronized void close() {
+			_isConnected = false;
+			
+			if (_socket != null) {
+				try {
+					_socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		//Reads the responses - they come back in the order of the requests
+		public void run() {
+			try {
+				DataInputStream input = new DataInputStream(_socket.getInputStream());
+				byte[]			frame = new byte[0xFFFF];
+				
+				while (true) {
+					int length = input.readUnsignedShort();
+					input.readFully(frame, 0, length);
+					
+					Long sendTime = _sendTimes.poll();
+					
+					if (sendTime != null) {
+						_latency.record(System.nanoTime() - sendTime.longValue());
+					}
+					_responsesReceived.incrementAndGet();
+					
+					synchronized (this) {
+						if ((_isFinished) && (_sendTimes.isEmpty())) {
+							close();
+							return;
+						}
+					}
+				}
+			} catch (IOException e) {
+				//The connection was closed
+				_isConnected = false;
+			}
+		}
+	}
+}
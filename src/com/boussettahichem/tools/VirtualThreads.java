@@ -0,0 +1,54 @@
+package com.boussettahichem.tools;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+public class VirtualThreads {
+	
+	//Static Variables
+	private static ThreadFactory	g_sharedThreadFactory		= null;
+	private static boolean			g_isLookupDone				= false;
+	
+	
+	//Private Constructor
+	private VirtualThreads() {
+		
+	}
+	
+	
+	//Returns a factory of virtual threads or null when the runtime does not support them (Java 21 and later)
+	//The builder is looked up by reflection so that the proxy still builds and runs on older runtimes
+	static public synchronized ThreadFactory getThreadFactory() {
+		if (g_isLookupDone == false) {
+			g_isLookupDone = true;
+			
+			try {
+				//Thread.ofVirtual().name("VirtualThread-", 0).factory() - The methods are taken from the public Thread.Builder interface
+				Class<?>	builderClass	= Class.forName("java.lang.Thread$Builder");
+				Method		ofVirtual		= Thread.class.getMethod("ofVirtual");
+				Method		name			= builderClass.getMethod("name", String.class, long.class);
+				Method		factory			= builderClass.getMethod("factory");
+				Object		builder			= ofVirtual.invoke(null);
+				
+				builder					= name.invoke(builder, "VirtualThread-", Long.valueOf(0));
+				g_sharedThreadFactory	= (ThreadFactory)factory.invoke(builder);
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelInfo, "VirtualThreads::getThreadFactory [Virtual threads are available]");
+			} catch (ClassNotFoundException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "VirtualThreads::getThreadFactory [Virtual threads are not supported by Java %s]", System.getProperty("java.version"));
+			} catch (NoSuchMethodException e) {
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "VirtualThreads::getThreadFactory [Virtual threads are not supported by Java %s]", System.getProperty("java.version"));
+			} catch (Exception e) {
+				e.printStackTrace();
+				
+				Logger.getSharedLogger().log(Logger.LogLevel.LogLevelWarning, "VirtualThreads::getThreadFactory [Failed to create the virtual thread factory]");
+			}
+		}
+		
+		return g_sharedThreadFactory;
+	}
+	
+	static public boolean isSupported() {
+		return (getThreadFactory() != null);
+	}
+}
@@ -0,0 +1,235 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+//The records written by AuditLog, read back and searched by AuditReader
+public class AuditLogTest {
+	
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+	
+	
+	//Tests
+	
+	@Test
+	public void readsBackTheRecordsInOrder() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		
+		assertTrue(auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x01, 0x02 })));
+		assertTrue(auditLog.record(2, "10.0.1.6", ByteBuffer.wrap(new byte[] { 0x0A, 0x0B, 0x0C })));
+		assertTrue(auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x03 })));
+		auditLog.close();
+		
+		String records = _print(new AuditReader(directory), 3);
+		
+		assertInOrder(records, " Session #1 10.0.1.5 " + _hex(0x01, 0x02), " Session #2 10.0.1.6 " + _hex(0x0A, 0x0B, 0x0C), " Session #1 10.0.1.5 " + _hex(0x03));
+	}
+	
+	@Test
+	public void recordsThePayloadWithoutMovingIt() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		ByteBuffer	payload		= ByteBuffer.wrap(new byte[] { 0x00, 0x01, 0x02, 0x03 });
+		
+		payload.position(1).limit(3);
+		auditLog.record(1, "10.0.1.5", payload);
+		auditLog.close();
+		
+		assertEquals(1, payload.position());
+		assertTrue(_print(new AuditReader(directory), 1).contains(_hex(0x01, 0x02)));
+	}
+	
+	@Test
+	public void filtersBySessionSourceAndBytes() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		AuditReader	reader		= new AuditReader(directory);
+		
+		auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x01, 0x02, 0x03 }));
+		auditLog.record(2, "10.0.1.6", ByteBuffer.wrap(new byte[] { 0x02, 0x03, 0x04 }));
+		auditLog.record(3, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x05 }));
+		auditLog.close();
+		
+		reader.setFilter("2");
+		assertTrue(_print(reader, 1).contains(" Session #2 "));
+		
+		reader.setFilter("10.0.1.5");
+		_print(reader, 2);
+		
+		assertTrue(reader.setPattern("0203"));
+		_print(reader, 1);
+		
+		reader.setFilter(null);
+		_print(reader, 2);
+		
+		assertTrue(reader.setPattern("0304"));
+		assertTrue(_print(reader, 1).contains(" Session #2 "));
+		
+		assertTrue(reader.setPattern(null));
+		_print(reader, 3);
+	}
+	
+	@Test
+	public void rejectsInvalidPatterns() {
+		AuditReader reader = new AuditReader(_folder.getRoot().getPath());
+		
+		assertFalse(reader.setPattern(""));
+		assertFalse(reader.setPattern("012"));
+		assertFalse(reader.setPattern("0G"));
+	}
+	
+	@Test
+	public void opensANewSegmentWhenOneIsFull() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, 0, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		byte[]		payload		= new byte[0xFFFF];
+		
+		//The smallest segment holds one record of the largest payload
+		for (int i = 0; i < 3; i++) {
+			payload[0] = (byte)i;
+			auditLog.record(i + 1, "10.0.1.5", ByteBuffer.wrap(payload));
+		}
+		auditLog.close();
+		
+		assertTrue(_getSegment(3).toFile().isFile());
+		assertFalse(_getSegment(4).toFile().exists());
+		
+		assertInOrder(_print(new AuditReader(directory), 3), " Session #1 ", " Session #2 ", " Session #3 ");
+	}
+	
+	@Test
+	public void numbersSegmentsAfterTheExistingOnes() throws IOException {
+		String directory = _folder.getRoot().getPath();
+		
+		for (int i = 1; i <= 2; i++) {
+			AuditLog auditLog = new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+			
+			auditLog.record(i, "10.0.1.5", ByteBuffer.wrap(new byte[] { (byte)i }));
+			auditLog.close();
+			
+			assertTrue(_getSegment(i).toFile().isFile());
+		}
+		
+		assertEquals(2, AuditLog.getSegmentIndex(_getSegment(2)));
+		assertEquals(0, AuditLog.getSegmentIndex(Paths.get("audit-x.seg")));
+		assertEquals(0, AuditLog.getSegmentIndex(Paths.get("capture-000001.seg")));
+		
+		assertInOrder(_print(new AuditReader(directory), 2), " Session #1 ", " Session #2 ");
+	}
+	
+	@Test
+	public void readsTheSegmentsLeftByACrash() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		
+		auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x01 }));
+		auditLog.close();
+		
+		//A segment not truncated ends with zeros
+		try (FileChannel channel = FileChannel.open(_getSegment(1), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(4096));
+		}
+		
+		_print(new AuditReader(directory), 1);
+	}
+	
+	@Test
+	public void waitsForTheWriterWhenTheQueueIsFull() throws IOException {
+		String		directory	= _folder.getRoot().getPath();
+		AuditLog	auditLog	= new AuditLog(directory, AuditLog.DEFAULT_SEGMENT_SIZE, 1, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		
+		for (int i = 1; i <= 100; i++) {
+			assertTrue(auditLog.record(i, "10.0.1.5", ByteBuffer.wrap(new byte[] { (byte)i })));
+		}
+		auditLog.close();
+		
+		_print(new AuditReader(directory), 100);
+	}
+	
+	@Test
+	public void dropsTheRecordsOfAFullQueueOnlyWhenAsked() throws IOException {
+		AuditLog	auditLog		= new AuditLog(_folder.getRoot().getPath(), AuditLog.DEFAULT_SEGMENT_SIZE, 1, AuditLog.OverflowPolicy.OverflowPolicyDrop);
+		long		droppedCount	= AuditLog.g_recordsDropped.sum();
+		
+		//As if the writer was behind by one record
+		auditLog._queuedCount.set(1);
+		
+		assertFalse(auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x01 })));
+		assertEquals(droppedCount + 1, AuditLog.g_recordsDropped.sum());
+		
+		auditLog._queuedCount.set(0);
+		assertTrue(auditLog.record(2, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x02 })));
+		auditLog.close();
+		
+		assertTrue(_print(new AuditReader(_folder.getRoot().getPath()), 1).contains(" Session #2 "));
+		assertEquals(AuditLog.OverflowPolicy.OverflowPolicyDrop, AuditLog.parseOverflowPolicy("drop"));
+		assertEquals(AuditLog.OverflowPolicy.OverflowPolicyBlock, AuditLog.parseOverflowPolicy("block"));
+		assertEquals(null, AuditLog.parseOverflowPolicy("reject"));
+	}
+	
+	@Test
+	public void dropsTheRecordsOnceClosed() throws IOException {
+		AuditLog auditLog = new AuditLog(_folder.getRoot().getPath(), AuditLog.DEFAULT_SEGMENT_SIZE, 0, AuditLog.OverflowPolicy.OverflowPolicyBlock);
+		
+		auditLog.close();
+		
+		assertFalse(auditLog.record(1, "10.0.1.5", ByteBuffer.wrap(new byte[] { 0x01 })));
+	}
+	
+	
+	//Assertions
+	
+	static void assertInOrder(String records, String... parts) {
+		int index = 0;
+		
+		for (String part : parts) {
+			index = records.indexOf(part, index);
+			
+			assertTrue(part, index >= 0);
+			index += part.length();
+		}
+	}
+	
+	
+	//Private Functions
+	
+	//Prints the matching records and checks their number
+	static String _print(AuditReader reader, int expectedCount) {
+		ByteArrayOutputStream	output	= new ByteArrayOutputStream();
+		PrintStream				out		= new PrintStream(output, true);
+		
+		assertEquals(expectedCount, reader.print(out));
+		
+		return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+	}
+	
+	static String _hex(int... data) {
+		byte[] bytes = new byte[data.length];
+		
+		for (int i = 0; i < data.length; i++) {
+			bytes[i] = (byte)data[i];
+		}
+		return String.format("%s", HexDump.of(bytes));
+	}
+	
+	Path _getSegment(int index) {
+		return _folder.getRoot().toPath().resolve(String.format("%s%06d%s", AuditLog.SEGMENT_PREFIX, index, AuditLog.SEGMENT_EXTENSION));
+	}
+}
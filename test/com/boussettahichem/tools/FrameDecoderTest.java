@@ -0,0 +1,148 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+	
+	//Tests
+	
+	@Test
+	public void decodesSeveralFramesReadAtOnce() throws IOException {
+		FrameDecoder	decoder	= new FrameDecoder();
+		List<byte[]>	frames	= new ArrayList<byte[]>();
+		
+		decoder.readFrom(new ByteArrayInputStream(_concat(_frame(1, 2, 3), _frame(), _frame(4))));
+		
+		assertEquals(3, decoder.decode(_collector(frames)));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, frames.get(0));
+		assertArrayEquals(new byte[0], frames.get(1));
+		assertArrayEquals(new byte[] { 4 }, frames.get(2));
+	}
+	
+	@Test
+	public void keepsPartialFrameUntilItIsComplete() throws IOException {
+		FrameDecoder	decoder	= new FrameDecoder();
+		List<byte[]>	frames	= new ArrayList<byte[]>();
+		byte[]			data	= _concat(_frame(1, 2), _frame(5, 6, 7, 8));
+		
+		//One byte at a time - the header and the payload of the second frame are split
+		for (int i = 0; i < data.length; i++) {
+			decoder.readFrom(new ByteArrayInputStream(data, i, 1));
+			decoder.decode(_collector(frames));
+			
+			assertEquals((i < 3) ? 0 : ((i < data.length - 1) ? 1 : 2), frames.size());
+		}
+		
+		assertArrayEquals(new byte[] { 1, 2 }, frames.get(0));
+		assertArrayEquals(new byte[] { 5, 6, 7, 8 }, frames.get(1));
+	}
+	
+	@Test
+	public void growsToTheLargestFrame() throws IOException {
+		FrameDecoder	decoder	= new FrameDecoder();
+		List<byte[]>	frames	= new ArrayList<byte[]>();
+		byte[]			payload	= new byte[0xFFFF];
+		
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)i;
+		}
+		
+		InputStream stream = new ByteArrayInputStream(_concat(_frame(payload), _frame(9)));
+		
+		while (decoder.readFrom(stream) > 0) {
+			decoder.decode(_collector(frames));
+		}
+		
+		assertEquals(2, frames.size());
+		assertArrayEquals(payload, frames.get(0));
+		assertArrayEquals(new byte[] { 9 }, frames.get(1));
+		assertEquals(FrameDecoder.MAX_FRAME_LENGTH, decoder.getReceiveBuffer().capacity());
+	}
+	
+	@Test
+	public void readsFromChannels() throws IOException {
+		FrameDecoder	decoder	= new FrameDecoder();
+		List<byte[]>	frames	= new ArrayList<byte[]>();
+		
+		assertEquals(5, decoder.readFrom(Channels.newChannel(new ByteArrayInputStream(_frame(7, 8, 9)))));
+		assertEquals(1, decoder.decode(_collector(frames)));
+		assertArrayEquals(new byte[] { 7, 8, 9 }, frames.get(0));
+	}
+	
+	@Test
+	public void exposesTheBytesOfTheLastRead() throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		
+		decoder.readFrom(new ByteArrayInputStream(new byte[] { 0, 3, 1 }));
+		decoder.decode(_collector(new ArrayList<byte[]>()));
+		decoder.readFrom(new ByteArrayInputStream(new byte[] { 2, 3 }));
+		
+		ByteBuffer lastRead = decoder.getLastReadData();
+		
+		assertEquals(2, lastRead.remaining());
+		assertEquals(2, lastRead.get());
+		assertEquals(3, lastRead.get());
+	}
+	
+	@Test
+	public void returnsEndOfStream() throws IOException {
+		assertEquals(-1, new FrameDecoder().readFrom(new ByteArrayInputStream(new byte[0])));
+	}
+	
+	
+	//Private Functions
+	
+	static byte[] _frame(int... payload) {
+		byte[] data = new byte[payload.length];
+		
+		for (int i = 0; i < payload.length; i++) {
+			data[i] = (byte)payload[i];
+		}
+		return _frame(data);
+	}
+	
+	static byte[] _frame(byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.DATA_HEADER_LENGTH + payload.length);
+		
+		frame.putShort((short)payload.length);
+		frame.put(payload);
+		
+		return frame.array();
+	}
+	
+	static byte[] _concat(byte[]... parts) {
+		ByteBuffer data = ByteBuffer.allocate(65536 * 2);
+		
+		for (byte[] part : parts) {
+			data.put(part);
+		}
+		data.flip();
+		
+		byte[] result = new byte[data.remaining()];
+		data.get(result);
+		
+		return result;
+	}
+	
+	static FrameDecoder.FrameHandler _collector(final List<byte[]> frames) {
+		return new FrameDecoder.FrameHandler() {
+			public void handleFrame(ByteBuffer frame) {
+				byte[] payload = new byte[frame.remaining()];
+				
+				frame.get(payload);
+				frames.add(payload);
+			}
+		};
+	}
+}
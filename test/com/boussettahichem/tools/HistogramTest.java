@@ -0,0 +1,80 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	
+	//Tests
+	
+	@Test
+	public void keepsSmallValuesExact() {
+		for (int value = 0; value < 32; value++) {
+			assertEquals(value, Histogram._getBucketIndex(value));
+			assertEquals(value, Histogram._getBucketHighestValue(value));
+		}
+	}
+	
+	@Test
+	public void bucketsFollowEachOther() {
+		//The bucket after the highest value of a bucket starts right after it
+		for (int index = 0; index < Histogram.BUCKET_COUNT - 1; index++) {
+			long highestValue = Histogram._getBucketHighestValue(index);
+			
+			assertEquals(index, Histogram._getBucketIndex(highestValue));
+			assertEquals(index + 1, Histogram._getBucketIndex(highestValue + 1));
+		}
+	}
+	
+	@Test
+	public void keepsTheErrorBelowSevenPercent() {
+		for (long value = 32; value > 0; value += (value / 7) + 1) {
+			long highestValue = Histogram._getBucketHighestValue(Histogram._getBucketIndex(value));
+			
+			assertTrue(highestValue >= value);
+			assertTrue((double)(highestValue - value) / value < 0.07);
+		}
+	}
+	
+	@Test
+	public void holdsTheLargestValues() {
+		int index = Histogram._getBucketIndex(Long.MAX_VALUE);
+		
+		assertEquals(Histogram.BUCKET_COUNT - 1, index);
+		assertEquals(Long.MAX_VALUE, Histogram._getBucketHighestValue(index));
+	}
+	
+	@Test
+	public void givesPercentilesCountAndMean() {
+		Histogram histogram = new Histogram("test");
+		
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		
+		for (int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+		
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		
+		//50 shares its bucket with 51 - the percentiles are the highest value of their bucket
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(10, histogram.getValueAtPercentile(10));
+		assertEquals(51, histogram.getValueAtPercentile(50));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+	}
+	
+	@Test
+	public void recordsNegativeValuesAsZero() {
+		Histogram histogram = new Histogram("test");
+		
+		histogram.record(-5);
+		
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+	}
+}
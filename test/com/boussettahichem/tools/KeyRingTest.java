@@ -0,0 +1,101 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.KeyPairGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+//The key chosen for a session - the keys of a listener are not used for the sources of another one
+public class KeyRingTest {
+	
+	//Member Variables
+	static byte[]		g_key;
+	KeyRing				_keyRing;
+	
+	
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(RSADecryptor.ALGORITHM);
+		
+		generator.initialize(1024);
+		g_key = generator.generateKeyPair().getPrivate().getEncoded();
+	}
+	
+	@Before
+	public void setUp() {
+		_keyRing = new KeyRing();
+		
+		_keyRing.addKey("orders", g_key);
+		_keyRing.addKey("partner", g_key);
+		_keyRing.addKey("billing", g_key);
+		_keyRing.addKey("shared", g_key);
+	}
+	
+	@After
+	public void tearDown() {
+		_keyRing.close();
+	}
+	
+	
+	//Tests
+	
+	@Test
+	public void prefersTheSourceRules() {
+		_keyRing.setListenerKey(9530, "orders");
+		_keyRing.setSourceKey(9530, "10.0.1.5", "partner");
+		
+		assertSame(_getKey("partner"), _keyRing.getDecryptor(9530, "10.0.1.5"));
+		assertSame(_getKey("orders"), _keyRing.getDecryptor(9530, "10.0.1.6"));
+		assertSame(_getKey("orders"), _keyRing.getDecryptor(9530, null));
+	}
+	
+	@Test
+	public void doesNotUseTheKeyOfASourceForTheOtherSources() {
+		_keyRing.setSourceKey(9530, "10.0.1.5", "partner");
+		_keyRing.setSourceKey(9530, "10.0.1.6", "orders");
+		
+		assertNull(_keyRing.getDecryptor(9530, "10.0.1.7"));
+		assertNull(_keyRing.getDecryptor(9530, null));
+		assertSame(_getKey("orders"), _keyRing.getDecryptor(9530, "10.0.1.6"));
+	}
+	
+	@Test
+	public void keepsTheKeysOfAListenerToItself() {
+		_keyRing.setSourceKey(9530, "10.0.1.5", "partner");
+		_keyRing.setListenerKey(9540, "billing");
+		
+		assertNull(_keyRing.getDecryptor(9550, "10.0.1.5"));
+		assertSame(_getKey("billing"), _keyRing.getDecryptor(9540, "10.0.1.5"));
+		assertNull(_keyRing.getDecryptor(9530, "10.0.1.8"));
+	}
+	
+	@Test
+	public void usesTheDefaultKeyOnlyOnceSet() {
+		_keyRing.setListenerKey(9540, "billing");
+		
+		assertNull(_keyRing.getDecryptor(9530, "10.0.1.5"));
+		
+		_keyRing.setDefaultKey("shared");
+		
+		assertSame(_getKey("shared"), _keyRing.getDecryptor(9530, "10.0.1.5"));
+		assertSame(_getKey("billing"), _keyRing.getDecryptor(9540, "10.0.1.5"));
+	}
+	
+	@Test
+	public void rejectsInvalidKeys() {
+		assertNull(_keyRing.addKey("invalid", new byte[] { 0x30, 0x03, 0x02, 0x01, 0x00 }));
+		assertNull(_getKey("invalid"));
+	}
+	
+	
+	//Private Functions
+	
+	RSADecryptor _getKey(String keyName) {
+		return _keyRing._keys.get(keyName);
+	}
+}
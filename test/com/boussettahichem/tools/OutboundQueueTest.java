@@ -0,0 +1,122 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+	
+	//Tests
+	
+	@Test
+	public void writesTheQueuedFramesTogether() throws IOException {
+		RecordingConnection	connection	= new RecordingConnection();
+		OutboundQueue		queue		= new OutboundQueue(connection);
+		
+		assertFalse(queue.add(_frame(1, 2)));
+		assertFalse(queue.add(_frame(3)));
+		assertEquals(2, queue.getFrameCount());
+		
+		assertEquals(2, queue.flush());
+		
+		List<byte[]> frames = connection.getFrames();
+		
+		assertEquals(1, connection.getWriteCount());
+		assertArrayEquals(new byte[] { 1, 2 }, frames.get(0));
+		assertArrayEquals(new byte[] { 3 }, frames.get(1));
+		assertTrue(queue.isEmpty());
+	}
+	
+	@Test
+	public void doesNotWriteAnEmptyQueue() throws IOException {
+		RecordingConnection connection = new RecordingConnection();
+		
+		assertEquals(0, new OutboundQueue(connection).flush());
+		assertEquals(0, connection.getWriteCount());
+	}
+	
+	@Test
+	public void isFullAtTheMaxFrameCount() {
+		OutboundQueue queue = new OutboundQueue(new RecordingConnection());
+		
+		for (int i = 1; i < OutboundQueue.MAX_FRAME_COUNT; i++) {
+			assertFalse(queue.add(_frame(i)));
+		}
+		assertTrue(queue.add(_frame(0)));
+		
+		queue.clear();
+	}
+	
+	@Test
+	public void isFullAtTheMaxByteCount() {
+		OutboundQueue queue = new OutboundQueue(new RecordingConnection());
+		
+		assertFalse(queue.add(_frame(new byte[OutboundQueue.MAX_BYTE_COUNT / 2])));
+		assertTrue(queue.add(_frame(new byte[OutboundQueue.MAX_BYTE_COUNT / 2])));
+		
+		queue.clear();
+	}
+	
+	@Test
+	public void releasesTheFramesOnceWritten() throws IOException {
+		OutboundQueue	queue	= new OutboundQueue(new RecordingConnection());
+		PooledBuffer	frame	= _frame(1);
+		
+		frame.retain();
+		queue.add(frame);
+		queue.flush();
+		
+		assertEquals(1, frame.getReferenceCount());
+		frame.release();
+	}
+	
+	@Test
+	public void dropsTheFramesWhenTheWriteFails() {
+		OutboundQueue	queue	= new OutboundQueue(new RecordingConnection() {
+			public void write(PooledBuffer[] buffers, int offset, int length) throws IOException {
+				throw new IOException("Connection reset");
+			}
+		});
+		PooledBuffer	frame	= _frame(1);
+		
+		frame.retain();
+		queue.add(frame);
+		
+		try {
+			queue.flush();
+		} catch (IOException e) {
+			//Expected
+		}
+		
+		assertTrue(queue.isEmpty());
+		assertEquals(1, frame.getReferenceCount());
+		frame.release();
+	}
+	
+	
+	//Private Functions
+	
+	static PooledBuffer _frame(int... data) {
+		byte[] bytes = new byte[data.length];
+		
+		for (int i = 0; i < data.length; i++) {
+			bytes[i] = (byte)data[i];
+		}
+		return _frame(bytes);
+	}
+	
+	static PooledBuffer _frame(byte[] data) {
+		PooledBuffer frame = BufferPool.getSharedBufferPool().acquire(data.length);
+		
+		frame.getBuffer().put(data);
+		frame.getBuffer().flip();
+		
+		return frame;
+	}
+}
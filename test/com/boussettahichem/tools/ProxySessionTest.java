@@ -0,0 +1,222 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//The sequence numbers of the retry window, and the order of the responses written to the source
+public class ProxySessionTest {
+	
+	//Member Variables
+	RetryProxy				_proxy;
+	RecordingConnection		_source;
+	ProxySession			_session;
+	
+	
+	@Before
+	public void setUp() {
+		_proxy		= new RetryProxy();
+		_source		= new RecordingConnection();
+		
+		_proxy.setUseNetworkRetry(true);
+		
+		_session	= new ProxySession(_proxy, 1, _source);
+		_session._destinationPool = new DestinationPool(_proxy, "127.0.0.1", 1);
+		
+		//As the session starting with the retry logic
+		_session._initializeSequenceNumber();
+	}
+	
+	@After
+	public void tearDown() {
+		_session.close();
+	}
+	
+	
+	//Tests
+	
+	@Test
+	public void numbersRequestsFromOne() {
+		OutstandingRequest first	= _sendRequest(10, 11);
+		OutstandingRequest second	= _sendRequest(12);
+		
+		assertEquals(1, first.getSequenceNumber());
+		assertEquals(2, second.getSequenceNumber());
+		
+		//The length counts the sequence number, which is the first byte after the header
+		ByteBuffer frame = first.getFrame().getBuffer();
+		
+		assertEquals(0, frame.position());
+		assertEquals(0, frame.get(0));
+		assertEquals(3, frame.get(1));
+		assertEquals(1, frame.get(2));
+		assertEquals(10, frame.get(3));
+		assertEquals(11, frame.get(4));
+		
+		assertSame(first, _session._outstandingRequests[1]);
+		assertSame(second, _session._outstandingRequests[2]);
+		assertEquals(2, _session._outstandingRequestCount);
+	}
+	
+	@Test
+	public void takesAResetForAResetWhileTheFirstRequestIsOutstanding() {
+		OutstandingRequest first = _sendRequest(1);
+		
+		_session._handleResponse(0, _session._copyResponse(ByteBuffer.allocate(0)));
+		
+		assertEquals(true, first.isPending());
+		assertSame(first, _session._outstandingRequests[1]);
+	}
+	
+	@Test
+	public void wrapsAroundWithoutZeroNorNumbersInUse() {
+		OutstandingRequest outstanding = _sendRequest(1);
+		
+		_session._currentSequenceNumber = 254;
+		
+		assertEquals(255, _sendRequest(2).getSequenceNumber());
+		
+		//0 is never sent, and 1 is still waiting for its reply
+		assertEquals(1, outstanding.getSequenceNumber());
+		assertEquals(2, _sendRequest(3).getSequenceNumber());
+	}
+	
+	@Test
+	public void writesResponsesInTheOrderOfTheRequests() {
+		_sendRequest(1);
+		_sendRequest(2);
+		_sendRequest(3);
+		
+		_receiveResponse(3, 30);
+		_receiveResponse(2, 20);
+		
+		assertEquals(0, _source.getWriteCount());
+		
+		_receiveResponse(1, 10);
+		
+		List<byte[]> frames = _source.getFrames();
+		
+		assertEquals(1, _source.getWriteCount());
+		assertEquals(3, frames.size());
+		assertArrayEquals(new byte[] { 0, 1, 10 }, frames.get(0));
+		assertArrayEquals(new byte[] { 0, 1, 20 }, frames.get(1));
+		assertArrayEquals(new byte[] { 0, 1, 30 }, frames.get(2));
+	}
+	
+	@Test
+	public void freesTheNumberOfARepliedRequest() {
+		OutstandingRequest request = _sendRequest(1);
+		
+		_receiveResponse(1, 10);
+		
+		assertNull(_session._outstandingRequests[1]);
+		assertEquals(0, _session._outstandingRequestCount);
+		assertEquals(true, _session._requestsInOrder.isEmpty());
+		assertNull(request.getFrame());
+		
+		//The numbers go on - they are not reused right away
+		assertEquals(2, _sendRequest(2).getSequenceNumber());
+	}
+	
+	@Test
+	public void dropsUnmatchedAndLateResponses() {
+		long unmatchedCount = ProxySession.g_responsesUnmatched.sum();
+		
+		_sendRequest(1);
+		
+		_receiveResponse(7, 70);
+		
+		assertEquals(0, _source.getWriteCount());
+		assertEquals(unmatchedCount + 1, ProxySession.g_responsesUnmatched.sum());
+		
+		_receiveResponse(1, 10);
+		_receiveResponse(1, 11);
+		
+		List<byte[]> frames = _source.getFrames();
+		
+		assertEquals(1, frames.size());
+		assertArrayEquals(new byte[] { 0, 1, 10 }, frames.get(0));
+		assertEquals(unmatchedCount + 2, ProxySession.g_responsesUnmatched.sum());
+	}
+	
+	@Test
+	public void closesTheDestinationOnAFrameWithoutSequenceNumber() {
+		RecordingConnection destination = new RecordingConnection();
+		
+		_session._destinationConnection = destination;
+		_sendRequest(1);
+		
+		_session.writeDataToSource(ByteBuffer.allocate(0));
+		
+		assertEquals(true, destination._isClosed);
+		assertNull(_session._destinationConnection);
+		assertEquals(0, _source.getWriteCount());
+		
+		//The request still waits for its reply
+		assertEquals(1, _session._outstandingRequestCount);
+	}
+	
+	@Test
+	public void writesTheRejectionsAfterThePreviousResponsesWithoutRetry() {
+		_proxy.setUseNetworkRetry(false);
+		_proxy.setSubmissionQueueCapacity(1);
+		_proxy.setOverflowPolicy(RetryProxy.OverflowPolicy.OverflowPolicyReject);
+		
+		//The requests stay in the submission queue
+		_session._isSendScheduled.set(true);
+		
+		_session.writeDataToDestination(ByteBuffer.wrap(new byte[] { 1 }));
+		_session.writeDataToDestination(ByteBuffer.wrap(new byte[] { 2 }));
+		
+		assertEquals(0, _source.getWriteCount());
+		
+		_session.writeDataToSource(ByteBuffer.wrap(new byte[] { 10 }));
+		_session.destinationDataReceived(1, 1);
+		
+		List<byte[]> frames = _source.getFrames();
+		
+		assertEquals(2, frames.size());
+		assertArrayEquals(new byte[] { 0, 1, 10 }, frames.get(0));
+		assertArrayEquals(new byte[] { 0, 2, 0, 0 }, frames.get(1));
+	}
+	
+	
+	//Private Functions
+	
+	//Queues a request the way the source does, and gives it the next free number of the retry window
+	OutstandingRequest _sendRequest(int... payload) {
+		PooledBuffer data = BufferPool.getSharedBufferPool().acquire(_session.REQUEST_HEADER_LENGTH + payload.length);
+		
+		data.getBuffer().position(_session.REQUEST_HEADER_LENGTH);
+		for (int value : payload) {
+			data.getBuffer().put((byte)value);
+		}
+		data.getBuffer().position(_session.REQUEST_HEADER_LENGTH);
+		
+		OutstandingRequest request = new OutstandingRequest(data);
+		
+		_session._outstandingRequestsLock.lock();
+		try {
+			_session._requestsInOrder.add(request);
+			_session._startOutstandingRequest(request);
+		} finally {
+			_session._outstandingRequestsLock.unlock();
+		}
+		
+		return request;
+	}
+	
+	//A frame read from the destination: the sequence number followed by the response
+	void _receiveResponse(int sequenceNumber, int payload) {
+		_session.writeDataToSource(ByteBuffer.wrap(new byte[] { (byte)sequenceNumber, (byte)payload }));
+		_session.destinationDataReceived(2, 1);
+	}
+}
@@ -0,0 +1,191 @@
+package com.boussettahichem.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+//The formats of the keys, PKCS#1 keys wrapped in PKCS#8 included, and the decryption of whole blocks
+public class RSADecryptorTest {
+	
+	//Constants
+	static final byte[]		MESSAGE			= "Decrypted by the proxy".getBytes(StandardCharsets.US_ASCII);
+	
+	//Member Variables
+	static KeyPair			g_keyPair;
+	static byte[]			g_pkcs8Key;
+	static byte[]			g_pkcs1Key;
+	
+	
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(RSADecryptor.ALGORITHM);
+		
+		generator.initialize(1024);
+		
+		g_keyPair	= generator.generateKeyPair();
+		g_pkcs8Key	= g_keyPair.getPrivate().getEncoded();
+		g_pkcs1Key	= _getPKCS1Key(g_pkcs8Key);
+	}
+	
+	
+	//Tests
+	
+	@Test
+	public void wrapsPKCS1KeysLikeTheKeyFactory() {
+		assertArrayEquals(g_pkcs8Key, RSADecryptor._wrapPKCS1Key(g_pkcs1Key));
+	}
+	
+	@Test
+	public void encodesDERLengths() {
+		assertDERLength(new byte[] { 0x00 }, 0);
+		assertDERLength(new byte[] { 0x7F }, 0x7F);
+		assertDERLength(new byte[] { (byte)0x81, (byte)0x80 }, 0x80);
+		assertDERLength(new byte[] { (byte)0x81, (byte)0xFF }, 0xFF);
+		assertDERLength(new byte[] { (byte)0x82, 0x01, 0x00 }, 0x100);
+		assertDERLength(new byte[] { (byte)0x83, 0x01, 0x00, 0x00 }, 0x10000);
+	}
+	
+	@Test
+	public void readsPEMAndDERKeys() throws Exception {
+		assertDecrypts(_pem("PRIVATE KEY", g_pkcs8Key));
+		assertDecrypts(_pem("RSA PRIVATE KEY", g_pkcs1Key));
+		assertDecrypts(g_pkcs8Key);
+		assertDecrypts(g_pkcs1Key);
+	}
+	
+	@Test
+	public void rejectsInvalidKeys() {
+		RSADecryptor decryptor = new RSADecryptor();
+		
+		assertFalse(decryptor.setPrivateRSAKey(null));
+		assertFalse(decryptor.setPrivateRSAKey("not a key".getBytes(StandardCharsets.US_ASCII)));
+		assertFalse(decryptor.setPrivateRSAKey(_pem("PUBLIC KEY", g_keyPair.getPublic().getEncoded())));
+		assertFalse(decryptor.hasPrivateRSAKey());
+	}
+	
+	@Test
+	public void keepsTheCurrentKeyWhenTheNewOneIsInvalid() throws Exception {
+		RSADecryptor decryptor = new RSADecryptor();
+		
+		assertTrue(decryptor.setPrivateRSAKey(g_pkcs8Key));
+		assertFalse(decryptor.setPrivateRSAKey(Arrays.copyOf(g_pkcs8Key, 40)));
+		
+		assertArrayEquals(MESSAGE, decryptor.decrypt(_encrypt(MESSAGE)));
+	}
+	
+	@Test
+	public void decryptsWholeBlocksOnly() throws Exception {
+		RSADecryptor	decryptor	= new RSADecryptor();
+		int				blockCount	= RSADecryptor.MIN_PARALLEL_BLOCK_COUNT + 1;
+		
+		assertTrue(decryptor.setPrivateRSAKey(g_pkcs8Key));
+		assertEquals(128, decryptor.getBlockLength());
+		assertEquals(1024, decryptor.getPrivateRSAKeyLength());
+		
+		//The blocks are decrypted in order into the output, the bytes after the last whole block are ignored
+		ByteBuffer	cipher		= ByteBuffer.allocate(blockCount * decryptor.getBlockLength() + 5);
+		ByteBuffer	expected	= ByteBuffer.allocate(blockCount * 2);
+		
+		for (int i = 0; i < blockCount; i++) {
+			byte[] block = new byte[] { (byte)i, (byte)(i * 3) };
+			
+			cipher.put(_encrypt(block));
+			expected.put(block);
+		}
+		cipher.flip();
+		
+		ByteBuffer output = ByteBuffer.allocate(cipher.remaining());
+		
+		assertEquals(blockCount * 2, decryptor.decrypt(cipher, output));
+		assertEquals(0, cipher.position());
+		
+		output.flip();
+		expected.flip();
+		assertEquals(expected, output);
+	}
+	
+	
+	//Assertions
+	
+	static void assertDERLength(byte[] expected, int length) {
+		byte[] encoded = new byte[expected.length];
+		
+		assertEquals(expected.length, RSADecryptor._getDERLengthSize(length));
+		assertEquals(expected.length, RSADecryptor._putDERLength(encoded, 0, length));
+		assertArrayEquals(expected, encoded);
+	}
+	
+	static void assertDecrypts(byte[] key) throws Exception {
+		RSADecryptor decryptor = new RSADecryptor();
+		
+		assertTrue(decryptor.setPrivateRSAKey(key));
+		assertArrayEquals(MESSAGE, decryptor.decrypt(_encrypt(MESSAGE)));
+	}
+	
+	
+	//Private Functions
+	
+	static byte[] _encrypt(byte[] data) throws Exception {
+		Cipher cipher = Cipher.getInstance(RSADecryptor.ALGORITHM);
+		
+		cipher.init(Cipher.ENCRYPT_MODE, g_keyPair.getPublic());
+		
+		return cipher.doFinal(data);
+	}
+	
+	static byte[] _pem(String type, byte[] der) {
+		String pem = "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(der) + "\n-----END " + type + "-----\n";
+		
+		return pem.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	//The RSAPrivateKey of a PrivateKeyInfo - the content of its last element, an OCTET STRING
+	static byte[] _getPKCS1Key(byte[] pkcs8Key) {
+		ByteBuffer	der		= ByteBuffer.wrap(pkcs8Key);
+		int			end		= 0;
+		
+		der.get();
+		end = _getDERLength(der) + der.position();
+		
+		//The version and the algorithm
+		der.position(der.position() + RSADecryptor.PKCS8_RSA_VERSION_AND_ALGORITHM.length);
+		
+		assertEquals(RSADecryptor.DER_OCTET_STRING_TAG, der.get());
+		
+		byte[] pkcs1Key = new byte[_getDERLength(der)];
+		
+		der.get(pkcs1Key);
+		assertEquals(end, der.position());
+		
+		return pkcs1Key;
+	}
+	
+	static int _getDERLength(ByteBuffer der) {
+		int length = der.get() & 0xFF;
+		
+		if (length < 0x80) {
+			return length;
+		}
+		
+		int size = length & 0x7F;
+		
+		length = 0;
+		for (int i = 0; i < size; i++) {
+			length = (length << 8) | (der.get() & 0xFF);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,80 @@
+package com.boussettahichem.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+//A connection keeping the bytes written to it, one list of frames per write - nothing is read from it
+class RecordingConnection extends ProxyConnection {
+	
+	//Member Variables
+	List<List<byte[]>>		_writes;
+	boolean					_isClosed;
+	
+	
+	//Constructor
+	RecordingConnection() {
+		_writes		= new ArrayList<List<byte[]>>();
+		_isClosed	= false;
+	}
+	
+	
+	//Properties
+	
+	//The frames of all the writes, in order
+	List<byte[]> getFrames() {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		
+		for (List<byte[]> write : _writes) {
+			frames.addAll(write);
+		}
+		return frames;
+	}
+	
+	int getWriteCount() {
+		return _writes.size();
+	}
+	
+	
+	//ProxyConnection
+	
+	public void start(ProxySession session, boolean isSource) {
+		_session	= session;
+		_isSource	= isSource;
+	}
+	
+	public void write(PooledBuffer[] buffers, int offset, int length) throws IOException {
+		List<byte[]> write = new ArrayList<byte[]>();
+		
+		for (int i = offset; i < offset + length; i++) {
+			ByteBuffer	buffer	= buffers[i].getBuffer().duplicate();
+			byte[]		data	= new byte[buffer.remaining()];
+			
+			buffer.get(data);
+			write.add(data);
+		}
+		_writes.add(write);
+	}
+	
+	public boolean isConnected() {
+		return (_isClosed == false);
+	}
+	
+	public void pauseReading() {
+	}
+	
+	public void resumeReading() {
+	}
+	
+	public void shutdownOutput() {
+	}
+	
+	public void close() {
+		_isClosed = true;
+	}
+	
+	public String getRemoteAddress() {
+		return "127.0.0.1";
+	}
+}